@@ -43,6 +43,11 @@ public class CallAdapter {
 
     public final ClassLoader loader;
     public final URLClassPath ucp;
+    // where the class path's packages are, for loaders that have one
+    public final UcpIndex ucpIndex;
+    // names the class path and the loader as a whole didn't have, see Interceptor.getResource and findResource
+    public final MissCache ucpMisses = new MissCache();
+    public final MissCache resourceMisses = new MissCache();
     private final LoaderMethod<Class<?>, ClassNotFoundException> findClassMethod;
     private final LoaderMethod<URL, RuntimeException> findResourceMethod;
     private final LoaderMethod<Enumeration<URL>, IOException> findResourcesMethod;
@@ -52,17 +57,25 @@ public class CallAdapter {
         if (loader instanceof BuiltinClassLoader) {
             BuiltinClassLoader bcl = (BuiltinClassLoader)loader;
             ucp = getUCP.apply(bcl);
+            ucpIndex = ucp != null && UcpIndex.ENABLED ? new UcpIndex(ucp) : null;
             findResourceMethod = bcl::findResource;
             findResourcesMethod = bcl::findResources;
             findClassMethod = bcl::loadClass;
         } else {
             ucp = null;
+            ucpIndex = null;
             findResourceMethod = loader::getResource;
             findResourcesMethod = loader::getResources;
             findClassMethod = loader::loadClass;
         }
     }
 
+    // the generation of the class path index if it covers the whole class path right now, -1 if not (or there's none),
+    // see MissCache
+    public int indexGeneration() {
+        return ucpIndex != null ? ucpIndex.generation() : -1;
+    }
+
     public Interceptor.IClassInterceptor replaceInterceptor(Interceptor.IClassInterceptor newInterceptor) {
         return Interceptor.interceptClasses(loader, newInterceptor);
     }
@@ -100,11 +113,18 @@ public class CallAdapter {
     }
 
     public UcpResource ucpGetResource(String name, boolean check) throws UnsupportedOperationException {
+        if (ucpIndex != null) {
+            try {
+                return ucpIndex.getResource(name, check);
+            } catch (Interceptor.NoInterceptionException e) {
+                // the index doesn't cover the class path right now; ask the whole path
+            }
+        }
         if (ucp != null) {
             try {
                 Interceptor.inRecall.set(true);
                 var resource = ucp.getResource(name, check);
-                return resource == null ? null : new UcpResource.Proxy(resource);
+                return resource == null ? null : UcpResource.Proxy.of(resource);
             } finally {
                 Interceptor.inRecall.set(false);
             }
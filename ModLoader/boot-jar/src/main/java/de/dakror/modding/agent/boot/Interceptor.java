@@ -16,6 +16,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import jdk.internal.loader.Resource;
 import jdk.internal.loader.URLClassPath;
 
+import de.dakror.modding.agent.boot.InterceptorStats.EntryPoint;
+
 // public static methods in this class all intercept the instance method of the same name in ClassLoader, with
 // the same arguments except for an additional ClassLoader at the start. It must be public so the rewritten
 // classes can access it, and it must get added to the boot ClassLoader for platform classes to link to it.
@@ -69,6 +71,16 @@ public abstract class Interceptor {
     };
 
     public static Class<?> findClass(ClassLoader loader, String name) throws ClassNotFoundException, NoInterceptionException {
+        long start = InterceptorStats.start();
+        try {
+            return InterceptorStats.intercepted(EntryPoint.FIND_CLASS, start, doFindClass(loader, name));
+        } catch (NoInterceptionException e) {
+            InterceptorStats.passed(EntryPoint.FIND_CLASS, start);
+            throw e;
+        }
+    }
+
+    private static Class<?> doFindClass(ClassLoader loader, String name) throws ClassNotFoundException, NoInterceptionException {
         if (inRecall()) throw NO_INTERCEPTION;
         IClassInterceptor target = loaderInterceptions.getOrDefault(loader, NULL_INTERCEPTOR);
         if (DEBUG_INTERCEPTOR) System.err.println(String.format("%s.findClass(%s)", target != NULL_INTERCEPTOR ? target : loader, name));
@@ -80,6 +92,16 @@ public abstract class Interceptor {
     }
 
     public static Class<?> findClassOnClassPathOrNull(ClassLoader loader, String name) throws NoInterceptionException {
+        long start = InterceptorStats.start();
+        try {
+            return InterceptorStats.intercepted(EntryPoint.FIND_CLASS_ON_CLASS_PATH, start, doFindClassOnClassPathOrNull(loader, name));
+        } catch (NoInterceptionException e) {
+            InterceptorStats.passed(EntryPoint.FIND_CLASS_ON_CLASS_PATH, start);
+            throw e;
+        }
+    }
+
+    private static Class<?> doFindClassOnClassPathOrNull(ClassLoader loader, String name) throws NoInterceptionException {
         if (inRecall()) throw NO_INTERCEPTION;
         IClassInterceptor target = loaderInterceptions.getOrDefault(loader, NULL_INTERCEPTOR);
         if (DEBUG_INTERCEPTOR) System.err.println(String.format("%s.findClassOnClassPathOrNull(%s)", target != NULL_INTERCEPTOR ? target : loader, name));
@@ -91,17 +113,50 @@ public abstract class Interceptor {
     }
 
     public static URL findResource(ClassLoader loader, String name) throws NoInterceptionException {
+        long start = InterceptorStats.start();
+        try {
+            return InterceptorStats.intercepted(EntryPoint.FIND_RESOURCE, start, doFindResource(loader, name));
+        } catch (NoInterceptionException e) {
+            InterceptorStats.passed(EntryPoint.FIND_RESOURCE, start);
+            throw e;
+        }
+    }
+
+    private static URL doFindResource(ClassLoader loader, String name) throws NoInterceptionException {
         if (inRecall()) throw NO_INTERCEPTION;
         IClassInterceptor target = loaderInterceptions.getOrDefault(loader, NULL_INTERCEPTOR);
         if (DEBUG_INTERCEPTOR) System.err.println(String.format("%s.findResource(%s)", target != NULL_INTERCEPTOR ? target : loader, name));
+        var adapter = loaderAdapters.get(loader);
+        var generation = adapter != null ? adapter.indexGeneration() : -1;
+        if (adapter != null && adapter.resourceMisses.contains(name, generation)) {
+            return null;
+        }
         try {
-            return target.interceptedFindResource(loaderAdapters.get(loader), name);
-        } catch (UnsupportedOperationException ioe) {
-            throw NO_INTERCEPTION;
+            return target.interceptedFindResource(adapter, name);
+        } catch (NoInterceptionException|UnsupportedOperationException e) {
+            if (adapter == null) {
+                throw NO_INTERCEPTION;
+            }
+            // look it up here rather than letting the original method run, so a miss can be remembered
+            var url = adapter.findResource(name);
+            if (url == null) {
+                adapter.resourceMisses.add(name, generation);
+            }
+            return url;
         }
     }
 
     public static Enumeration<URL> findResources(ClassLoader loader, String name) throws IOException, NoInterceptionException {
+        long start = InterceptorStats.start();
+        try {
+            return InterceptorStats.intercepted(EntryPoint.FIND_RESOURCES, start, doFindResources(loader, name));
+        } catch (NoInterceptionException e) {
+            InterceptorStats.passed(EntryPoint.FIND_RESOURCES, start);
+            throw e;
+        }
+    }
+
+    private static Enumeration<URL> doFindResources(ClassLoader loader, String name) throws IOException, NoInterceptionException {
         if (inRecall()) throw NO_INTERCEPTION;
         IClassInterceptor target = loaderInterceptions.getOrDefault(loader, NULL_INTERCEPTOR);
         if (DEBUG_INTERCEPTOR) System.err.println(String.format("%s.findResources(%s)", target != NULL_INTERCEPTOR ? target : loader, name));
@@ -113,17 +168,54 @@ public abstract class Interceptor {
     }
 
     public static Resource getResource(URLClassPath ucp, String name, boolean check) throws NoInterceptionException {
+        long start = InterceptorStats.start();
+        try {
+            return InterceptorStats.intercepted(EntryPoint.GET_RESOURCE, start, doGetResource(ucp, name, check));
+        } catch (NoInterceptionException e) {
+            InterceptorStats.passed(EntryPoint.GET_RESOURCE, start);
+            throw e;
+        }
+    }
+
+    private static Resource doGetResource(URLClassPath ucp, String name, boolean check) throws NoInterceptionException {
         if (inRecall()) throw NO_INTERCEPTION;
         ClassLoader loader = ucpLoaders.getOrDefault(ucp, ClassLoader.getSystemClassLoader());
         IClassInterceptor target = loaderInterceptions.getOrDefault(loader, NULL_INTERCEPTOR);
+        var adapter = loaderAdapters.get(loader);
+        // the loader's own class path, rather than that of a URLClassLoader nobody registered
+        var ownUcp = adapter != null && adapter.ucp == ucp;
+        var generation = ownUcp ? adapter.indexGeneration() : -1;
+        if (ownUcp && !check && adapter.ucpMisses.contains(name, generation)) {
+            return null;
+        }
+        UcpResource resource;
         try {
-            return UcpResource.ReverseProxy.of(target.interceptedUcpGetResource(loaderAdapters.get(loader), name, check));
-        } catch (UnsupportedOperationException ioe) {
-            throw NO_INTERCEPTION;
+            resource = target.interceptedUcpGetResource(adapter, name, check);
+        } catch (NoInterceptionException|UnsupportedOperationException e) {
+            if (!ownUcp) {
+                throw NO_INTERCEPTION;
+            }
+            // not the interceptor's business; the class path's index knows where it is, and a miss gets remembered
+            // while the index covers the whole class path
+            resource = adapter.ucpGetResource(name, check);
+            if (resource == null && !check) {
+                adapter.ucpMisses.add(name, generation);
+            }
         }
+        return resource == null ? null : UcpResource.ReverseProxy.of(resource);
     }
 
     public static Enumeration<Resource> getResources(URLClassPath ucp, String name, boolean check) throws NoInterceptionException {
+        long start = InterceptorStats.start();
+        try {
+            return InterceptorStats.intercepted(EntryPoint.GET_RESOURCES, start, doGetResources(ucp, name, check));
+        } catch (NoInterceptionException e) {
+            InterceptorStats.passed(EntryPoint.GET_RESOURCES, start);
+            throw e;
+        }
+    }
+
+    private static Enumeration<Resource> doGetResources(URLClassPath ucp, String name, boolean check) throws NoInterceptionException {
         if (inRecall()) throw NO_INTERCEPTION;
         ClassLoader loader = ucpLoaders.getOrDefault(ucp, ClassLoader.getSystemClassLoader());
         IClassInterceptor target = loaderInterceptions.getOrDefault(loader, NULL_INTERCEPTOR);
@@ -232,6 +324,16 @@ public abstract class Interceptor {
         callInterceptMethod(target, targetClass, descriptor, args);
     }
     protected static <T> T callInterceptMethod(Object target, Class<?> targetClass, String descriptor, Object... args) throws NoInterceptionException {
+        long start = InterceptorStats.start();
+        try {
+            return InterceptorStats.intercepted(EntryPoint.CALL_INTERCEPT_METHOD, start, doCallInterceptMethod(target, targetClass, descriptor, args));
+        } catch (NoInterceptionException e) {
+            InterceptorStats.passed(EntryPoint.CALL_INTERCEPT_METHOD, start);
+            throw e;
+        }
+    }
+
+    private static <T> T doCallInterceptMethod(Object target, Class<?> targetClass, String descriptor, Object... args) throws NoInterceptionException {
         var interceptors = registeredInterceptors.get(targetClass);
         if (interceptors == null) {
             throw NO_INTERCEPTION;
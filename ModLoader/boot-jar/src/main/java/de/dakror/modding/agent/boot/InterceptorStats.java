@@ -0,0 +1,166 @@
+package de.dakror.modding.agent.boot;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Optional bookkeeping of what the injected prologues cost (-Dde.dakror.modding.interceptor.stats=true). Each entry
+// point counts its calls and sorts their durations into power-of-two nanosecond buckets, separately for calls that
+// were intercepted and calls that fell through to the original method. The counters are LongAdders, which spread
+// concurrent updates over cells instead of locking, so class loading on many threads doesn't queue up on them.
+// This lives in the boot jar next to Interceptor, so it can't use anything beyond java.base.
+public final class InterceptorStats {
+    public static final boolean ENABLED = Boolean.getBoolean("de.dakror.modding.interceptor.stats");
+    /** bucket i holds durations in [2^(i-1), 2^i) ns, bucket 0 just 0 ns */
+    public static final int BUCKETS = 40;
+
+    public static enum EntryPoint {
+        FIND_CLASS("findClass"),
+        FIND_CLASS_ON_CLASS_PATH("findClassOnClassPathOrNull"),
+        FIND_RESOURCE("findResource"),
+        FIND_RESOURCES("findResources"),
+        GET_RESOURCE("getResource"),
+        GET_RESOURCES("getResources"),
+        CALL_INTERCEPT_METHOD("callInterceptMethod");
+
+        public final String methodName;
+
+        EntryPoint(String methodName) {
+            this.methodName = methodName;
+        }
+    }
+
+    private static final class Histogram {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            buckets[Math.min(64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)), BUCKETS - 1)].increment();
+        }
+    }
+
+    // [entry point][0 = passed through, 1 = intercepted]
+    private static final Histogram[][] histograms = new Histogram[EntryPoint.values().length][2];
+
+    static {
+        if (ENABLED) {
+            for (var perEntry: histograms) {
+                perEntry[0] = new Histogram();
+                perEntry[1] = new Histogram();
+            }
+            if (!"false".equals(System.getProperty("de.dakror.modding.interceptor.stats.dump"))) {
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(snapshot()), "interceptor-stats"));
+            }
+        }
+    }
+
+    private InterceptorStats() { }
+
+    /** Where a timed call starts; 0 when the stats are off, which makes the record calls do nothing */
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /** Records an intercepted call and passes its result through */
+    static <T> T intercepted(EntryPoint entryPoint, long start, T result) {
+        if (ENABLED) {
+            histograms[entryPoint.ordinal()][1].record(System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    /** Records a call that went on to the original method */
+    static void passed(EntryPoint entryPoint, long start) {
+        if (ENABLED) {
+            histograms[entryPoint.ordinal()][0].record(System.nanoTime() - start);
+        }
+    }
+
+    public static Snapshot snapshot() {
+        var snapshot = new Snapshot();
+        if (!ENABLED) {
+            return snapshot;
+        }
+        for (var entryPoint: EntryPoint.values()) {
+            for (int intercepted = 0; intercepted < 2; intercepted++) {
+                var histogram = histograms[entryPoint.ordinal()][intercepted];
+                var counts = snapshot.buckets[entryPoint.ordinal()][intercepted];
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] = histogram.buckets[i].sum();
+                }
+                snapshot.counts[entryPoint.ordinal()][intercepted] = histogram.count.sum();
+                snapshot.totalNanos[entryPoint.ordinal()][intercepted] = histogram.totalNanos.sum();
+            }
+        }
+        return snapshot;
+    }
+
+    /** The counters at one point in time. Calls still in progress may show up in some numbers and not others */
+    public static final class Snapshot {
+        private final long[][] counts = new long[EntryPoint.values().length][2];
+        private final long[][] totalNanos = new long[EntryPoint.values().length][2];
+        private final long[][][] buckets = new long[EntryPoint.values().length][2][BUCKETS];
+
+        private Snapshot() { }
+
+        public long count(EntryPoint entryPoint, boolean intercepted) {
+            return counts[entryPoint.ordinal()][intercepted ? 1 : 0];
+        }
+
+        public long totalNanos(EntryPoint entryPoint, boolean intercepted) {
+            return totalNanos[entryPoint.ordinal()][intercepted ? 1 : 0];
+        }
+
+        public long[] buckets(EntryPoint entryPoint, boolean intercepted) {
+            return buckets[entryPoint.ordinal()][intercepted ? 1 : 0].clone();
+        }
+
+        /** An upper bound on the given percentile (0-100) of the durations, in ns, or 0 if there were no calls */
+        public long percentileNanos(EntryPoint entryPoint, boolean intercepted, double percentile) {
+            var counts = buckets[entryPoint.ordinal()][intercepted ? 1 : 0];
+            var total = count(entryPoint, intercepted);
+            if (total == 0) {
+                return 0;
+            }
+            var wanted = (long)Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= wanted) {
+                    return i == 0 ? 0 : 1L << i;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            var out = new StringBuilder("Interceptor call latencies (ns, percentiles are bucket upper bounds):\n");
+            out.append(String.format("  %-28s %-12s %10s %12s %10s %10s %10s %10s%n", "entry point", "", "calls", "total ms", "mean", "p50", "p99", "max"));
+            for (var entryPoint: EntryPoint.values()) {
+                for (int intercepted = 1; intercepted >= 0; intercepted--) {
+                    var isIntercepted = intercepted == 1;
+                    var calls = count(entryPoint, isIntercepted);
+                    if (calls == 0) {
+                        continue;
+                    }
+                    var total = totalNanos(entryPoint, isIntercepted);
+                    out.append(String.format("  %-28s %-12s %10d %12.3f %10d %10d %10d %10d%n",
+                        entryPoint.methodName, isIntercepted ? "intercepted" : "passed",
+                        calls, total / 1000000.0, total / calls,
+                        percentileNanos(entryPoint, isIntercepted, 50),
+                        percentileNanos(entryPoint, isIntercepted, 99),
+                        percentileNanos(entryPoint, isIntercepted, 100)));
+                }
+            }
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package de.dakror.modding.agent.boot;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Names a loader was asked for and didn't have. Games and libraries probe for plenty of things that aren't there
+// (translations, optional configs, Class.forName checks), and each of those otherwise walks the whole class path and
+// every hook check again. A miss is only remembered while the class path's index (see UcpIndex) covers the whole
+// class path, under the index's generation at the time: nothing but jars, none appended since, so what wasn't there
+// stays that way until the index is rebuilt, which drops the misses remembered before. Whoever changes what the loader
+// can find otherwise (hooks more classes) must still clear() it. It holds at most CAPACITY names and simply starts over
+// when full, since the same few misses tend to repeat.
+public final class MissCache {
+    public static final int CAPACITY = Integer.getInteger("de.dakror.modding.missCache", 4096);
+
+    private final Set<String> names = ConcurrentHashMap.newKeySet();
+    private volatile boolean enabled = CAPACITY > 0;
+    // the index generation the names were looked up under
+    private volatile int generation = -1;
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    // whether name was a miss under the given index generation; never for a negative one (no index that covers the
+    // class path)
+    boolean contains(String name, int generation) {
+        if (!enabled || generation < 0) {
+            return false;
+        }
+        lookups.increment();
+        if (generation == this.generation && names.contains(name)) {
+            hits.increment();
+            return true;
+        }
+        return false;
+    }
+
+    // remembers a miss looked up under the given index generation, which must have been read before the lookup; a
+    // newer one than before drops what was remembered under the old one
+    synchronized void add(String name, int generation) {
+        if (!enabled || generation < 0 || generation < this.generation) {
+            return;
+        }
+        if (generation > this.generation) {
+            names.clear();
+            this.generation = generation;
+        }
+        if (names.size() >= CAPACITY) {
+            names.clear();
+            overflows.increment();
+        }
+        names.add(name);
+    }
+
+    public void clear() {
+        names.clear();
+    }
+
+    // e.g. while files may appear in a mod directory at any time
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled && CAPACITY > 0;
+        names.clear();
+    }
+
+    public void resetStats() {
+        lookups.reset();
+        hits.reset();
+        overflows.reset();
+    }
+
+    @Override
+    public String toString() {
+        if (!enabled) {
+            return "off";
+        }
+        var lookupCount = lookups.sum();
+        var hitCount = hits.sum();
+        return String.format("%d of %d lookups were known misses (%.1f%%), %d names cached, %d overflows",
+                             hitCount, lookupCount, lookupCount == 0 ? 0.0 : 100.0 * hitCount / lookupCount, names.size(), overflows.sum());
+    }
+}
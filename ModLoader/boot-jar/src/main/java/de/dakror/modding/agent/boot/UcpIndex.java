@@ -0,0 +1,190 @@
+package de.dakror.modding.agent.boot;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarFile;
+
+import jdk.internal.loader.Resource;
+import jdk.internal.loader.URLClassPath;
+
+// Which jars on a URLClassPath hold which packages. A URLClassPath looks a name up in every jar in turn until one has
+// it, so with the game and dozens of mod jars appended to the class path, every lookup that isn't in the game jar
+// probes all of them. With the index, a lookup goes straight to the jars that have anything in that package.
+// The index works on the class path's own loaders (the ones it opens each jar with, manifest Class-Path jars included,
+// in search order), so no jar is opened twice and a Resource is exactly what the full path would have made. It only
+// answers while it covers every entry of the class path: a directory, or any other entry that isn't a plain jar,
+// turns it off, and so does a URL appended since the last refresh() (by anyone), until refresh() sees it. While it
+// covers the class path, what none of its jars has isn't on the class path at all, so a miss is answered right away;
+// only while it's off does the full class path get asked.
+public final class UcpIndex {
+    public static final boolean ENABLED = !"false".equals(System.getProperty("de.dakror.modding.ucpindex"));
+
+    private static final Object[] NO_LOADERS = new Object[0];
+
+    // URLClassPath.getLoader(int) and Loader.getResource(String, boolean), and what tells jar loaders apart; all
+    // private to URLClassPath, but java.base opens jdk.internal.loader to us (see AgentTrampoline.hookClassLoader)
+    private static final MethodHandle GET_LOADER;
+    private static final MethodHandle LOADER_GET_RESOURCE;
+    private static final MethodHandle GET_JAR_FILE;
+    private static final Class<?> JAR_LOADER;
+    static {
+        MethodHandle getLoader = null, loaderGetResource = null, getJarFile = null;
+        Class<?> jarLoader = null;
+        try {
+            var lookup = MethodHandles.privateLookupIn(URLClassPath.class, MethodHandles.lookup());
+            var loader = lookup.findClass(URLClassPath.class.getName() + "$Loader");
+            jarLoader = lookup.findClass(URLClassPath.class.getName() + "$JarLoader");
+            getLoader = lookup.findVirtual(URLClassPath.class, "getLoader", MethodType.methodType(loader, int.class))
+                              .asType(MethodType.methodType(Object.class, URLClassPath.class, int.class));
+            loaderGetResource = lookup.findVirtual(loader, "getResource", MethodType.methodType(Resource.class, String.class, boolean.class))
+                                      .asType(MethodType.methodType(Resource.class, Object.class, String.class, boolean.class));
+            getJarFile = lookup.findVirtual(jarLoader, "getJarFile", MethodType.methodType(JarFile.class))
+                               .asType(MethodType.methodType(JarFile.class, Object.class));
+        } catch (ReflectiveOperationException|RuntimeException e) {
+            System.err.println("Class path index unavailable: " + e);
+        }
+        GET_LOADER = getLoader;
+        LOADER_GET_RESOURCE = loaderGetResource;
+        GET_JAR_FILE = getJarFile;
+        JAR_LOADER = jarLoader;
+    }
+
+    // what lookups read, replaced as a whole on every refresh
+    private static final class State {
+        // the class path's URL count when this was built; more than that means it's out of date
+        final int urlCount;
+        // package name -> the loaders of the jars that have anything in it, in search order
+        final Map<String, Object[]> packages;
+        // bumped on every refresh that leaves the index covering the class path
+        final int generation;
+
+        State(int urlCount, Map<String, Object[]> packages, int generation) {
+            this.urlCount = urlCount;
+            this.packages = packages;
+            this.generation = generation;
+        }
+    }
+
+    private final URLClassPath ucp;
+    // loaders indexed so far, with the packages each has, in search order
+    private final List<Object> indexedLoaders = new ArrayList<>();
+    private final Map<String, List<Object>> loadersByPackage = new HashMap<>();
+    private int generation = 0;
+    // null while the index doesn't cover the class path
+    private volatile State state = null;
+
+    UcpIndex(URLClassPath ucp) {
+        this.ucp = ucp;
+    }
+
+    // Takes in whatever was appended to the class path since the last call
+    public synchronized void refresh() {
+        state = null;
+        if (GET_LOADER == null) {
+            return;
+        }
+        var urlCount = ucp.getURLs().length;
+        try {
+            // opens every entry, as the first lookup that isn't found would; the loaders indexed before stay in place,
+            // since the class path only ever grows at the end
+            for (int i = indexedLoaders.size(); ; i++) {
+                var loader = (Object)GET_LOADER.invokeExact(ucp, i);
+                if (loader == null) {
+                    break;
+                }
+                if (!JAR_LOADER.isInstance(loader)) {
+                    // a directory can change under us, so it can't be indexed
+                    return;
+                }
+                var jarPackages = new LinkedHashSet<String>();
+                var entries = ((JarFile)GET_JAR_FILE.invokeExact(loader)).entries();
+                while (entries.hasMoreElements()) {
+                    var name = entries.nextElement().getName();
+                    if (name.startsWith("META-INF/versions/")) {
+                        // a multi-release entry stands in for the same name without the prefix
+                        var slash = name.indexOf('/', "META-INF/versions/".length());
+                        if (slash < 0) {
+                            continue;
+                        }
+                        name = name.substring(slash + 1);
+                    }
+                    jarPackages.add(packageOf(name));
+                }
+                for (var packageName: jarPackages) {
+                    loadersByPackage.computeIfAbsent(packageName, p -> new ArrayList<>()).add(loader);
+                }
+                indexedLoaders.add(loader);
+            }
+        } catch (Throwable e) {
+            System.err.println("Could not index the class path: " + e);
+            return;
+        }
+        var packages = new HashMap<String, Object[]>(loadersByPackage.size() * 2);
+        for (var entry: loadersByPackage.entrySet()) {
+            packages.put(entry.getKey(), entry.getValue().toArray());
+        }
+        state = new State(urlCount, packages, ++generation);
+    }
+
+    // the index as it stands, or null if it doesn't cover the class path as it is right now
+    private State current() {
+        var current = state;
+        return current != null && ucp.getURLs().length == current.urlCount ? current : null;
+    }
+
+    // the resource from the first jar that has it, or null if none has it; NO_INTERCEPTION if the index doesn't cover
+    // the class path right now, so the full class path has the last word
+    UcpResource getResource(String name, boolean check) throws Interceptor.NoInterceptionException {
+        var current = current();
+        if (current == null) {
+            throw Interceptor.NO_INTERCEPTION;
+        }
+        for (var loader: current.packages.getOrDefault(packageOf(name), NO_LOADERS)) {
+            Resource resource;
+            try {
+                resource = (Resource)LOADER_GET_RESOURCE.invokeExact(loader, name, check);
+            } catch (RuntimeException|Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+            if (resource != null) {
+                return UcpResource.Proxy.of(resource);
+            }
+        }
+        return null;
+    }
+
+    // Bumped whenever the index is rebuilt to cover a changed class path; -1 while it doesn't cover the class path as
+    // it is right now (a directory on it, or a URL appended since), so what's found or not found can't be trusted to
+    // stay that way
+    public int generation() {
+        var current = current();
+        return current == null ? -1 : current.generation;
+    }
+
+    public boolean isActive() {
+        return current() != null;
+    }
+
+    public synchronized int indexedJars() {
+        return indexedLoaders.size();
+    }
+
+    @Override
+    public String toString() {
+        var current = current();
+        return "UcpIndex["+indexedJars()+" jars, "+(current == null ? "inactive" : current.packages.size()+" packages")+"]";
+    }
+
+    private static String packageOf(String name) {
+        var slash = name.lastIndexOf('/');
+        return slash < 0 ? "" : name.substring(0, slash);
+    }
+}
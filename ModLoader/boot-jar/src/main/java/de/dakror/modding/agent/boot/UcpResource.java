@@ -1,6 +1,5 @@
 package de.dakror.modding.agent.boot;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.JarURLConnection;
@@ -208,7 +207,9 @@ public abstract class UcpResource {
         private URL codeSourceURL = null;
         private int contentLength = -1;
         private final UcpResource.Metadata metadata;
-        private final byte[] data;
+        // class/resource content supplied in-memory; handed to the JVM as-is via getByteBuffer() so
+        // that BuiltinClassLoader.defineClass(ByteBuffer) doesn't need a byte[] copy of its own
+        private final ByteBuffer data;
 
 
         public UrlProxy(String name, URL url) {
@@ -240,6 +241,12 @@ public abstract class UcpResource {
             this(name, url, codeSourceURL, data, null);
         }
         public UrlProxy(String name, URL url, URL codeSourceURL, byte[] data, UcpResource.Metadata metadata) {
+            this(name, url, codeSourceURL, ByteBuffer.wrap(data), metadata);
+        }
+        public UrlProxy(String name, URL url, URL codeSourceURL, ByteBuffer data) {
+            this(name, url, codeSourceURL, data, null);
+        }
+        public UrlProxy(String name, URL url, URL codeSourceURL, ByteBuffer data, UcpResource.Metadata metadata) {
             this.name = name;
             this.url = url;
             this.codeSourceURL = codeSourceURL;
@@ -267,14 +274,14 @@ public abstract class UcpResource {
         @Override
         public InputStream getInputStream() throws IOException {
             if (data != null) {
-                return new ByteArrayInputStream(data);
+                return new ByteBufferInputStream(data.duplicate());
             }
             return getInputStream.apply(url);
         }
         @Override
         public int getContentLength() throws IOException {
             if (data != null) {
-                return data.length;
+                return data.remaining();
             }
             if (contentLength == -1) {
                 contentLength = getContentLength.apply(url);
@@ -283,12 +290,19 @@ public abstract class UcpResource {
         }
         @Override
         public ByteBuffer getByteBuffer() throws IOException {
-            return ByteBuffer.wrap(getBytes());
+            if (data != null) {
+                // a duplicate shares the backing storage, so direct and array-backed buffers both reach
+                // defineClass without a copy (and read-only buffers stay read-only)
+                return data.duplicate();
+            }
+            return ByteBuffer.wrap(getInputStream().readAllBytes());
         }
         @Override
         public byte[] getBytes() throws IOException {
             if (data != null) {
-                return data.clone();
+                var bytes = new byte[data.remaining()];
+                data.duplicate().get(bytes);
+                return bytes;
             }
             return getInputStream().readAllBytes();
         }
@@ -306,6 +320,40 @@ public abstract class UcpResource {
         }
     }
 
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+        @Override
+        public long skip(long n) {
+            var skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
     public static UcpResource of(String name, URL url) {
         return new UrlProxy(name, url);
     }
@@ -339,6 +387,12 @@ public abstract class UcpResource {
     public static UcpResource of(String name, CodeSource codeSource, byte[] data, UcpResource.Metadata metadata) throws MalformedURLException {
         return new UrlProxy(name, urlFor(codeSource, name), urlFor(codeSource), data, metadata);
     }
+    public static UcpResource of(String name, URL url, URL codeSourceURL, ByteBuffer data, UcpResource.Metadata metadata) {
+        return new UrlProxy(name, url, codeSourceURL, data, metadata);
+    }
+    public static UcpResource of(String name, CodeSource codeSource, ByteBuffer data) throws MalformedURLException {
+        return new UrlProxy(name, urlFor(codeSource, name), urlFor(codeSource), data, Metadata.of(codeSource));
+    }
     public static UcpResource of(String name, URL url, UcpResource origResource) {
         return new UrlProxy(name, url, origResource.getCodeSourceURL(), origResource::getInputStream, origResource::getContentLength, Metadata.of(origResource));
     }
@@ -369,11 +423,11 @@ public abstract class UcpResource {
         return new EnumerationConverter<>(urls, u -> origResources.hasMoreElements() ? ofResource(name, u, origResources.nextElement()) : of(name, u));
     }
     public static Enumeration<UcpResource> enumerationOfResources(Enumeration<Resource> resources) {
-        return new EnumerationConverter<>(resources, UcpResource.Proxy::new);
+        return new EnumerationConverter<>(resources, UcpResource.Proxy::of);
     }
 
     static Enumeration<Resource> asResourceEnumeration(Enumeration<UcpResource> ucpResources) {
-        return new EnumerationConverter<UcpResource, Resource>(ucpResources, UcpResource.ReverseProxy::new);
+        return new EnumerationConverter<UcpResource, Resource>(ucpResources, UcpResource.ReverseProxy::of);
     }
 
     static class EnumerationConverter<T, U> implements Enumeration<U> {
@@ -0,0 +1,200 @@
+package de.dakror.modding.processor;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+
+/**
+ * Writes {@value #INDEX_DIR}{@code <name>.index}: every class of the compilation that carries an annotation, with its superclass and
+ * the annotations' values, so the ModLoader's scanner can find mods and patches without reading every class file.
+ * <p>
+ * The format is line-based, in UTF-8. A class line holds the class's internal name and its superclass, separated by a
+ * tab. It's followed by one line per annotation, each starting with a tab: the annotation's internal name, then a
+ * tab-separated {@code name=value} for each element given explicitly. Annotation types also get a {@code !defaults}
+ * line with their default values. Values are only recorded for {@code RUNTIME} annotations, the same ones the scanner
+ * reads values from, in the scanner's string form: primitives and strings as they are, classes by binary name, enum
+ * constants by name, and arrays as their elements joined by commas, with commas and backslashes in an element escaped
+ * by a backslash. Nested annotations have no such form and are left out with a warning. Backslashes, tabs and line
+ * breaks in values are escaped with a backslash.
+ * <p>
+ * The name comes from the {@code -A}{@value #NAME_OPTION} option and should be the module's own, so that jars merged
+ * into one (as the bundled ModLoader.jar is) keep every module's index side by side; the scanner reads all of them.
+ * <p>
+ * Every class is indexed on every build, so the processor isn't incremental; a partial index would hide mods.
+ */
+@SupportedAnnotationTypes("*")
+@SupportedOptions(ModIndexProcessor.NAME_OPTION)
+public class ModIndexProcessor extends AbstractProcessor {
+    public static final String INDEX_DIR = "META-INF/dd-modloader/";
+    public static final String NAME_OPTION = "modindex.name";
+    public static final String HEADER = "# dd-modloader mod index v1";
+
+    private final Map<String, StringBuilder> classes = new TreeMap<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeIndex();
+        } else {
+            for (var element: roundEnv.getRootElements()) {
+                collect(element);
+            }
+        }
+        // we only look, other processors still get to claim the annotations
+        return false;
+    }
+
+    private void collect(Element element) {
+        if (!(element instanceof TypeElement)) {
+            return;
+        }
+        var type = (TypeElement)element;
+        var lines = new StringBuilder();
+        for (var annotation: type.getAnnotationMirrors()) {
+            var annotationType = (TypeElement)annotation.getAnnotationType().asElement();
+            var retention = annotationType.getAnnotation(Retention.class);
+            var policy = retention == null ? RetentionPolicy.CLASS : retention.value();
+            if (policy == RetentionPolicy.SOURCE) {
+                // never makes it to the class file, so the scanner wouldn't see it either
+                continue;
+            }
+            lines.append('\t').append(internalName(annotationType));
+            if (policy == RetentionPolicy.RUNTIME) {
+                appendValues(lines, type, annotation.getElementValues());
+            }
+            lines.append('\n');
+        }
+        if (type.getKind() == ElementKind.ANNOTATION_TYPE) {
+            var defaults = new StringBuilder();
+            for (var member: type.getEnclosedElements()) {
+                if (member.getKind() == ElementKind.METHOD) {
+                    var method = (ExecutableElement)member;
+                    appendValue(defaults, type, method.getSimpleName().toString(), method.getDefaultValue());
+                }
+            }
+            if (defaults.length() > 0) {
+                lines.append("\t!defaults").append(defaults).append('\n');
+            }
+        }
+        if (lines.length() > 0) {
+            var superclass = type.getSuperclass();
+            var superName = superclass.getKind() == TypeKind.DECLARED ? internalName((TypeElement)((DeclaredType)superclass).asElement()) : "java/lang/Object";
+            classes.put(internalName(type), new StringBuilder(internalName(type)).append('\t').append(superName).append('\n').append(lines));
+        }
+        for (var member: type.getEnclosedElements()) {
+            collect(member);
+        }
+    }
+
+    private void appendValues(StringBuilder line, Element element, Map<? extends ExecutableElement, ? extends AnnotationValue> values) {
+        for (var entry: values.entrySet()) {
+            appendValue(line, element, entry.getKey().getSimpleName().toString(), entry.getValue());
+        }
+    }
+
+    private void appendValue(StringBuilder line, Element element, String name, AnnotationValue annotationValue) {
+        if (annotationValue == null) {
+            return;
+        }
+        var text = valueText(annotationValue.getValue());
+        if (text == null) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                "Annotation value "+name+" = "+annotationValue+" can't be written to the mod index; the scanner won't see it", element);
+            return;
+        }
+        line.append('\t').append(name).append('=').append(escape(text));
+    }
+
+    /** The value as the scanner holds it, or null if it has no string form */
+    private String valueText(Object value) {
+        if (value instanceof TypeMirror) {
+            var typeValue = (TypeMirror)value;
+            if (typeValue.getKind() == TypeKind.DECLARED) {
+                return processingEnv.getElementUtils().getBinaryName((TypeElement)((DeclaredType)typeValue).asElement()).toString();
+            } else if (typeValue.getKind().isPrimitive() || typeValue.getKind() == TypeKind.VOID) {
+                return typeValue.toString();
+            }
+            return null;
+        } else if (value instanceof VariableElement) {
+            // an enum constant
+            return ((VariableElement)value).getSimpleName().toString();
+        } else if (value instanceof List) {
+            var elements = (List<?>)value;
+            var joined = new StringBuilder();
+            for (int i = 0; i < elements.size(); i++) {
+                var text = valueText(((AnnotationValue)elements.get(i)).getValue());
+                if (text == null) {
+                    return null;
+                }
+                if (i > 0) {
+                    joined.append(',');
+                }
+                joined.append(text.replace("\\", "\\\\").replace(",", "\\,"));
+            }
+            return joined.toString();
+        } else if (value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Character) {
+            return value.toString();
+        }
+        // a nested annotation
+        return null;
+    }
+
+    private String internalName(TypeElement type) {
+        return processingEnv.getElementUtils().getBinaryName(type).toString().replace('.', '/');
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private void writeIndex() {
+        try {
+            var name = processingEnv.getOptions().get(NAME_OPTION);
+            if (name == null || name.isEmpty()) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "No -A"+NAME_OPTION+" given, so the mod index is named \"main\"; "
+                                                         +"it will clash with any other unnamed index merged into the same jar");
+                name = "main";
+            }
+            var resource = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX_DIR + name + ".index");
+            try (Writer writer = new OutputStreamWriter(resource.openOutputStream(), StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.write('\n');
+                for (var lines: classes.values()) {
+                    writer.append(lines);
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Could not write mod index: "+e);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package de.dakror.modding.asm;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+
+import org.objectweb.asm.ClassReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading a jar's worth of class files (ASM's own) from streams: through {@link ClassReader#ClassReader(java.io.InputStream)},
+ * as before TransformContext, against {@link TransformContext#readClass} and a {@link TransformContext#scanClass} that
+ * walks the constant pool as the scanner does. Run with {@code gradle jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ClassReadBenchmark {
+    private final List<byte[]> classFiles = new ArrayList<>();
+
+    @Setup
+    public void readJar() throws Exception {
+        var jar = new File(ClassReader.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        try (var jarFile = new JarFile(jar)) {
+            for (var entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                var entry = entries.nextElement();
+                if (entry.getName().endsWith(".class") && !entry.getName().endsWith("module-info.class")) {
+                    try (var in = jarFile.getInputStream(entry)) {
+                        classFiles.add(in.readAllBytes());
+                    }
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void streamReader(Blackhole blackhole) throws IOException {
+        for (var code: classFiles) {
+            blackhole.consume(new ClassReader(new ByteArrayInputStream(code)));
+        }
+    }
+
+    @Benchmark
+    public void contextReadClass(Blackhole blackhole) throws IOException {
+        var context = TransformContext.current();
+        for (var code: classFiles) {
+            blackhole.consume(new ClassReader(context.readClass(new ByteArrayInputStream(code))));
+        }
+    }
+
+    @Benchmark
+    public void streamReaderReferences(Blackhole blackhole) throws IOException {
+        for (var code: classFiles) {
+            var references = new ArrayList<String>();
+            ModScanner.readClassReferences(new ClassReader(new ByteArrayInputStream(code)), references);
+            blackhole.consume(references);
+        }
+    }
+
+    @Benchmark
+    public void contextScanReferences(Blackhole blackhole) throws IOException {
+        var context = TransformContext.current();
+        for (var code: classFiles) {
+            var references = new ArrayList<String>();
+            try (var scan = context.scanClass(new ByteArrayInputStream(code))) {
+                ModScanner.readClassReferences(scan.reader, references);
+            }
+            blackhole.consume(references);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package de.dakror.modding.asm.augmentation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.dakror.modding.Patcher.ModEnum;
+import de.dakror.modding.asm.ASMModLoader;
+import de.dakror.modding.platform.JarBaker;
+
+/**
+ * Adding thousands of constants to an enum from a data file and emitting it: reading the rows, then transforming the
+ * enum with all of them. Each invocation starts over with a fresh mod loader, since constants can only be added until
+ * the enum is compiled. Run with {@code gradle jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EnumExtensionBenchmark {
+    public enum Kind {
+        STONE(1, "stone"), WOOD(2, "wood");
+
+        public final int weight;
+        public final String label;
+
+        Kind(int weight, String label) {
+            this.weight = weight;
+            this.label = label;
+        }
+    }
+
+    @ModEnum(Kind.class)
+    public static @interface KindType {
+        int weight();
+        String label() default "";
+    }
+
+    private static final String DATA_FILE = "bench/kinds.csv";
+
+    @Param({"1000", "10000"})
+    public int constants;
+
+    private Path dataDir;
+    private byte[] enumCode;
+    private ASMModLoader modLoader;
+
+    @Setup(Level.Trial)
+    public void writeData() throws IOException {
+        dataDir = Files.createTempDirectory("enum-bench");
+        var data = new StringBuilder();
+        for (int i = 0; i < constants; i++) {
+            data.append("KIND_").append(i).append(',').append(i).append(",\"kind ").append(i).append("\"\n");
+        }
+        Files.createDirectories(dataDir.resolve(DATA_FILE).getParent());
+        Files.writeString(dataDir.resolve(DATA_FILE), data);
+        try (var in = Kind.class.getResourceAsStream("/" + Kind.class.getName().replace('.', '/') + ".class")) {
+            enumCode = in.readAllBytes();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void newModLoader() throws Exception {
+        modLoader = (ASMModLoader)new JarBaker(List.of(dataDir)).createModLoader(new String[0]);
+    }
+
+    @Benchmark
+    public byte[] extendAndEmit() throws Exception {
+        modLoader.extendEnumFromData(Kind.class.getName(), KindType.class.getName(), DATA_FILE);
+        modLoader.freezeClassMods();
+        return modLoader.transformClass(Kind.class.getName(), enumCode);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteData() throws IOException {
+        try (Stream<Path> walk = Files.walk(dataDir)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package de.dakror.modding.platform;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Launching the game baked by {@link JarBaker} against launching it with the agent (and against the vanilla game),
+ * each in a JVM of its own. The game itself doesn't exit, so what's launched is {@link LoadAll}, which loads every
+ * class of the game jar, modded as the game would get it, and exits; that's the part of a launch baking saves.
+ * <p>
+ * It needs the game, ModLoader.jar (as installed by {@code gradle installJar}) and the StubLoader agent jar in the
+ * game's directory, named by {@code de.dakror.modding.bench.installdir}, {@code de.dakror.modding.bench.game} and
+ * {@code de.dakror.modding.bench.agent}; the build passes the directory and game from gradle.properties. The game is
+ * baked once, with the mods in the game's ./mods, as on launch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class BakeBenchmark {
+    /** Loads (without initializing) every class named in the jar given as its argument, from the class path, then exits */
+    public static class LoadAll {
+        public static void main(String[] args) throws Exception {
+            int loaded = 0, failed = 0;
+            try (var jarFile = new JarFile(args[0], false)) {
+                for (var entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                    var name = entries.nextElement().getName();
+                    if (!name.endsWith(".class") || name.startsWith("META-INF/") || name.endsWith("module-info.class")) {
+                        continue;
+                    }
+                    try {
+                        Class.forName(name.substring(0, name.length() - 6).replace('/', '.'), false, LoadAll.class.getClassLoader());
+                        loaded++;
+                    } catch (ClassNotFoundException|LinkageError e) {
+                        failed++;
+                    }
+                }
+            }
+            System.out.println(loaded+" classes loaded, "+failed+" failed");
+        }
+    }
+
+    private Path installDir;
+    private Path gameJar;
+    private Path modLoaderJar;
+    private Path agentJar;
+    private Path workDir;
+    private Path bakedJar;
+    private Path probeDir;
+
+    @Setup
+    public void bake() throws Exception {
+        installDir = Path.of(System.getProperty("de.dakror.modding.bench.installdir", "."));
+        gameJar = installDir.resolve(System.getProperty("de.dakror.modding.bench.game", "TheQuarry-full.jar"));
+        modLoaderJar = installDir.resolve("ModLoader.jar");
+        agentJar = installDir.resolve(System.getProperty("de.dakror.modding.bench.agent", "StubLoader.jar"));
+        for (var jar: List.of(gameJar, modLoaderJar, agentJar)) {
+            if (!Files.isRegularFile(jar)) {
+                throw new IllegalStateException("Needs "+jar+", see de.dakror.modding.bench.installdir");
+            }
+        }
+        workDir = Files.createTempDirectory("bake-bench");
+        bakedJar = workDir.resolve("baked.jar");
+        run(List.of("-cp", modLoaderJar.toString(), JarBaker.class.getName(), "-o", bakedJar.toString(), gameJar.toString()));
+
+        // just the probe, so nothing else ends up on the game's class path
+        probeDir = workDir.resolve("probe");
+        var probeName = LoadAll.class.getName().replace('.', '/') + ".class";
+        Files.createDirectories(probeDir.resolve(probeName).getParent());
+        try (var in = LoadAll.class.getResourceAsStream("/" + probeName)) {
+            Files.copy(in, probeDir.resolve(probeName));
+        }
+    }
+
+    @Benchmark
+    public void vanillaLaunch() throws Exception {
+        launch(List.of(), gameJar);
+    }
+
+    @Benchmark
+    public void agentLaunch() throws Exception {
+        launch(List.of("-javaagent:"+agentJar), gameJar);
+    }
+
+    @Benchmark
+    public void bakedLaunch() throws Exception {
+        launch(List.of(), bakedJar);
+    }
+
+    /** Loads the game's classes from the given jar; the baked one holds the modloader too, which isn't loaded */
+    private void launch(List<String> jvmArgs, Path classPath) throws Exception {
+        var command = new ArrayList<>(jvmArgs);
+        command.addAll(List.of("-cp", classPath + File.pathSeparator + probeDir, LoadAll.class.getName(), gameJar.toString()));
+        run(command);
+    }
+
+    /** Runs java with the arguments in the game's directory, so ./mods is found as on launch */
+    private void run(List<String> args) throws IOException, InterruptedException {
+        var command = new ArrayList<String>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(args);
+        var process = new ProcessBuilder(command)
+            .directory(installDir.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(workDir.resolve("output.log").toFile())
+            .start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException(String.join(" ", command)+" failed, see "+workDir.resolve("output.log"));
+        }
+    }
+
+    @TearDown
+    public void deleteWorkDir() throws IOException {
+        try (Stream<Path> walk = Files.walk(workDir)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
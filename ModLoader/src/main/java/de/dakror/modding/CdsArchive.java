@@ -0,0 +1,145 @@
+package de.dakror.modding;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import de.dakror.modding.agent.CachedFiles;
+
+/**
+ * Keeps a dynamic CDS archive ({@code -XX:ArchiveClassesAtExit}) in step with the installed mods. The archive has to
+ * be named on the JVM's command line, long before any of our code runs, so this writes the flags for the next launch
+ * into an argument file for the launcher to pass along ({@code java @modloader-cds.args -javaagent:...}): use the
+ * archive if there is one for the current mod set, or create it on exit if there isn't. Archives for any other mod
+ * set are deleted. The JVM leaves the classes we transform out of the archive, but the JDK, ASM, the agent and every
+ * untouched game class still come out of it.
+ * <p>
+ * Dynamic archives need Java 13 or later. An archive is only as good as the fingerprint of the mods it was made for,
+ * which covers each mod jar's size and timestamp; a mod directory can change without any of that showing, so with one
+ * installed (e.g. while developing it) there is no archive at all.
+ */
+public class CdsArchive implements ModAPI {
+    public static final boolean ENABLED = "true".equals(System.getProperty("de.dakror.modding.cds")) && Runtime.version().feature() >= 13;
+    public static final String ARGS_FILE = System.getProperty("de.dakror.modding.cds.args", "modloader-cds.args");
+    public static final String ARCHIVE_DIR = System.getProperty("de.dakror.modding.cds.dir",
+        Path.of(System.getProperty("user.home"), ".dd-modloader", "cds").toString());
+    private static final String USE_FLAG = "-XX:SharedArchiveFile=";
+    private static final String CREATE_FLAG = "-XX:ArchiveClassesAtExit=";
+
+    private final Path archivePath;
+    private final List<String> jvmArguments;
+    /** false if a mod is a directory, see above */
+    private final boolean usable;
+    /** what this JVM is doing with the archive: "using", "creating" or "off" */
+    private final String state;
+
+    public CdsArchive(List<URL> modUrls) {
+        archivePath = Path.of(ARCHIVE_DIR).resolve("modded-" + fingerprint(modUrls) + ".jsa").toAbsolutePath();
+        jvmArguments = getJvmArguments();
+        usable = modUrls.stream().noneMatch(CdsArchive::isDirectory);
+        if (jvmArguments.contains(USE_FLAG + archivePath)) {
+            state = "using";
+        } else if (jvmArguments.contains(CREATE_FLAG + archivePath)) {
+            state = "creating";
+        } else {
+            state = "off";
+        }
+    }
+
+    /** Points the argument file at the right archive for this mod set and clears out the ones for other mod sets */
+    public void update() {
+        // if we're creating it now, it'll be there by the time the next launch reads the argument file
+        var flag = state.equals("creating") || Files.isRegularFile(archivePath) ? USE_FLAG : CREATE_FLAG;
+        // argument files treat backslashes in quotes as escapes; without an archive, the launcher still passes the file
+        var args = usable ? "\"" + (flag + archivePath).replace("\\", "\\\\") + "\"" + System.lineSeparator() : "";
+        try {
+            // the JVM won't create the directory when it dumps the archive; nobody else gets to put one there for us
+            CachedFiles.privateDirectory(archivePath.getParent());
+            var argsPath = Path.of(ARGS_FILE);
+            if (!Files.isRegularFile(argsPath) || !Files.readString(argsPath).equals(args)) {
+                Files.writeString(argsPath, args);
+                debugln("CDS: wrote %s for next launch: %s", argsPath, usable ? flag + archivePath : "no archive");
+            }
+        } catch (IOException e) {
+            logln(Debug.Level.WARN, "CDS: could not write argument file: %s", e);
+        }
+        removeStaleArchives();
+        if (usable) {
+            debugln("CDS archive for this mod set: %s (%s)", archivePath, state);
+        } else {
+            debugln("CDS: off while a mod is a directory");
+        }
+    }
+
+    private void removeStaleArchives() {
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(archivePath.getParent(), "modded-*.jsa")) {
+            for (var entry: dirStream) {
+                var path = entry.toAbsolutePath();
+                if ((usable && path.equals(archivePath)) || jvmArguments.contains(USE_FLAG + path)) {
+                    continue;
+                }
+                try {
+                    Files.delete(path);
+                    debugln("CDS: removed stale archive %s", path);
+                } catch (IOException e) {
+                    // probably still mapped by another running instance, try again next time
+                }
+            }
+        } catch (IOException e) { }
+    }
+
+    /** Logs how long it took from JVM start to the game's main class, to compare launches with and without the archive */
+    public void reportStartup() {
+        ProcessHandle.current().info().startInstant().ifPresent(start -> {
+            var elapsed = Duration.between(start, Instant.now()).toMillis();
+            debugln("CDS: reached main class %d ms after JVM start (archive %s)", elapsed, state);
+        });
+    }
+
+    /** Changes whenever anything that ends up in the archive could have */
+    private static String fingerprint(List<URL> modUrls) {
+        var input = new StringBuilder();
+        input.append(System.getProperty("java.home")).append('\n')
+             .append(System.getProperty("java.vm.version")).append('\n')
+             .append(System.getProperty("java.class.path")).append('\n');
+        for (var url: modUrls) {
+            input.append(url).append('\n');
+            try {
+                var file = new File(url.toURI());
+                if (file.isFile()) {
+                    input.append(file.length()).append(' ').append(file.lastModified()).append('\n');
+                }
+            } catch (URISyntaxException|IllegalArgumentException e) { }
+        }
+        try {
+            return CachedFiles.sha256(input.toString()).substring(0, 32);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean isDirectory(URL url) {
+        try {
+            return new File(url.toURI()).isDirectory();
+        } catch (URISyntaxException|IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static List<String> getJvmArguments() {
+        try {
+            return ManagementFactory.getRuntimeMXBean().getInputArguments();
+        } catch (LinkageError e) {
+            // runtime image without java.management
+            return ProcessHandle.current().info().arguments().map(List::of).orElse(List.of());
+        }
+    }
+}
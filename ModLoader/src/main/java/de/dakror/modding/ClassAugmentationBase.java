@@ -1,24 +1,34 @@
 package de.dakror.modding;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class ClassAugmentationBase<T, C> implements ModLoader.IClassAugmentation, ModLoader.IClassMod<T, C> {
     // maps all classes in an aug chain to the AugmentationChain object
-    protected Map<String, AugmentationChain> augmentationChains = new HashMap<>();
+    protected Map<String, AugmentationChain> augmentationChains = new ConcurrentHashMap<>();
+    // only filled in while mods register, and frozen (see ModLoader.IClassMod.freeze()) before any class is transformed,
+    // so the class-loading threads only ever read it; read it with getOrDefault, a frozen get() always gives null
     protected Map<String, Map<String, String>> affectedClasses = DefaultingHashMap.using(HashMap::new);
 
     public void augmentClass(String baseClass, String augmentationClass) {
         assert baseClass != augmentationClass;
-        var augChain = augmentationChains.getOrDefault(baseClass, newAugmentationChain(baseClass));
+        // not getOrDefault: a new chain registers itself, which would replace the one already there
+        var augChain = augmentationChains.get(baseClass);
+        if (augChain == null) {
+            augChain = newAugmentationChain(baseClass);
+        }
         var subChain = augmentationChains.get(augmentationClass);
 
         // augChain.addAugmentation() also adds the item to this.augmentationChains, so we need to fetch subChain beforehand
         if (augChain.addAugmentation(augmentationClass) && subChain != null && subChain != augChain) {
             // this aug class had a chain of its own, add all its augments to the base, forcing them to the end of the list
-            subChain.augmentations.forEach(subAug -> augChain.addAugmentation(subAug, true));
+            var baseChain = augChain;
+            subChain.augmentations.forEach(subAug -> baseChain.addAugmentation(subAug, true));
         }
     }
 
@@ -29,13 +39,20 @@ public abstract class ClassAugmentationBase<T, C> implements ModLoader.IClassAug
         return augmentationChains.containsKey(className) || affectedClasses.containsKey(className);
     }
 
+    @Override
+    public Collection<String> hookedClasses() {
+        var names = new HashSet<>(augmentationChains.keySet());
+        names.addAll(affectedClasses.keySet());
+        return names;
+    }
+
     @Override
     public T redefineClass(String className, T classDef, C context) throws ClassNotFoundException {
         var augChain = augmentationChains.get(className);
         if (augChain != null) {
             return augChain.redefineClass(className, classDef, context);
         } else {
-            return redefineAffectedClass(className, classDef, context, affectedClasses.get(className));
+            return redefineAffectedClass(className, classDef, context, affectedClasses.getOrDefault(className, Map.of()));
         }
     }
 
@@ -45,7 +62,8 @@ public abstract class ClassAugmentationBase<T, C> implements ModLoader.IClassAug
         public String baseName;
         public String augmentedName;
         public List<String> augmentations = new ArrayList<>();
-        protected boolean compiled = false;
+        // set by whichever class-loading thread redefines the base class first
+        protected volatile boolean compiled = false;
 
         protected AugmentationChain(String baseClass) {
             baseName = baseClass;
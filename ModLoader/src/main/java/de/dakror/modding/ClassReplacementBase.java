@@ -1,5 +1,6 @@
 package de.dakror.modding;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -11,6 +12,11 @@ abstract public class ClassReplacementBase<T, C> implements ModLoader.IClassRepl
         return replacedClasses.containsKey(className);
     }
 
+    @Override
+    public Collection<String> hookedClasses() {
+        return replacedClasses.keySet();
+    }
+
     @Override
     public void replaceClass(String replacedClass, String replacementClass) {
         replacedClasses.put(replacedClass, replacementClass);
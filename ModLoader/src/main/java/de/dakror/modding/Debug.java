@@ -1,61 +1,280 @@
 package de.dakror.modding;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Log output for the mod loader and mods. Every message has a level, and each subsystem (the outermost class of the
+ * source shown in the output, e.g. {@code ModScanner}) can have its own threshold on top of the default one:
+ * {@code -Dde.dakror.modding.log=info -Dde.dakror.modding.log.ModScanner=trace}. A message below every threshold is
+ * dropped before it is formatted or its caller looked up.
+ * <p>
+ * Output goes to {@code System.out}, or to the file named by {@code de.dakror.modding.log.file}, from a background
+ * thread (started with the first line that gets logged) so that logging from the game never waits on the console. {@code -Dde.dakror.modding.log.async=false}
+ * writes on the calling thread instead, which keeps the output in step with anything else printed.
+ */
 public class Debug implements AutoCloseable {
+    public static enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+    public static final String PROPERTY = "de.dakror.modding.log";
+    private static final StackWalker WALKER = StackWalker.getInstance();
+    private static final Map<String, Level> levels = new ConcurrentHashMap<>();
+    private static volatile Level defaultLevel = Level.DEBUG;
+    /** the most verbose threshold of any subsystem, so most disabled calls don't need to know who's calling */
+    private static volatile Level minLevel = Level.DEBUG;
+    /** the nesting of enter/exit scopes, per thread, since each thread enters and exits its own */
+    private static final ThreadLocal<int[]> indent = ThreadLocal.withInitial(() -> new int[] { 1 });
+    /** the width of the source column, grown to fit the longest source so far (up to 40) */
+    private static final AtomicInteger maxSourceLen = new AtomicInteger(1);
+
+    /** only opened (and its writer thread started) once there's something to write */
+    private static final class OutputHolder {
+        static final Output output = new Output();
+    }
+
+    static {
+        defaultLevel = parseLevel(System.getProperty(PROPERTY), defaultLevel);
+        for (var key: System.getProperties().stringPropertyNames()) {
+            if (key.startsWith(PROPERTY+".") && !key.equals(PROPERTY+".file") && !key.equals(PROPERTY+".async")) {
+                levels.put(key.substring(PROPERTY.length()+1), parseLevel(System.getProperty(key), defaultLevel));
+            }
+        }
+        updateMinLevel();
+    }
+
+    private static Level parseLevel(String name, Level fallback) {
+        if (name == null || name.isEmpty()) {
+            return fallback;
+        }
+        try {
+            return Level.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    private static synchronized void updateMinLevel() {
+        var min = defaultLevel;
+        for (var level: levels.values()) {
+            if (level.compareTo(min) < 0) {
+                min = level;
+            }
+        }
+        minLevel = min;
+    }
+
+    public static void setLevel(Level level) {
+        defaultLevel = level;
+        updateMinLevel();
+    }
+
+    public static void setLevel(String subsystem, Level level) {
+        levels.put(subsystem, level);
+        updateMinLevel();
+    }
+
+    /** Whether any subsystem logs at this level; callers can check it before building an expensive message */
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(minLevel) >= 0;
+    }
+
+    public static boolean isEnabled(Level level, String source) {
+        if (!isEnabled(level)) {
+            return false;
+        }
+        var end = source.indexOf('.');
+        var subsystem = end < 0 ? source : source.substring(0, end);
+        return level.compareTo(levels.getOrDefault(subsystem, defaultLevel)) >= 0;
+    }
+
     public static void println(String msg, String source) {
-        if (source.length() > maxSourceLen) {
-            maxSourceLen = Math.min(source.length(), 40);
+        log(Level.DEBUG, source, msg);
+    }
+
+    public static void log(Level level, String source, String msg) {
+        if (isEnabled(level, source)) {
+            write(level, source, msg);
         }
-        System.out.println(String.format("%"+maxSourceLen+"s:%"+indent+"s%s", source,"",msg));
     }
 
     public static void println(String msg) {
-        println(msg, 1);
+        log(Level.DEBUG, 1, msg, null);
     }
 
     protected static void println(String msg, int stackOffset) {
-        println(msg, getCaller(stackOffset).getClassName().replaceAll(".*\\.", "").replaceAll(".*-(\\w+)[+>]","$1.").replace('$','.'));
+        log(Level.DEBUG, stackOffset + 1, msg, null);
     }
 
     public static void formatln(String format, Object... args) {
-        println(String.format(format, args));
+        log(Level.DEBUG, 1, format, args);
+    }
+
+    /** Logs the message, formatted with args unless those are null, as coming from the caller stackOffset frames up */
+    protected static void log(Level level, int stackOffset, String format, Object[] args) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        var source = sourceName(getCaller(stackOffset));
+        if (isEnabled(level, source)) {
+            write(level, source, args == null ? format : String.format(format, args));
+        }
+    }
+
+    private static String sourceName(StackWalker.StackFrame caller) {
+        return caller.getClassName().replaceAll(".*\\.", "").replaceAll(".*-(\\w+)[+>]","$1.").replace('$','.');
+    }
+
+    private static void write(Level level, String source, String msg) {
+        var width = maxSourceLen.accumulateAndGet(Math.min(source.length(), 40), Math::max);
+        var prefix = level == Level.DEBUG ? "" : level + " ";
+        OutputHolder.output.write(String.format("%"+width+"s:%"+indent.get()[0]+"s%s%s", source, "", prefix, msg));
     }
 
     public static void enter() {
         enter(1);
     }
     public static void enter(int stackOffset) {
-        enter(getCaller(stackOffset).getMethodName(), stackOffset + 1);
+        if (isEnabled(Level.DEBUG)) {
+            enter(getCaller(stackOffset).getMethodName(), stackOffset + 1);
+        } else {
+            indent.get()[0] += 2;
+        }
     }
 
     public static void enter(String msg) {
         enter(msg, 1);
     }
     public static void enter(String msg, int stackOffset) {
-        println("entering "+msg, stackOffset + 1);
-        Debug.indent += 2;
+        log(Level.DEBUG, stackOffset + 1, "entering "+msg, null);
+        indent.get()[0] += 2;
     }
 
     public static void exit(String msg) {
         // println("exiting "+msg);
-        Debug.indent -= 2;
+        indent.get()[0] -= 2;
     }
-    protected static int indent = 1;
-    protected static int maxSourceLen = 1;
 
-    protected static StackTraceElement getCaller() {
+    protected static StackWalker.StackFrame getCaller() {
         return getCaller(1);
     }
-    protected static StackTraceElement getCaller(int offset) {
-        return Thread.currentThread().getStackTrace()[offset+3];
+    protected static StackWalker.StackFrame getCaller(int offset) {
+        // frame 0 is this method, 1 is whoever asked, and the offset counts from their caller
+        return WALKER.walk(frames -> frames.skip(offset + 2).findFirst()).orElseThrow();
+    }
+
+    /** Where the lines end up. With a writer thread, whatever is queued when it wakes up goes out in one write */
+    private static class Output implements Runnable {
+        private final PrintStream out;
+        private final BlockingQueue<String> queue;
+        private final Thread writer;
+        /** set once the JVM is shutting down, after which lines are written straight away */
+        private volatile boolean closed = false;
+
+        Output() {
+            PrintStream out = System.out;
+            var file = System.getProperty(PROPERTY+".file");
+            if (file != null) {
+                try {
+                    out = new PrintStream(new FileOutputStream(file, true), false, StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    System.out.println("Could not open log file "+file+", logging to stdout: "+e);
+                }
+            }
+            this.out = out;
+            if ("false".equals(System.getProperty(PROPERTY+".async"))) {
+                queue = null;
+                writer = null;
+            } else {
+                queue = new LinkedBlockingQueue<>(8192);
+                writer = new Thread(this, "modloader-log");
+                writer.setDaemon(true);
+                writer.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "modloader-log-flush"));
+            }
+        }
+
+        void write(String line) {
+            if (queue == null || closed) {
+                synchronized (this) {
+                    out.println(line);
+                }
+                return;
+            }
+            try {
+                // a full queue means the output can't keep up; wait rather than lose lines
+                queue.put(line);
+                if (closed) {
+                    // flush may have emptied the queue before this line got in
+                    drain();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                out.println(line);
+            }
+        }
+
+        @Override
+        public void run() {
+            var lines = new ArrayList<String>();
+            while (true) {
+                try {
+                    lines.add(queue.take());
+                } catch (InterruptedException e) {
+                    break;
+                }
+                queue.drainTo(lines);
+                print(lines);
+            }
+        }
+
+        /**
+         * Lets the writer thread finish printing the lines it has already taken, so nothing it holds is lost or ends
+         * up after later lines, then prints whatever is left in the queue
+         */
+        void flush() {
+            closed = true;
+            writer.interrupt();
+            try {
+                // don't hold up the JVM's exit forever if the output is stuck
+                writer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            drain();
+        }
+
+        private synchronized void drain() {
+            var lines = new ArrayList<String>();
+            queue.drainTo(lines);
+            print(lines);
+        }
+
+        private synchronized void print(ArrayList<String> lines) {
+            var text = new StringBuilder();
+            for (var line: lines) {
+                text.append(line).append(System.lineSeparator());
+            }
+            lines.clear();
+            out.print(text);
+            out.flush();
+        }
     }
 
-    // AutoCloseable implementation, for try (new Debug(msg)) { code... }    
+    // AutoCloseable implementation, for try (new Debug(msg)) { code... }
     private String msg;
     public Debug() {
         this(1);
     }
     public Debug(int stackOffset) {
-        Debug.enter(getCaller(stackOffset).getMethodName());
+        Debug.enter(stackOffset + 1);
     }
     public Debug(String msg) {
         this(msg, 1);
@@ -0,0 +1,242 @@
+package de.dakror.modding;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Development mode ({@code -Dde.dakror.modding.hotreload=true}): watches the mods that are plain directories, like a
+ * build's output folder, and swaps changed classes into the running game. A changed class file is scanned again and
+ * redefined if it's loaded, which runs it through the mods like any other class; the classes that mods built from it,
+ * like the base class of an augmentation, are transformed again from their original class files. The JVM only takes
+ * new method bodies this way, so anything else (new fields or methods, new patches) is reported as needing a restart.
+ * Changed resources are read again the next time the game loads them.
+ */
+public class HotReloader implements ModAPI, Runnable {
+    public static final boolean ENABLED = "true".equals(System.getProperty("de.dakror.modding.hotreload"));
+    /** how long the files have to stay unchanged before a batch is reloaded, since builds write many files at once */
+    private static final long SETTLE_MILLIS = Long.getLong("de.dakror.modding.hotreload.settle", 300);
+
+    private final ModLoader modLoader;
+    private final Instrumentation inst;
+    private final List<Path> roots;
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+
+    public HotReloader(ModLoader modLoader, Instrumentation inst, List<Path> roots) throws IOException {
+        this.modLoader = modLoader;
+        this.inst = inst;
+        this.roots = roots;
+        this.watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    public void start() throws IOException {
+        for (var root: roots) {
+            watchTree(root);
+        }
+        var thread = new Thread(this, "modloader-hotreload");
+        thread.setDaemon(true);
+        thread.start();
+        debugln("hot reload watching %d directories under %s", watchedDirs.size(), roots);
+    }
+
+    private void watchTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) throws IOException {
+                watchedDirs.put(subDir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY), subDir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            var changed = new LinkedHashSet<Path>();
+            try {
+                var key = watcher.take();
+                do {
+                    collect(key, changed);
+                } while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                reload(changed);
+            } catch (RuntimeException e) {
+                logln(Debug.Level.ERROR, "Hot reload failed: %s", e);
+            }
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> changed) {
+        var dir = watchedDirs.get(key);
+        for (var event: key.pollEvents()) {
+            if (event.kind() == OVERFLOW || dir == null) {
+                logln(Debug.Level.WARN, "Hot reload missed some changes, restart to be sure they're all in");
+                continue;
+            }
+            var path = dir.resolve((Path)event.context());
+            if (Files.isDirectory(path)) {
+                if (event.kind() == ENTRY_CREATE) {
+                    try {
+                        watchTree(path);
+                    } catch (IOException e) {
+                        logln(Debug.Level.WARN, "Hot reload can't watch %s: %s", path, e);
+                    }
+                }
+            } else {
+                changed.add(path);
+            }
+        }
+        if (!key.reset()) {
+            watchedDirs.remove(key);
+        }
+    }
+
+    private void reload(Set<Path> changed) {
+        var start = Instant.now();
+        var newClasses = new HashMap<String, byte[]>();
+        var dependents = new TreeSet<String>();
+        var restartNeeded = new ArrayList<String>();
+        var memberChanges = new HashMap<String, String>();
+        var scanner = modLoader.getScanner();
+        for (var path: changed) {
+            var name = resourceName(path);
+            if (name == null || !Files.isRegularFile(path)) {
+                continue;
+            }
+            if (!name.endsWith(".class")) {
+                debugln("resource %s changed%s, the game gets the new version next time it reads it", name, modLoader.resourceHooked(name) ? " (hooked)" : "");
+                continue;
+            }
+            var className = name.substring(0, name.length() - 6).replace('/', '.');
+            byte[] code;
+            try {
+                code = Files.readAllBytes(path);
+            } catch (IOException e) {
+                restartNeeded.add(className+": could not read it ("+e+")");
+                continue;
+            }
+            var oldMembers = membersOf(scanner, className);
+            if (!scanner.rescanClass(className, code)) {
+                restartNeeded.add(className+": its patch annotations or superclass changed");
+                continue;
+            }
+            var newMembers = membersOf(scanner, className);
+            if (!oldMembers.equals(newMembers)) {
+                var added = new TreeSet<>(newMembers);
+                added.removeAll(oldMembers);
+                var removed = new TreeSet<>(oldMembers);
+                removed.removeAll(newMembers);
+                memberChanges.put(className, "its fields or methods changed (added "+added+", removed "+removed+")");
+            }
+            newClasses.put(className, code);
+            dependents.addAll(modLoader.sourceChanged(className));
+        }
+        if (newClasses.isEmpty() && restartNeeded.isEmpty()) {
+            return;
+        }
+
+        var loaded = new HashMap<String, Class<?>>();
+        for (var loadedClass: inst.getAllLoadedClasses()) {
+            var name = loadedClass.getName();
+            if ((newClasses.containsKey(name) || dependents.contains(name)) && loadedClass.getClassLoader() == modLoader.getClassLoader()) {
+                loaded.put(name, loadedClass);
+            }
+        }
+        int redefined = 0, retransformed = 0;
+        for (var entry: newClasses.entrySet()) {
+            var loadedClass = loaded.get(entry.getKey());
+            if (loadedClass == null) {
+                // it'll be read from the new file whenever it does get loaded
+                continue;
+            }
+            if (memberChanges.containsKey(entry.getKey())) {
+                // the JVM would refuse it without saying what changed
+                restartNeeded.add(entry.getKey()+": "+memberChanges.get(entry.getKey()));
+                continue;
+            }
+            try {
+                // the transformers see the new class file, so a hooked class gets modded again on the way
+                inst.redefineClasses(new ClassDefinition(loadedClass, entry.getValue()));
+                redefined++;
+            } catch (Exception|LinkageError e) {
+                restartNeeded.add(entry.getKey()+": "+describe(e));
+            }
+        }
+        for (var name: dependents) {
+            var loadedClass = loaded.get(name);
+            if (loadedClass == null || newClasses.containsKey(name)) {
+                continue;
+            }
+            try {
+                inst.retransformClasses(loadedClass);
+                retransformed++;
+            } catch (Exception|LinkageError e) {
+                restartNeeded.add(name+": "+describe(e));
+            }
+        }
+        var elapsed = ChronoUnit.NANOS.between(start, Instant.now());
+        debugln("hot reload: %d changed classes, %d redefined, %d dependent classes transformed again, %d ns elapsed (%.3f ms)",
+                newClasses.size(), redefined, retransformed, elapsed, (double)elapsed/1000000.0);
+        for (var reason: restartNeeded) {
+            logln(Debug.Level.WARN, "Restart needed to apply %s", reason);
+        }
+    }
+
+    /** A class's fields and methods as "name descriptor", from its class file as last scanned */
+    private static Set<String> membersOf(IModScanner scanner, String className) {
+        var members = new TreeSet<String>();
+        for (var field: scanner.getDeclaredFields(className).values()) {
+            members.add(field.name+" "+field.descriptor);
+        }
+        for (var overloads: scanner.getDeclaredMethods(className).values()) {
+            for (var method: overloads) {
+                if (!method.name.equals("<clinit>")) {
+                    members.add(method.name+" "+method.descriptor);
+                }
+            }
+        }
+        return members;
+    }
+
+    private String resourceName(Path path) {
+        for (var root: roots) {
+            if (path.startsWith(root)) {
+                return root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+            }
+        }
+        return null;
+    }
+
+    private static String describe(Throwable e) {
+        if (e instanceof UnsupportedOperationException) {
+            return "the new version adds, removes or changes fields or methods, which the JVM can't swap in";
+        }
+        return e.toString();
+    }
+}
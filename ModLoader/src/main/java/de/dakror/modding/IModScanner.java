@@ -1,5 +1,6 @@
 package de.dakror.modding;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -21,8 +22,8 @@ public interface IModScanner extends ModLoader.IBaseMod {
             } catch (ClassNotFoundException e) {
                 throw new RuntimeException(e);
             } catch (Exception e) {
-                debugln("Exception while loading mod %s: %s", className, e.getMessage());
-                debugln("Continuing with load.");
+                logln(Debug.Level.WARN, "Exception while loading mod %s: %s", className, e.getMessage());
+                logln(Debug.Level.WARN, "Continuing with load.");
             }
         }
     }
@@ -33,6 +34,13 @@ public interface IModScanner extends ModLoader.IBaseMod {
     default String[] getDeclaredInterfaces(String declaringClass) { throw new UnsupportedOperationException(); }
     default Map<String, MemberInfo> getDeclaredFields(String className) { throw new UnsupportedOperationException(); }
     default Map<String, List<MemberInfo>> getDeclaredMethods(String className) { throw new UnsupportedOperationException(); }
+    /** Every superclass and interface of the class, directly or not */
+    default String[] getSupertypes(String className) { throw new UnsupportedOperationException(); }
+    /** Every class and interface that extends or implements the class, directly or not */
+    default String[] getSubtypes(String className) { throw new UnsupportedOperationException(); }
+    default boolean isAssignable(String type, String subType) { throw new UnsupportedOperationException(); }
+    /** Updates the scan for a changed class file; false if the change can't be taken in without a restart */
+    default boolean rescanClass(String className, byte[] code) { return false; }
 
     // convenience methods
     default IAnnotation<?> getClassAnnotation(String className, String annotationClass) {
@@ -44,6 +52,9 @@ public interface IModScanner extends ModLoader.IBaseMod {
     default String[] getDeclaredInterfaces(Class<?> declaringClass) { return getDeclaredInterfaces(declaringClass.getName()); }
     default Map<String, MemberInfo> getDeclaredFields(Class<?> className) { return getDeclaredFields(className.getName()); }
     default Map<String, List<MemberInfo>> getDeclaredMethods(Class<?> className) { return getDeclaredMethods(className.getName()); }
+    default String[] getSupertypes(Class<?> className) { return getSupertypes(className.getName()); }
+    default String[] getSubtypes(Class<?> className) { return getSubtypes(className.getName()); }
+    default boolean isAssignable(Class<?> type, Class<?> subType) { return isAssignable(type.getName(), subType.getName()); }
 
     default Class<?>[] loadAnnotatedClasses(Class<?> annotationClass) {
         return loadAnnotatedClasses(annotationClass, IModScanner.class.getClassLoader());
@@ -61,10 +72,50 @@ public interface IModScanner extends ModLoader.IBaseMod {
         return (IAnnotation<AT>)getClassAnnotation(className, annotationClass.getName());
     }
 
+    /**
+     * An annotation's values as strings: classes by binary name, enum constants by name, and arrays as their
+     * elements joined by commas, with commas and backslashes in an element escaped by a backslash
+     */
     static interface IAnnotation<AT> {
         String getStringValue(String memberName);
         default String getStringValue() { return getStringValue("value"); }
         default int getIntValue(String memberName) { return Integer.parseInt(getStringValue(memberName)); }
         default int getIntValue() { return getIntValue("value"); }
+        default String[] getArrayValue(String memberName) {
+            var value = getStringValue(memberName);
+            if (value == null) {
+                return null;
+            }
+            var elements = new ArrayList<String>();
+            var element = new StringBuilder();
+            for (int i = 0; i < value.length(); i++) {
+                var c = value.charAt(i);
+                if (c == '\\' && i + 1 < value.length()) {
+                    element.append(value.charAt(++i));
+                } else if (c == ',') {
+                    elements.add(element.toString());
+                    element.setLength(0);
+                } else {
+                    element.append(c);
+                }
+            }
+            if (!value.isEmpty()) {
+                elements.add(element.toString());
+            }
+            return elements.toArray(String[]::new);
+        }
+        default String[] getArrayValue() { return getArrayValue("value"); }
+
+        /** Joins array elements the way annotation values hold them */
+        static String joinArray(List<String> elements) {
+            var value = new StringBuilder();
+            for (int i = 0; i < elements.size(); i++) {
+                if (i > 0) {
+                    value.append(',');
+                }
+                value.append(elements.get(i).replace("\\", "\\\\").replace(",", "\\,"));
+            }
+            return value.toString();
+        }
     }
 }
@@ -1,11 +1,16 @@
 package de.dakror.modding;
 
+import de.dakror.modding.Debug.Level;
+
 public interface ModAPI {
     default void debugln(String msg) {
-        Debug.println(msg, 1);
+        Debug.log(Level.DEBUG, 1, msg, null);
     }
     default void debugln(String format, Object... args) {
-        Debug.println(String.format(format, args), 1);
+        Debug.log(Level.DEBUG, 1, format, args);
+    }
+    default void logln(Level level, String format, Object... args) {
+        Debug.log(level, 1, format, args);
     }
     default Debug dcontext() {
         return new Debug(1);
@@ -19,10 +24,13 @@ public interface ModAPI {
 
     // static versions of the above, for ease of use in static contexts
     static void DEBUGLN(String msg) {
-        Debug.println(msg, 1);
+        Debug.log(Level.DEBUG, 1, msg, null);
     }
     static void DEBUGLN(String format, Object... args) {
-        Debug.println(String.format(format, args), 1);
+        Debug.log(Level.DEBUG, 1, format, args);
+    }
+    static void LOGLN(Level level, String format, Object... args) {
+        Debug.log(level, 1, format, args);
     }
     static Debug DCONTEXT() {
         return new Debug(1);
@@ -0,0 +1,170 @@
+package de.dakror.modding;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.dakror.modding.ModLoader.IClassMod;
+
+/**
+ * Which {@code IClassMod<T, C>} interfaces a class mod implements, either itself or through one of its
+ * {@link IClassMod.And} inner classes. This is worked out from the generic signatures once per mod class and then
+ * kept for as long as the class is around, so registering a mod is just a search of a short array.
+ * <p>
+ * An {@code And} adapter isn't a class mod of its own, it only provides {@code redefineClass}; {@link #bind} pairs it
+ * with the mod it belongs to in a {@link Bound}, which asks that mod whether a class is hooked.
+ */
+public final class ModCapabilities {
+    private static final ClassValue<ModCapabilities> CAPABILITIES = new ClassValue<>() {
+        @Override
+        protected ModCapabilities computeValue(Class<?> modClass) {
+            return new ModCapabilities(modClass);
+        }
+    };
+
+    private static final class Capability {
+        final Class<?> classDefType;
+        final Class<?> contextType;
+        /** constructor of the And adapter taking the mod, or null if the mod itself implements the interface */
+        final Constructor<?> adapter;
+
+        Capability(Class<?> classDefType, Class<?> contextType, Constructor<?> adapter) {
+            this.classDefType = classDefType;
+            this.contextType = contextType;
+            this.adapter = adapter;
+        }
+    }
+
+    private final Capability[] capabilities;
+
+    private ModCapabilities(Class<?> modClass) {
+        var found = new ArrayList<Capability>();
+        for (var types: implementedClassMods(modClass, IClassMod.class)) {
+            found.add(new Capability(types[0], types[1], null));
+        }
+        for (var subClass: modClass.getDeclaredClasses()) {
+            if (!IClassMod.And.class.isAssignableFrom(subClass)) {
+                continue;
+            }
+            Constructor<?> adapter;
+            try {
+                adapter = subClass.getDeclaredConstructor(modClass);
+            } catch (NoSuchMethodException e) {
+                // a static nested class has no way to reach the mod
+                continue;
+            }
+            for (var types: implementedClassMods(subClass, IClassMod.And.class)) {
+                found.add(new Capability(types[0], types[1], adapter));
+            }
+        }
+        capabilities = found.toArray(new Capability[0]);
+    }
+
+    public static ModCapabilities of(Class<?> modClass) {
+        return CAPABILITIES.get(modClass);
+    }
+
+    public boolean accepts(Class<?> classDefType, Class<?> contextType) {
+        return find(classDefType, contextType) != null;
+    }
+
+    /** The mod as an {@code IClassMod<T, C>}, the mod itself or a new adapter bound to it, or null if it isn't one */
+    public <T, C> IClassMod<T, C> bind(IClassMod<?, ?> mod, Class<T> classDefType, Class<C> contextType) {
+        var capability = find(classDefType, contextType);
+        if (capability == null) {
+            return null;
+        }
+        if (capability.adapter == null) {
+            @SuppressWarnings("unchecked") var modThis = (IClassMod<T, C>)mod;
+            return modThis;
+        }
+        try {
+            @SuppressWarnings("unchecked") var adapter = (IClassMod.And<T, C>)capability.adapter.newInstance(mod);
+            return new Bound<>(mod, adapter);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Capability find(Class<?> classDefType, Class<?> contextType) {
+        for (var capability: capabilities) {
+            if (capability.classDefType == classDefType && capability.contextType == contextType) {
+                return capability;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Every (T, C) for which the class is a {@code modInterface<T, C>} (IClassMod or And) with both arguments resolved
+     * to classes
+     */
+    private static List<Class<?>[]> implementedClassMods(Class<?> type, Class<?> modInterface) {
+        var result = new ArrayList<Class<?>[]>();
+        collectClassMods(type, modInterface, Map.of(), result);
+        return result;
+    }
+
+    private static void collectClassMods(Class<?> type, Class<?> modInterface, Map<TypeVariable<?>, Type> typeParams, List<Class<?>[]> result) {
+        var superTypes = new ArrayList<Type>();
+        superTypes.add(type.getGenericSuperclass());
+        superTypes.addAll(List.of(type.getGenericInterfaces()));
+        for (var superType: superTypes) {
+            if (superType == null || superType == Object.class) {
+                continue;
+            }
+            if (superType instanceof Class<?>) {
+                collectClassMods((Class<?>)superType, modInterface, Map.of(), result);
+            } else if (superType instanceof ParameterizedType) {
+                var superPType = (ParameterizedType)superType;
+                var superClass = (Class<?>)superPType.getRawType();
+                var superTArgs = superPType.getActualTypeArguments();
+                if (superClass == modInterface) {
+                    var classDefType = typeParams.getOrDefault(superTArgs[0], superTArgs[0]);
+                    var contextType = typeParams.getOrDefault(superTArgs[1], superTArgs[1]);
+                    if (classDefType instanceof Class<?> && contextType instanceof Class<?>) {
+                        result.add(new Class<?>[] { (Class<?>)classDefType, (Class<?>)contextType });
+                    }
+                    continue;
+                }
+                var superTVars = superClass.getTypeParameters();
+                var superParams = new HashMap<TypeVariable<?>, Type>();
+                for (int i = 0; i < superTVars.length; i++) {
+                    superParams.put(superTVars[i], typeParams.getOrDefault(superTArgs[i], superTArgs[i]));
+                }
+                collectClassMods(superClass, modInterface, superParams, result);
+            }
+        }
+    }
+
+    /** An And adapter together with the mod it belongs to, which decides what gets hooked */
+    public static final class Bound<T, C> implements IClassMod<T, C> {
+        public final IClassMod<?, ?> base;
+        public final IClassMod.And<T, C> adapter;
+
+        Bound(IClassMod<?, ?> base, IClassMod.And<T, C> adapter) {
+            this.base = base;
+            this.adapter = adapter;
+        }
+
+        @Override
+        public boolean hooksClass(String className) {
+            return base.hooksClass(className);
+        }
+
+        @Override
+        public T redefineClass(String className, T classDef, C context) throws ClassNotFoundException {
+            return adapter.redefineClass(className, classDef, context);
+        }
+
+        @Override
+        public String toString() {
+            return adapter.toString();
+        }
+    }
+}
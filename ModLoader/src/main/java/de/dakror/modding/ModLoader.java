@@ -1,6 +1,7 @@
 package de.dakror.modding;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
@@ -8,9 +9,6 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
-import java.lang.reflect.TypeVariable;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.DirectoryStream;
@@ -20,10 +18,11 @@ import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.dakror.modding.platform.IModLoader;
 import de.dakror.modding.platform.IModPlatform;
@@ -122,10 +121,13 @@ import de.dakror.modding.platform.IModPlatform;
 abstract public class ModLoader implements IModLoader, ModAPI {
     public static final String MODLOADER_IMPL = System.getProperty("de.dakror.modding.impl", "de.dakror.modding.asm.ASMModLoader");
     protected IModPlatform modPlatform;
+    protected CdsArchive cdsArchive = null;
     protected URL[] modUrls;
     protected List<IBaseMod> mods = new ArrayList<>();
     protected List<IClassMod<?,?>> classMods = new ArrayList<>();
     protected List<IResourceMod> resourceMods = new ArrayList<>();
+    /** getMod(Class) results, so the hooks that look up a mod on every call don't search the whole list each time */
+    private final ConcurrentHashMap<Class<?>, IBaseMod> modsByType = new ConcurrentHashMap<>();
 
     public static IModLoader newInstance(IModPlatform modPlatform, String[] args) throws ClassNotFoundException, ClassCastException {
         Class<?> modLoaderClass = Class.forName(MODLOADER_IMPL);
@@ -142,7 +144,7 @@ abstract public class ModLoader implements IModLoader, ModAPI {
         } catch (NoSuchMethodException|IllegalAccessException|IllegalArgumentException ignore) {
         } catch (InvocationTargetException ite) {
             // We might care about this. Spit out diagnostics before continuing.
-            ModAPI.DEBUGLN("Exception while executing %s.newInstance(%s, %s): %s", MODLOADER_IMPL, modPlatform, Arrays.toString(args), ite.getTargetException());
+            ModAPI.LOGLN(Debug.Level.WARN, "Exception while executing %s.newInstance(%s, %s): %s", MODLOADER_IMPL, modPlatform, Arrays.toString(args), ite.getTargetException());
         }
 
         // No static newInstance() on the target class. That's fine, we'll just try instantiating it ourselves.
@@ -162,6 +164,10 @@ abstract public class ModLoader implements IModLoader, ModAPI {
         this.modUrls = findMods();
 
         modPlatform.addModURLs(modUrls);
+        if (CdsArchive.ENABLED) {
+            cdsArchive = new CdsArchive(getModUrls());
+            cdsArchive.update();
+        }
 
         implInit();
         getMod(IModScanner.class).scanForMods(this);
@@ -195,7 +201,7 @@ abstract public class ModLoader implements IModLoader, ModAPI {
                 }
             }
         } catch (Exception e) {
-            debugln("Unhandled exception while finding mods, ignoring: "+e);
+            logln(Debug.Level.WARN, "Unhandled exception while finding mods, ignoring: %s", e);
         }
         return mods.toArray(URL[]::new);
     }
@@ -210,6 +216,14 @@ abstract public class ModLoader implements IModLoader, ModAPI {
         getMod(IClassAugmentation.class).augmentClass(augmentedClass, augmentationClass);
     }
 
+    public void extendEnum(String enumClass, String enumType, String constantClass) {
+        getMod(IClassAugmentation.class).extendEnum(enumClass, enumType, constantClass);
+    }
+
+    public void extendEnumFromData(String enumClass, String enumType, String dataFile) {
+        getMod(IClassAugmentation.class).extendEnumFromData(enumClass, enumType, dataFile);
+    }
+
     public ClassLoader getClassLoader() {
         return modPlatform.getClassLoader();
     }
@@ -270,18 +284,16 @@ abstract public class ModLoader implements IModLoader, ModAPI {
         try {
             mod.registered(this);
         } catch (Exception e) {
-            debugln("Mod %s threw exception during registration, ignoring: %s", mod, e);
+            logln(Debug.Level.WARN, "Mod %s threw exception during registration, ignoring: %s", mod, e);
         }
         mods.add(mod);
+        // an earlier lookup may have found a different mod, or none at all
+        modsByType.clear();
         if (mod instanceof IResourceMod) {
             resourceMods.add((IResourceMod)mod);
         }
         if (mod instanceof IClassMod<?,?>) {
-            try {
-                registerClassMod((IClassMod<?,?>)mod);
-            } catch (ClassCastException e) {
-                debugln("Skipping registration of "+mod.toString()+" (not supported by this ModLoader?): "+e.getMessage());
-            }
+            registerClassMod((IClassMod<?,?>)mod);
         }
         return mod;
     }
@@ -290,6 +302,41 @@ abstract public class ModLoader implements IModLoader, ModAPI {
         classMods.add(mod);
     }
 
+    public Set<String> getHookedClasses() {
+        var names = new TreeSet<String>();
+        for (var mod: classMods) {
+            names.addAll(mod.hookedClasses());
+        }
+        return names;
+    }
+
+    /** Every hooked class that has to be transformed again now that className has changed */
+    public Set<String> sourceChanged(String className) {
+        var names = new TreeSet<String>();
+        for (var mod: classMods) {
+            names.addAll(mod.sourceChanged(className));
+        }
+        return names;
+    }
+
+    public Set<String> getSyntheticClasses() {
+        var names = new TreeSet<String>();
+        for (var mod: classMods) {
+            names.addAll(mod.syntheticClasses());
+        }
+        return names;
+    }
+
+    /** Optional hook to transform hooked classes before the game asks for them; by default they're all transformed on demand */
+    protected void prepareClasses(String mainClass) { }
+
+    /** Called by the {@link Patcher} once every class patch has been registered */
+    public void freezeClassMods() {
+        for (var mod: classMods) {
+            mod.freeze();
+        }
+    }
+
     public IBaseMod getMod(String className) {
         for (var mod: mods) {
             if (mod.getClass().getName().equals(className)) {
@@ -300,7 +347,15 @@ abstract public class ModLoader implements IModLoader, ModAPI {
     }
 
     public <T> T getMod(Class<T> modClass) {
-        return getMod(modClass, false);
+        var mod = modsByType.get(modClass);
+        if (mod == null) {
+            var found = getMod(modClass, false);
+            if (found != null) {
+                modsByType.putIfAbsent(modClass, (IBaseMod)found);
+            }
+            return found;
+        }
+        return modClass.cast(mod);
     }
 
     public <T> T getMod(Class<T> modClass, boolean exact) {
@@ -376,18 +431,75 @@ abstract public class ModLoader implements IModLoader, ModAPI {
         var patcher = new Patcher(this);
         debugln("patching classes");
         patcher.patchClasses();
+        debugln("patching enums");
+        patcher.patchEnums();
+        freezeClassMods();
+        // every made-up class is known now, so give them all a class file up front
+        modPlatform.addStubClasses(getSyntheticClasses());
+        prepareClasses(mainClass);
         debugln("patching resources");
         patcher.patchResources();
-        debugln("patching enums");
-        Patcher.patchEnums();
+        if (HotReloader.ENABLED) {
+            startHotReloader();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            var stats = modPlatform.getStats();
+            if (stats != null) {
+                debugln("platform: %s", stats);
+            }
+        }));
         if (mainClass != null) {
             debugln("loading main class");
             var cls = modPlatform.loadClass(mainClass); // not loadClass, we want to be sure our classloader is loading it
+            if (cdsArchive != null) {
+                cdsArchive.reportStartup();
+            }
+            reportStubTiming();
             debugln("calling main()");
             cls.getMethod("main", String[].class).invoke(null, (Object) args);
         }
     }
 
+    private void startHotReloader() {
+        var inst = modPlatform.getInstrumentation();
+        if (inst == null || !inst.isRedefineClassesSupported()) {
+            logln(Debug.Level.WARN, "Hot reload needs the agent's class redefinition, which this platform doesn't offer");
+            return;
+        }
+        var modloaderLocation = ModLoader.class.getProtectionDomain().getCodeSource().getLocation();
+        var roots = new ArrayList<Path>();
+        for (var url: modUrls) {
+            try {
+                var path = Path.of(url.toURI());
+                if (Files.isDirectory(path) && !url.equals(modloaderLocation)) {
+                    roots.add(path);
+                }
+            } catch (Exception e) { }
+        }
+        if (roots.isEmpty()) {
+            logln(Debug.Level.WARN, "Hot reload only watches mods that are directories, and there aren't any");
+            return;
+        }
+        try {
+            new HotReloader(this, inst, roots).start();
+        } catch (IOException e) {
+            logln(Debug.Level.WARN, "Could not start hot reload: %s", e);
+        }
+    }
+
+    /** Logs how the agent stub found us and how long that took, as left behind by StubAgent */
+    private void reportStubTiming() {
+        var timing = System.getProperty("de.dakror.modding.stub.timing");
+        if (timing == null) {
+            return;
+        }
+        var parts = timing.split(" ", 2);
+        try {
+            var elapsed = Long.parseLong(parts[1]);
+            debugln("agent stub found the agent by %s, %d ns elapsed (%.3f ms)", parts[0], elapsed, (double)elapsed/1000000.0);
+        } catch (RuntimeException e) { }
+    }
+
     ///////////// INTERFACES ////////////
 
     @Retention(RetentionPolicy.RUNTIME)
@@ -405,88 +517,32 @@ abstract public class ModLoader implements IModLoader, ModAPI {
     public static interface IClassMod<T, C> extends IBaseMod {
         boolean hooksClass(String className);
         T redefineClass(String className, T classDef, C context) throws ClassNotFoundException;
-        static <MCT, CDT, CT> boolean accepts(Class<MCT> modClassType, Class<CDT> classDefType, Class<CT> contextType, Map<TypeVariable<?>, Type> typeParams) {
-        //   try (var ctx = DCONTEXT("IClassMod.accepts(%s, %s, %s, %s)", modClassType.getName(), classDefType.getSimpleName(), contextType.getSimpleName(), typeParams)) {
-            if (typeParams == null) {
-                typeParams = Map.of();
-            }
-            for (Type ifaceType: modClassType.getGenericInterfaces()) {
-                // DEBUGLN("iface on %s: %s", modClassType.toGenericString(), ifaceType);
-                if (ifaceType instanceof ParameterizedType) {
-                    var ifacePType = (ParameterizedType) ifaceType;
-                    if (ifacePType.getRawType() != IClassMod.class) {
-                        continue;
-                    }
-                    var ifaceTArgs = ifacePType.getActualTypeArguments();
-                    Type ifaceCDT = typeParams.getOrDefault(ifaceTArgs[0], ifaceTArgs[0]);
-                    Type ifaceCT = typeParams.getOrDefault(ifaceTArgs[1], ifaceTArgs[1]);
-                    // DEBUGLN("iface %s type args: %s, %s", ifacePType, ifaceCDT, ifaceCT);
-                    if (ifaceCDT == classDefType && ifaceCT == contextType) {
-                        return true;
-                    }
-                }
-            }
-            List<Type> superTypes = new ArrayList<>();
-            superTypes.add(modClassType.getGenericSuperclass());
-            superTypes.addAll(Arrays.asList(modClassType.getGenericInterfaces()));
-            for (Type superType: superTypes) {
-                if (superType == null || superType == Object.class) {
-                    continue;
-                }
-                if (superType instanceof Class<?>) {
-                    if (accepts((Class<?>)superType, classDefType, contextType, null)) {
-                        return true;
-                    }
-                } else if (superType instanceof ParameterizedType) {
-                    var superPType = (ParameterizedType) superType;
-                    Class<?> superClass = (Class<?>)superPType.getRawType();
-                    TypeVariable<? extends Class<?>>[] superTVars = superClass.getTypeParameters();
-                    Type[] superTArgs = superPType.getActualTypeArguments();
-                    Map<TypeVariable<?>, Type> superParams = new HashMap<>();
-
-                    assert superTVars.length == superTArgs.length;
-                    for (int i = 0; i < superTVars.length; i++) {
-                        superParams.put(superTVars[i], typeParams.getOrDefault(superTArgs[i], superTArgs[i]));
-                    }
-
-                    if (accepts(superClass, classDefType, contextType, superParams)) {
-                        return true;
-                    }
-                }
-            }
-            return false;
-        //   }
-        }
+        /** No more classes will be hooked after this; mods can precompute whatever per-class state they need */
+        default void freeze() { }
+        /** Every class name this mod is known to hook, where it can tell ahead of time */
+        default Collection<String> hookedClasses() { return List.of(); }
+        /** Hooked class names that this mod made up, which have no class file for the JVM to find */
+        default Collection<String> syntheticClasses() { return List.of(); }
+        /** A mod class changed on disk: forget whatever was worked out from it, and name the hooked classes built from it */
+        default Collection<String> sourceChanged(String className) { return List.of(); }
         default boolean accepts(Class<?> classDefType, Class<?> contextType) {
-            return accepts(this.getClass(), classDefType, contextType, null);
+            return ModCapabilities.of(getClass()).accepts(classDefType, contextType);
         }
 
         default <U, D> IClassMod<U, D> asType(Class<U> classDefType, Class<D> contextType) throws ClassCastException {
-            if (accepts(classDefType, contextType)) {
-                @SuppressWarnings("unchecked") var modThis = (IClassMod<U, D>)this;
-                return modThis;
-            } else {
-                var thisClass = this.getClass();
-                for (var subClass: thisClass.getDeclaredClasses()) {
-                    if (And.class.isAssignableFrom(subClass) && accepts(subClass, classDefType, contextType, null)) {
-                        try {
-                            @SuppressWarnings("unchecked") var subMod = (IClassMod.And<U,D>)subClass.getDeclaredConstructor(thisClass).newInstance(this);
-                            And.andToBase.put(subMod, this);
-                            return subMod;
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                }
+            var mod = ModCapabilities.of(getClass()).bind(this, classDefType, contextType);
+            if (mod == null) {
+                throw new ClassCastException("Class mod "+getClass().getName()+" does not accept ("+classDefType.getName()+", "+contextType.getName()+")");
             }
-            throw new ClassCastException("Class mod "+getClass().getName()+" does not accept ("+classDefType.getName()+", "+contextType.getName()+")");
+            return mod;
         }
 
-        public static interface And<U, D> extends IClassMod<U, D> {
-            static Map<And<?,?>, IClassMod<?, ?>> andToBase = new WeakHashMap<>();
-            default boolean hooksClass(String className) {
-                return andToBase.get(this).hooksClass(className);
-            }
+        /**
+         * An inner class of a class mod that handles another kind of class definition for it. It only redefines
+         * classes; which classes are hooked is up to the mod, which {@link ModCapabilities#bind} pairs it with.
+         */
+        public static interface And<U, D> {
+            U redefineClass(String className, U classDef, D context) throws ClassNotFoundException;
         }
     }
     public static interface IResourceMod extends IBaseMod {
@@ -500,5 +556,9 @@ abstract public class ModLoader implements IModLoader, ModAPI {
 
     static interface IClassAugmentation {
         void augmentClass(String augmentedClass, String augmentationClass);
+        /** Adds the constant described by constantClass's enumType annotation to enumClass */
+        void extendEnum(String enumClass, String enumType, String constantClass);
+        /** Adds a constant to enumClass for every row of the data file, with columns as described by enumType */
+        void extendEnumFromData(String enumClass, String enumType, String dataFile);
     }
 }
\ No newline at end of file
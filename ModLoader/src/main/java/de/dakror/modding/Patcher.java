@@ -1,5 +1,6 @@
 package de.dakror.modding;
 
+import java.lang.annotation.Annotation;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Repeatable;
 import java.lang.annotation.Retention;
@@ -7,10 +8,30 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 public class Patcher {
+    /**
+     * Marks an annotation type as describing new constants for an enum. Its elements, in declaration order, are the
+     * enum constructor's arguments after the name and ordinal. Every class annotated with it becomes one constant,
+     * named after the class's simple name.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.ANNOTATION_TYPE})
     public static @interface ModEnum {
         Class<?> value();
     }
 
+    /**
+     * Adds one enum constant per row of a data file on the classpath. The columns are laid out as described by the
+     * given {@link ModEnum} annotation type: the constant's name, then one column per element (empty ones take the
+     * element's default). Columns are separated by commas and array elements by '|'; quote values containing either.
+     * Blank lines and lines starting with '#' are skipped.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.TYPE})
+    public static @interface ModEnumData {
+        Class<? extends Annotation> value();
+        String file();
+    }
+
     @Retention(RetentionPolicy.RUNTIME)
     @Target({ElementType.TYPE})
     public static @interface ReplacementClass {
@@ -92,12 +113,12 @@ public class Patcher {
 
     public void patchResources() {
         var scanner = loader.getScanner();
-        for (var propsClass: scanner.loadAnnotatedClasses(ExtraProperties.class)) {
+        for (var propsClass: scanner.loadAnnotatedClasses(ExtraProperties.class, loader.getClassLoader())) {
             var rname = propsClass.getAnnotation(ExtraProperties.class).file();
             loader.getMod(PropertyListEditor.class).setPropertiesFromClass(rname, propsClass);
         }
 
-        for (var xmlClass: scanner.loadAnnotatedClasses(XMLEditor.class)) {
+        for (var xmlClass: scanner.loadAnnotatedClasses(XMLEditor.class, loader.getClassLoader())) {
             try {
                 var rname = xmlClass.getAnnotation(XMLEditor.class).file();
                 loader.getMod(XMLResourceEditor.class).addEditor(rname, (XMLResourceEditor.Editor)xmlClass.getConstructor().newInstance());
@@ -107,18 +128,23 @@ public class Patcher {
         }
     }
 
-    public static void patchEnums() {
-
-        // Set<String> annotations = scanner.getAnnotatedClasses(ModEnum.class);
-
-        // ClassPool pool = new ClassPool();
-
-        // if (annotations == null)
-        //     return;
-
-        // for (String s : annotations) {
-        //     CtClass cls = pool.get(s);
+    public void patchEnums() {
+        var scanner = loader.getScanner();
+        for (var enumType: scanner.getAnnotatedClasses(ModEnum.class)) {
+            var enumClass = scanner.getClassAnnotation(enumType, ModEnum.class).getStringValue();
+            for (var name: scanner.getAnnotatedClasses(enumType)) {
+                loader.extendEnum(enumClass, enumType, name);
+            }
+        }
 
-        // }
+        for (var name: scanner.getAnnotatedClasses(ModEnumData.class)) {
+            var anno = scanner.getClassAnnotation(name, ModEnumData.class);
+            var enumType = anno.getStringValue();
+            var enumClass = scanner.getClassAnnotation(enumType, ModEnum.class).getStringValue();
+            if (enumClass == null) {
+                throw new RuntimeException(name+" refers to "+enumType+", which is not annotated with @ModEnum");
+            }
+            loader.extendEnumFromData(enumClass, enumType, anno.getStringValue("file"));
+        }
     }
-}
\ No newline at end of file
+}
@@ -22,8 +22,11 @@ import org.w3c.dom.Document;
 @ModLoader.Enabled
 public class XMLResourceEditor implements ModLoader.IResourceMod {
     protected Map<String, List<Editor>> xmlEditors = DefaultingHashMap.using(ArrayList::new);
-    protected DocumentBuilder docBuilder;
-    protected Transformer transformer;
+    // neither parsers nor transformers may be shared between threads, and resources get loaded on several at once
+    protected final DocumentBuilderFactory dbFactory;
+    protected final TransformerFactory transformerFactory;
+    protected final ThreadLocal<DocumentBuilder> docBuilder = ThreadLocal.withInitial(this::newDocumentBuilder);
+    protected final ThreadLocal<Transformer> transformer = ThreadLocal.withInitial(this::newTransformer);
 
     public void addEditor(String resourceName, Editor editor) {
         xmlEditors.get(resourceName).add(editor);
@@ -31,13 +34,36 @@ public class XMLResourceEditor implements ModLoader.IResourceMod {
 
     public XMLResourceEditor() {
         try {
-            var dbFactory = DocumentBuilderFactory.newDefaultInstance();
+            dbFactory = DocumentBuilderFactory.newDefaultInstance();
             dbFactory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
-            docBuilder = dbFactory.newDocumentBuilder();
-            transformer = TransformerFactory.newDefaultInstance().newTransformer();
-        } catch (ParserConfigurationException|TransformerConfigurationException e) {
+            transformerFactory = TransformerFactory.newDefaultInstance();
+        } catch (ParserConfigurationException e) {
             throw new RuntimeException(e);
         }
+        // fail now rather than on the first resource
+        docBuilder.get();
+        transformer.get();
+    }
+
+    private DocumentBuilder newDocumentBuilder() {
+        // the factories aren't thread-safe either, but they're only used once per thread
+        synchronized (dbFactory) {
+            try {
+                return dbFactory.newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private Transformer newTransformer() {
+        synchronized (transformerFactory) {
+            try {
+                return transformerFactory.newTransformer();
+            } catch (TransformerConfigurationException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     @Override
@@ -47,10 +73,10 @@ public class XMLResourceEditor implements ModLoader.IResourceMod {
 
     @Override
     public InputStream redefineResourceStream(String resourceName, InputStream stream, ClassLoader loader) {
-        var editors = xmlEditors.get(resourceName);
+        var editors = xmlEditors.getOrDefault(resourceName, List.of());
         Document doc;
         try {
-            doc = docBuilder.parse(stream);
+            doc = docBuilder.get().parse(stream);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -59,7 +85,7 @@ public class XMLResourceEditor implements ModLoader.IResourceMod {
         }
         var baos = new ByteArrayOutputStream();
         try {
-            transformer.transform(new DOMSource(doc), new StreamResult(baos));
+            transformer.get().transform(new DOMSource(doc), new StreamResult(baos));
         } catch (TransformerException e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,112 @@
+package de.dakror.modding.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Consumer;
+
+/**
+ * Files the modloader writes out for the JVM to read and keeps between launches (the boot jar, the stub jar), in
+ * {@link ModAgent#BOOT_JAR_CACHE} under a key that changes whenever their contents would, so the same contents reuse
+ * the same file on every launch. What's in there ends up on the boot class path, so the directory has to be one only
+ * the current user can write to, and a cached file is only used if it still has the contents it was written from.
+ */
+public final class CachedFiles {
+    private CachedFiles() { }
+
+    @FunctionalInterface
+    public static interface Contents {
+        byte[] get() throws IOException;
+    }
+
+    /** The cached file with exactly these contents, keyed on their hash; see {@link #of(String, String, Contents, Consumer)} */
+    public static File of(String prefix, byte[] contents, Consumer<String> log) throws IOException {
+        return of(prefix, sha256(contents).substring(0, 32), () -> contents, log);
+    }
+
+    /**
+     * The cached file for key, written from contents first if there's none yet or if it doesn't match them: next to
+     * the target, then moved into place, so a file that's there is always whole. Without a usable cache directory it's
+     * a throwaway copy instead. Whichever happened is reported to log.
+     */
+    public static File of(String prefix, String key, Contents contents, Consumer<String> log) throws IOException {
+        try {
+            var cacheDir = privateDirectory(Path.of(ModAgent.BOOT_JAR_CACHE));
+            var path = cacheDir.resolve(prefix + "-" + key + ".jar");
+            if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (sha256(Files.readAllBytes(path)).equals(sha256(contents.get()))) {
+                    log.accept("cached");
+                    return path.toFile();
+                }
+                log.accept("cached copy differs, replacing it");
+            }
+            var tempPath = Files.createTempFile(cacheDir, prefix + "-", ".tmp");
+            try {
+                Files.write(tempPath, contents.get());
+                try {
+                    Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+            log.accept("extracted");
+            return path.toFile();
+        } catch (IOException|InvalidPathException e) {
+            log.accept("cache unavailable: " + e);
+            File file = File.createTempFile("dd-modloader-" + prefix, ".jar");
+            file.deleteOnExit();
+            Files.write(file.toPath(), contents.get());
+            return file;
+        }
+    }
+
+    /**
+     * Creates dir if need be, readable and writable by the current user only where the file system has POSIX
+     * permissions, and makes sure it belongs to the current user; anyone else could put files in it for us to load.
+     */
+    public static Path privateDirectory(Path dir) throws IOException {
+        var posix = dir.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+            Files.createDirectories(dir);
+        }
+        var owner = Files.getOwner(dir, LinkOption.NOFOLLOW_LINKS);
+        var me = dir.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        if (!owner.equals(me)) {
+            throw new IOException(dir + " belongs to " + owner.getName() + ", not " + me.getName());
+        }
+        if (posix) {
+            Files.getFileAttributeView(dir, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+                .setPermissions(PosixFilePermissions.fromString("rwx------"));
+        }
+        return dir;
+    }
+
+    public static String sha256(String text) throws IOException {
+        return sha256(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String sha256(byte[] contents) throws IOException {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(contents);
+            var hex = new StringBuilder();
+            for (var b: digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
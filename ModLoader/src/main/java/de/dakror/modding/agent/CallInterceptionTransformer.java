@@ -26,6 +26,7 @@ import org.objectweb.asm.util.CheckClassAdapter;
 
 import de.dakror.modding.agent.boot.Interceptor;
 import de.dakror.modding.agent.boot.Interceptor.NoInterceptionException;
+import de.dakror.modding.asm.ClassVerifier;
 
 public class CallInterceptionTransformer implements ClassFileTransformer {
 
@@ -123,7 +124,7 @@ public class CallInterceptionTransformer implements ClassFileTransformer {
         var cr = new ClassReader(classfileBuffer);
         var cw = new ClassWriter(cr, 0);
         try {
-            cr.accept(new ClassVisitor(Opcodes.ASM9, new CheckClassAdapter(cw, true)) {
+            cr.accept(new ClassVisitor(Opcodes.ASM9, ModAgent.CHECK_CLASSES ? new CheckClassAdapter(cw, true) : cw) {
                 @Override
                 public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
                     final var mv = super.visitMethod(access, name, descriptor, signature, exceptions);
@@ -140,7 +141,9 @@ public class CallInterceptionTransformer implements ClassFileTransformer {
             e.printStackTrace();
             System.exit(1);
         }
-        return cw.toByteArray();
+        var code = cw.toByteArray();
+        ClassVerifier.dump(className, code);
+        return code;
     }
 
     private class InterceptionAdapter extends GeneratorAdapter {
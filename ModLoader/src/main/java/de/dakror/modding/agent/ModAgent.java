@@ -10,14 +10,17 @@ import java.lang.instrument.Instrumentation;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandleProxies;
 import java.net.URISyntaxException;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.Path;
 import java.util.function.Consumer;
 import java.util.jar.JarFile;
 
 public class ModAgent {
     private final String agentArgs;
     public static final boolean IS_DEBUG = "true".equals(System.getProperty("de.dakror.modding.agent.debug"));
+    /** check the agent's own transformations as they happen; otherwise see ClassVerifier */
+    public static final boolean CHECK_CLASSES = "true".equals(System.getProperty("de.dakror.modding.agent.check"));
+    public static final String BOOT_JAR_CACHE = System.getProperty("de.dakror.modding.agent.cache",
+        Path.of(System.getProperty("user.home"), ".dd-modloader", "cache").toString());
     private final ClassLoader appLoader;
     final Instrumentation inst;
     static TaskLog task = null;
@@ -59,14 +62,17 @@ public class ModAgent {
         }
         if (task(!bootJarLoaded, "Loading boot jar")) {
             JarFile bootJarFile = null;
-            try (InputStream jarStream = ModAgent.class.getResourceAsStream("/boot-jar.bin")) {
-                if (jarStream == null) {
-                    throw new RuntimeException("Could not find boot jar");
-                }
-                File jarPath = File.createTempFile("dd-modloader-boot", ".jar");
-                jarPath.deleteOnExit();
-                Files.copy(jarStream, jarPath.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                bootJarFile = new JarFile(jarPath, false);
+            try {
+                // only read out of the modloader jar when it isn't cached yet
+                var bootJar = CachedFiles.of("boot", bootJarKey(), () -> {
+                    try (InputStream jarStream = ModAgent.class.getResourceAsStream("/boot-jar.bin")) {
+                        if (jarStream == null) {
+                            throw new RuntimeException("Could not find boot jar");
+                        }
+                        return jarStream.readAllBytes();
+                    }
+                }, task::report);
+                bootJarFile = new JarFile(bootJar, false);
                 task.report("loaded");
             } catch (IOException e) {
                 task.report(e);
@@ -83,6 +89,26 @@ public class ModAgent {
         agent = this;
     }
 
+    // The boot jar is built into the modloader jar, so it changes only when that does: keyed on where that is, how big
+    // and how old, it's found in the cache without hashing (or even reading) it. Unpacked (e.g. in a development setup),
+    // there's no such jar to go by, so it's keyed on its contents.
+    private static String bootJarKey() throws IOException {
+        try {
+            var myLocation = new File(ModAgent.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (myLocation.isFile()) {
+                return CachedFiles.sha256(myLocation.getAbsolutePath() + "|" + myLocation.length() + "|" + myLocation.lastModified()).substring(0, 32);
+            }
+        } catch (URISyntaxException|IllegalArgumentException|SecurityException e) {
+            // keyed on the contents below
+        }
+        try (InputStream jarStream = ModAgent.class.getResourceAsStream("/boot-jar.bin")) {
+            if (jarStream == null) {
+                throw new RuntimeException("Could not find boot jar");
+            }
+            return CachedFiles.sha256(jarStream.readAllBytes()).substring(0, 32);
+        }
+    }
+
     // Gets called after trampoline.hookMainClass
     public static void main(String[] args) throws Throwable {
         var task = agent.task("Loading modloader");
@@ -27,6 +27,8 @@ import org.objectweb.asm.commons.Method;
 import org.objectweb.asm.commons.Remapper;
 import org.objectweb.asm.util.CheckClassAdapter;
 
+import de.dakror.modding.asm.ClassVerifier;
+
 class StubReplacementTransformer implements ClassFileTransformer {
     private final Predicate<String> classesToTransform;
     private final ClassNameMapper classNameMapper;
@@ -86,7 +88,7 @@ class StubReplacementTransformer implements ClassFileTransformer {
                 return mappedName != null ? mappedName : internalName;
             }
         };
-        cr.accept(new ClassRemapper(new ClassVisitor(ASM9, new CheckClassAdapter(cw, true)) {
+        cr.accept(new ClassRemapper(new ClassVisitor(ASM9, ModAgent.CHECK_CLASSES ? new CheckClassAdapter(cw, true) : cw) {
             private final Set<Method> intfMethods = new HashSet<>();
             @Override
             public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
@@ -114,7 +116,9 @@ class StubReplacementTransformer implements ClassFileTransformer {
             }
         }, remapper), 0);
 
-        return cw.toByteArray();
+        var code = cw.toByteArray();
+        ClassVerifier.dump(className, code);
+        return code;
     }
 
     private static Set<Method> getInterfaceMethods(Class<?> intf) {
@@ -3,6 +3,7 @@ package de.dakror.modding.asm;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.lang.instrument.IllegalClassFormatException;
@@ -11,7 +12,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 import org.objectweb.asm.ClassReader;
@@ -21,18 +22,34 @@ import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.util.CheckClassAdapter;
 import org.objectweb.asm.util.TraceClassVisitor;
 
+import de.dakror.modding.ModCapabilities;
 import de.dakror.modding.ModLoader;
+import de.dakror.modding.platform.IClassTransformer;
 
-public class ASMModLoader extends ModLoader {
-    public static boolean checkClasses = false;
+public class ASMModLoader extends ModLoader implements IClassTransformer {
+    /** run every modded class through CheckClassAdapter as it's written; slow, so normally left to ClassVerifier */
+    public static boolean checkClasses = "true".equals(System.getProperty("de.dakror.modding.check"));
     public static boolean traceClasses = false;
-    public static boolean dumpClasses = false;
+    public static boolean dumpClasses = ClassVerifier.DUMP_DIR != null;
+    /**
+     * Have ASM compute the stack map frames of modded classes, with common superclasses looked up in a
+     * {@link ClassHierarchy} instead of by loading classes; otherwise the mods have to keep the frames right themselves
+     */
+    public static boolean computeFrames = "true".equals(System.getProperty("de.dakror.modding.computeFrames"));
+    /** Transform every hooked class on a worker pool as soon as the patches are in, instead of when the game loads it */
+    public static boolean prepareClasses = "true".equals(System.getProperty("de.dakror.modding.aot"));
+    /** Transform the hooked classes the game is likely to load first in the background, while it starts up */
+    public static boolean speculateClasses = "true".equals(System.getProperty("de.dakror.modding.speculate"));
     protected List<IClassMod<ClassReader, ASMModLoader>> readerMods = new ArrayList<>();
     protected List<IClassMod<ClassVisitor, ClassReader>> visitorMods = new LinkedList<>();
 
-    protected static Map<ClassReader, ASMModLoader> readerToLoader = new WeakHashMap<>();
-
-    protected Map<String, byte[]> definedClasses = new HashMap<>();
+    /**
+     * One lock per class name, so a class is never transformed on two threads at once while different classes are.
+     * A name's lock only exists while a thread holds or waits for it, see {@link #transformLocked}.
+     */
+    private final Map<String, TransformLock> transformLocks = new ConcurrentHashMap<>();
+    protected Map<String, byte[]> definedClasses = new ConcurrentHashMap<>();
+    protected ClassPreparer preparer = null;
 
     @SuppressWarnings("unchecked")
     <T>Class<T> defineClass(String className, byte[] code, Class<T> existingClass) {
@@ -68,19 +85,20 @@ public class ASMModLoader extends ModLoader {
 
     @Override
     protected void registerClassMod(IClassMod<?,?> mod) {
-        var registered = false;
-        try {
-            registerClassReaderMod(mod.asType(ClassReader.class, ASMModLoader.class));
+        var capabilities = ModCapabilities.of(mod.getClass());
+        var readerMod = capabilities.bind(mod, ClassReader.class, ASMModLoader.class);
+        var visitorMod = capabilities.bind(mod, ClassVisitor.class, ClassReader.class);
+        if (readerMod == null && visitorMod == null) {
+            debugln("Skipping registration of "+mod.toString()+" (not supported by this ModLoader?)");
+            return;
+        }
+        if (readerMod != null) {
+            registerClassReaderMod(readerMod);
             debugln("Registered ClassReader mod "+mod);
-            registered = true;
-        } catch (ClassCastException e) {}
-        try {
-            registerClassVisitorMod(mod.asType(ClassVisitor.class, ClassReader.class));
+        }
+        if (visitorMod != null) {
+            registerClassVisitorMod(visitorMod);
             debugln("Registered ClassVisitor mod "+mod);
-        } catch (ClassCastException e) {
-            if (!registered) {
-                throw e;
-            }
         }
         super.registerClassMod(mod);
     }
@@ -93,12 +111,113 @@ public class ASMModLoader extends ModLoader {
         visitorMods.add(0, mod);
     }
     
+    @Override
+    protected void prepareClasses(String mainClass) {
+        if (!prepareClasses && !(speculateClasses && mainClass != null)) {
+            return;
+        }
+        var names = getHookedClasses();
+        var threads = Runtime.getRuntime().availableProcessors();
+        if (prepareClasses) {
+            debugln("preparing %d hooked classes", names.size());
+            preparer = new ClassPreparer(this, threads);
+            preparer.prepareAll(names);
+        } else {
+            debugln("speculatively preparing hooked classes reachable from %s", mainClass);
+            // one thread is taken up by the reference walk
+            preparer = new ClassPreparer(this, Math.max(2, threads));
+            preparer.speculate(mainClass, names);
+        }
+        if (preparer != null) {
+            var statsPreparer = preparer;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> debugln("class preparation: %s", statsPreparer.getStats())));
+        }
+    }
+
+    @Override
+    public void freezeClassMods() {
+        super.freezeClassMods();
+        // whatever was built while the patches were coming in may not show all they change yet
+        getScanner().hierarchyChanged();
+    }
+
+    /** The class as the mods leave it, see {@link ClassHierarchy.IHeaderMod} */
+    ClassHierarchy.ClassEntry moddedEntry(ClassHierarchy.ClassEntry entry) {
+        var className = Util.fromIntName(entry.name);
+        for (var mod: classMods) {
+            if (mod instanceof ClassHierarchy.IHeaderMod && mod.hooksClass(className)) {
+                entry = ((ClassHierarchy.IHeaderMod)mod).redefineEntry(entry, getScanner());
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    public byte[] getPreparedClass(String name, byte[] code) {
+        return preparer == null ? null : preparer.take(name, code);
+    }
+
+    /** Runs a hooked class through the mods, without consulting or defining anything */
+    @Override
+    public byte[] transformClass(String name, byte[] code) throws ClassNotFoundException {
+        return transformLocked(name, () -> redefineClass(name, applyMods(readerMods, name, newClassReader(code), this)));
+    }
+
+    InputStream getResourceAsStream(String name) throws IOException {
+        return modPlatform.getResourceAsStream(name);
+    }
+
+    /** How many threads hold or wait for a name's lock; only ever changed inside the map's compute for that name */
+    private static final class TransformLock {
+        int holders = 1;
+    }
+
+    @FunctionalInterface
+    private interface Transformation {
+        byte[] transform() throws ClassNotFoundException;
+    }
+
+    /**
+     * Runs a transformation of the named class under that name's lock. The last thread to let go of a lock removes it,
+     * so the map only ever holds the classes being transformed right now, not every class ever transformed.
+     * <p>
+     * Mods must not load classes while they transform one: a transformation runs on whichever thread is loading the
+     * class, inside the JVM's own lock for it, so a mod that loads a class that another thread is transforming (and
+     * whose mods load this one) deadlocks on the JVM's locks, with or without ours. Everything a mod needs to know
+     * about other classes it gets from their class files, see {@link ModScanner} and its {@link ClassHierarchy}.
+     */
+    private byte[] transformLocked(String name, Transformation transformation) throws ClassNotFoundException {
+        var lock = transformLocks.compute(name, (n, held) -> {
+            if (held == null) {
+                return new TransformLock();
+            }
+            held.holders++;
+            return held;
+        });
+        try {
+            synchronized (lock) {
+                return transformation.transform();
+            }
+        } finally {
+            transformLocks.computeIfPresent(name, (n, held) -> --held.holders == 0 ? null : held);
+        }
+    }
+
+    /** The names being transformed right now */
+    int transformsInProgress() {
+        return transformLocks.size();
+    }
+
     @Override
     public byte[] redefineClass(String name) throws ClassNotFoundException {
         byte[] code = definedClasses.remove(name);
         if (code != null) {
             return code;
         }
+        return transformLocked(name, () -> transformNamedClass(name));
+    }
+
+    private byte[] transformNamedClass(String name) throws ClassNotFoundException {
         ClassReader cr = null;
         IOException ioExc = null;
         try {
@@ -114,25 +233,34 @@ public class ASMModLoader extends ModLoader {
             }
             throw e;
         }
-        return redefineClass(name, cr, false);
+        return redefineClass(name, cr);
     }
 
     @Override
     public byte[] redefineClass(String name, byte[] code) throws IllegalClassFormatException {
         ClassReader cr = newClassReader(code);
         try {
-            cr = applyMods(readerMods, name, cr, this);
-            return redefineClass(name, cr, false);
+            return transformLocked(name, () -> redefineClass(name, applyMods(readerMods, name, cr, this)));
         } catch (ClassNotFoundException cnfe) {
-            debugln("Unexpected: redefineClass threw ClassNotFoundException: ");
+            logln(Debug.Level.WARN, "Unexpected: redefineClass threw ClassNotFoundException: ");
             cnfe.printStackTrace();
             return null;
         }
     }
 
-    private byte[] redefineClass(String name, ClassReader cr, boolean isMainClass) throws ClassNotFoundException {
-        ClassWriter cw = new ClassWriter(cr, 0);
-        ClassVisitor cv = cw;
+    /**
+     * A loaded class being retransformed or redefined (hot reload, or another agent) comes with its original class
+     * file or the new one, never with our output, so it gets modded the same way as when it was first loaded.
+     */
+    @Override
+    public byte[] redefineClass(String name, byte[] code, Class<?> existingClass) throws IllegalClassFormatException {
+        return redefineClass(name, code);
+    }
+
+    private byte[] redefineClass(String name, ClassReader cr) throws ClassNotFoundException {
+        var cw = new ScannerClassWriter(getScanner(), cr, computeFrames ? ClassWriter.COMPUTE_FRAMES : 0);
+        var outputStreams = new HashMap<String, OutputStream>();
+        ClassVisitor cv = computeFrames ? cw.recordingHeader() : cw;
         final var preWriteWrapper = new ClassVisitor(Opcodes.ASM9, cv) {
             public void addVisitor(Function<ClassVisitor, ClassVisitor> newCv) {
                 cv = newCv.apply(cv);
@@ -147,23 +275,22 @@ public class ASMModLoader extends ModLoader {
             }
             if (traceClasses) {
                 // trace modded classes post-transformation
-                preWriteWrapper.addVisitor(v -> new TraceClassVisitor(v, new PrintWriter(tryGetOutputStream(name+"-post.dump"))));
+                preWriteWrapper.addVisitor(v -> new TraceClassVisitor(v, new PrintWriter(tryGetOutputStream(outputStreams, name+"-post.dump"))));
                 // trace modded classes pre-transformation
-                cv = new TraceClassVisitor(cv, new PrintWriter(tryGetOutputStream(name+"-pre.dump")));
+                cv = new TraceClassVisitor(cv, new PrintWriter(tryGetOutputStream(outputStreams, name+"-pre.dump")));
             }
         }
-        cr.accept(cv, 0);
-        closeOutputStreams(name+"-pre.dump", name+"-post.dump");
+        // computed frames replace the old ones anyway, and skipping them spares the mods from keeping them in step
+        cr.accept(cv, computeFrames ? ClassReader.SKIP_FRAMES : 0);
+        closeOutputStreams(outputStreams);
+        var code = cw.toByteArray();
         if (cv != cw && dumpClasses) {
-            try (var os = new FileOutputStream(name+"-post.class")) {
-                os.write(cw.toByteArray());
-            } catch (Exception e) {}
+            ClassVerifier.dump(name, code);
         }
-        return cw.toByteArray();
+        return code;
     }
 
-    private Map<String, OutputStream> outputStreams = new HashMap<>();
-    private OutputStream tryGetOutputStream(String name) {
+    private static OutputStream tryGetOutputStream(Map<String, OutputStream> outputStreams, String name) {
         try {
             var os = new FileOutputStream(name);
             outputStreams.put(name, os);
@@ -173,37 +300,46 @@ public class ASMModLoader extends ModLoader {
         }
     }
 
-    private void closeOutputStreams(String... names) {
-        for (var name: names) {
-            var os = outputStreams.get(name);
+    private static void closeOutputStreams(Map<String, OutputStream> outputStreams) {
+        for (var os: outputStreams.values()) {
             try {
-                if (os != null) os.close();
+                os.close();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
-        outputStreams.clear();
     }
 
     public ClassReader newClassReader(byte[] code) {
-        var reader = new ClassReader(code);
-        readerToLoader.put(reader, this);
-        return reader;
-}
+        return new LoaderClassReader(code, 0, code.length, this);
+    }
 
     public ClassReader newClassReader(String name) throws IOException {
         return newIntClassReader(Util.toIntName(name));
     }
 
     public ClassReader newIntClassReader(String intName) throws IOException {
+        var scanner = getScanner();
+        var code = scanner == null ? null : scanner.getIntSourceBytes(intName);
+        if (code != null) {
+            return newClassReader(code);
+        }
         try (var inputStream = modPlatform.getResourceAsStream(intName+".class")) {
-            var reader = new ClassReader(inputStream);
-            readerToLoader.put(reader, this);
-            return reader;
+            return newClassReader(TransformContext.current().readClass(inputStream));
         }
     }
 
     public static ASMModLoader forReader(ClassReader reader) {
-        return readerToLoader.get(reader);
+        return reader instanceof LoaderClassReader ? ((LoaderClassReader)reader).modLoader : null;
+    }
+
+    /** A reader that knows which mod loader made it, instead of a shared map that every transformation would lock */
+    private static class LoaderClassReader extends ClassReader {
+        final ASMModLoader modLoader;
+
+        LoaderClassReader(byte[] code, int offset, int length, ASMModLoader modLoader) {
+            super(code, offset, length);
+            this.modLoader = modLoader;
+        }
     }
 }
@@ -0,0 +1,60 @@
+package de.dakror.modding.asm;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Raw class file bytes kept in memory between the scan and the transformation that needs them, keyed by internal
+ * name. The store has a fixed budget; classes that don't fit are simply not kept, and whoever wants them reads them
+ * from the classpath as before.
+ */
+public class ClassBytesStore {
+    private final Map<String, byte[]> classes = new ConcurrentHashMap<>();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final long limit;
+
+    public ClassBytesStore(long limit) {
+        this.limit = limit;
+    }
+
+    /** Keeps the class file, if it fits in the budget; a class already kept only needs room for the difference */
+    public boolean put(String intName, byte[] code) {
+        var previous = classes.get(intName);
+        long growth = code.length - lengthOf(previous);
+        if (storedBytes.addAndGet(growth) > limit) {
+            storedBytes.addAndGet(-growth);
+            return false;
+        }
+        var replaced = classes.put(intName, code);
+        if (replaced != previous) {
+            // someone else changed it in the meantime
+            storedBytes.addAndGet(lengthOf(previous) - lengthOf(replaced));
+        }
+        return true;
+    }
+
+    private static long lengthOf(byte[] code) {
+        return code == null ? 0 : code.length;
+    }
+
+    /** The stored bytes, or null if they were never kept or have been released */
+    public byte[] get(String intName) {
+        return classes.get(intName);
+    }
+
+    public void release(String intName) {
+        var code = classes.remove(intName);
+        if (code != null) {
+            storedBytes.addAndGet(-code.length);
+        }
+    }
+
+    public int size() {
+        return classes.size();
+    }
+
+    public long storedBytes() {
+        return storedBytes.get();
+    }
+}
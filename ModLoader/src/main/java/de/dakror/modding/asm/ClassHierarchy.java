@@ -0,0 +1,546 @@
+package de.dakror.modding.asm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import de.dakror.modding.DefaultingHashMap;
+import de.dakror.modding.MemberInfo;
+import de.dakror.modding.ModAPI;
+
+/**
+ * The type hierarchy of everything the {@link ModScanner} has seen (and, on request, the game's classes), for
+ * questions that go further than one hop: all supertypes or subtypes of a class, whether one type is assignable to
+ * another, which method a virtual call ends up at, and which classes override a method. All names are internal names.
+ * <p>
+ * Every class gets an int ID. Superclasses and interfaces are kept as arrays of IDs and subtypes as one flat array
+ * indexed by ID, and the transitive closures are worked out the first time they're asked for and then kept as sorted
+ * ID arrays, so answering a question doesn't load any class and after the first time hardly allocates anything. Types
+ * that are only ever named (JDK classes, mostly) are in it too, just without supertypes or methods of their own.
+ * <p>
+ * It also answers the question frame computation asks ({@link ScannerClassWriter}), the common superclass of two
+ * types, which can be about any class at all: a type the hierarchy doesn't describe (a game or JDK class, unless the
+ * game is included) has just the header of its class file read the first time it comes up. Those headers and the
+ * common superclasses worked out from them are kept, since the same few pairs come up over and over.
+ * <p>
+ * Classes are as the mods leave them rather than as their class files have them, where the mods say how (see
+ * {@link IHeaderMod}): a replaced class has the header of its replacement, an augmented one the interfaces of its
+ * augmentations as well.
+ * <p>
+ * The hierarchy is a snapshot; {@link ModScanner#getHierarchy()} builds a new one after a class was rescanned.
+ */
+public final class ClassHierarchy implements ModAPI, Opcodes {
+    /** One class as the hierarchy needs it */
+    public static final class ClassEntry {
+        public final String name;
+        public final String superName;
+        public final List<String> interfaces;
+        public final int access;
+        /** by method name, like {@link ModScanner#getIntDeclaredMethods} */
+        public final Map<String, List<MemberInfo>> methods;
+
+        public ClassEntry(String name, String superName, List<String> interfaces, int access, Map<String, List<MemberInfo>> methods) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.access = access;
+            this.methods = methods;
+        }
+    }
+
+    /**
+     * A class mod that changes the superclass, interfaces or methods of the classes it hooks, and can tell how without
+     * transforming them, so the hierarchy shows the classes as the game will get them
+     */
+    public static interface IHeaderMod {
+        /** The hooked class as this mod leaves it; the entry itself if the mod doesn't change any of that */
+        ClassEntry redefineEntry(ClassEntry entry, ModScanner scanner);
+    }
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final int[] NONE = new int[0];
+    /** stands in for class files that couldn't be found, since a ConcurrentHashMap can't hold null */
+    private static final ClassEntry MISSING = new ClassEntry("", null, List.of(), -1, Map.of());
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final String[] names;
+    /** -1 for types that are only named, not described */
+    private final int[] access;
+    private final int[] superclass;
+    private final int[][] interfaces;
+    /** null for types that are only named */
+    private final ClassEntry[] described;
+    /** the direct subtypes of ID i are subtypes[subtypeStart[i]] up to subtypes[subtypeStart[i+1]] */
+    private final int[] subtypeStart;
+    private final int[] subtypes;
+
+    private final AtomicReferenceArray<int[]> supertypeClosure;
+    private final AtomicReferenceArray<int[]> subtypeClosure;
+    private final Map<String, List<MemberInfo>> overriders = new ConcurrentHashMap<>();
+
+    private final Function<String, ClassEntry> headers;
+    /** headers of the types that aren't described, as they were first asked for */
+    private final Map<String, ClassEntry> readHeaders = new ConcurrentHashMap<>();
+    private final Map<String, String> commonSuperClasses = new ConcurrentHashMap<>();
+
+    /**
+     * The hierarchy of the given classes. Headers gives the header of any other type, or null if there's no such type;
+     * it may be null itself, which leaves any other type unknown.
+     */
+    public ClassHierarchy(Collection<ClassEntry> classes, Function<String, ClassEntry> headers) {
+        this.headers = headers;
+        var entries = new ArrayList<ClassEntry>(classes.size());
+        var byName = new HashMap<String, ClassEntry>();
+        for (var entry: classes) {
+            if (byName.put(entry.name, entry) == null) {
+                entries.add(entry);
+            }
+        }
+        // described classes come first, the types they merely name after them
+        var allNames = new ArrayList<String>();
+        for (var entry: entries) {
+            intern(entry.name, allNames);
+        }
+        for (var entry: entries) {
+            if (entry.superName != null) {
+                intern(entry.superName, allNames);
+            }
+            for (var iface: entry.interfaces) {
+                intern(iface, allNames);
+            }
+        }
+
+        var count = allNames.size();
+        names = allNames.toArray(new String[0]);
+        access = new int[count];
+        superclass = new int[count];
+        interfaces = new int[count][];
+        described = new ClassEntry[count];
+        Arrays.fill(access, -1);
+        Arrays.fill(superclass, -1);
+        Arrays.fill(interfaces, NONE);
+        var subtypeCount = new int[count + 1];
+        for (var entry: entries) {
+            var id = ids.get(entry.name);
+            access[id] = entry.access;
+            described[id] = entry;
+            if (entry.superName != null) {
+                superclass[id] = ids.get(entry.superName);
+                subtypeCount[superclass[id]]++;
+            }
+            interfaces[id] = new int[entry.interfaces.size()];
+            for (int i = 0; i < interfaces[id].length; i++) {
+                interfaces[id][i] = ids.get(entry.interfaces.get(i));
+                subtypeCount[interfaces[id][i]]++;
+            }
+        }
+        subtypeStart = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            subtypeStart[i + 1] = subtypeStart[i] + subtypeCount[i];
+        }
+        subtypes = new int[subtypeStart[count]];
+        var fill = Arrays.copyOf(subtypeStart, count);
+        for (int id = 0; id < count; id++) {
+            if (superclass[id] >= 0) {
+                subtypes[fill[superclass[id]]++] = id;
+            }
+            for (var iface: interfaces[id]) {
+                subtypes[fill[iface]++] = id;
+            }
+        }
+        supertypeClosure = new AtomicReferenceArray<>(count);
+        subtypeClosure = new AtomicReferenceArray<>(count);
+    }
+
+    private void intern(String name, List<String> allNames) {
+        if (!ids.containsKey(name)) {
+            ids.put(name, allNames.size());
+            allNames.add(name);
+        }
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public boolean contains(String intName) {
+        return ids.containsKey(intName);
+    }
+
+    /** The class's access flags, or -1 if the hierarchy only knows its name */
+    public int getAccess(String intName) {
+        var id = ids.get(intName);
+        return id == null ? -1 : access[id];
+    }
+
+    public boolean isInterface(String intName) {
+        var classAccess = getAccess(intName);
+        return classAccess != -1 && (classAccess & ACC_INTERFACE) != 0;
+    }
+
+    /** Every superclass and interface the type extends or implements, directly or not, but not the type itself */
+    public List<String> getSupertypes(String intName) {
+        var id = ids.get(intName);
+        return id == null ? List.of() : toNames(supertypes(id));
+    }
+
+    /** Every class and interface that extends or implements the type, directly or not, but not the type itself */
+    public List<String> getSubtypes(String intName) {
+        var id = ids.get(intName);
+        return id == null ? List.of() : toNames(subtypes(id));
+    }
+
+    /** The non-interface subtypes of the type, which for an interface are the classes that implement it */
+    public List<String> getImplementors(String intName) {
+        var id = ids.get(intName);
+        if (id == null) {
+            return List.of();
+        }
+        var result = new ArrayList<String>();
+        for (var sub: subtypes(id)) {
+            if (access[sub] != -1 && (access[sub] & ACC_INTERFACE) == 0) {
+                result.add(names[sub]);
+            }
+        }
+        return result;
+    }
+
+    /** Whether a value of {@code subType} can be stored as {@code type}; false if either isn't in the hierarchy */
+    public boolean isAssignable(String type, String subType) {
+        if (type.equals(subType)) {
+            return true;
+        }
+        var typeId = ids.get(type);
+        var subTypeId = ids.get(subType);
+        return typeId != null && subTypeId != null && Arrays.binarySearch(supertypes(subTypeId), typeId) >= 0;
+    }
+
+    /**
+     * The method a call of {@code name descriptor} on {@code owner} resolves to (JVMS 5.4.3.3): declared in the class or
+     * one of its superclasses, or else the one default method among the maximally-specific superinterface methods, or
+     * else one of those (all abstract). Null if there's none in the hierarchy, which may just mean it's declared in a
+     * type the hierarchy only knows by name.
+     *
+     * @throws IncompatibleClassChangeError if more than one of the maximally-specific methods is a default method, which
+     * is what calling it would throw
+     */
+    public MemberInfo resolveMethod(String owner, String name, String descriptor) {
+        var id = ids.get(owner);
+        if (id == null) {
+            return null;
+        }
+        for (int type = id; type >= 0; type = superclass[type]) {
+            var method = declaredMethod(type, name, descriptor);
+            if (method != null) {
+                return method;
+            }
+        }
+        var candidates = maximallySpecificMethods(id, name, descriptor);
+        MemberInfo concrete = null;
+        for (var method: candidates) {
+            if ((method.access & ACC_ABSTRACT) != 0) {
+                continue;
+            }
+            if (concrete != null) {
+                throw new IncompatibleClassChangeError("Conflicting default methods for "+owner+'.'+name+descriptor+": "
+                                                       +concrete.owner+" and "+method.owner);
+            }
+            concrete = method;
+        }
+        if (concrete != null) {
+            return concrete;
+        }
+        return candidates.isEmpty() ? null : candidates.get(0);
+    }
+
+    /**
+     * The maximally-specific superinterface methods of {@code owner} for {@code name descriptor} (JVMS 5.4.3.3): every
+     * method of that name and descriptor declared in one of its superinterfaces, neither private nor static, that no
+     * other such method in a subinterface of that interface overrides
+     */
+    public List<MemberInfo> getMaximallySpecificMethods(String owner, String name, String descriptor) {
+        var id = ids.get(owner);
+        return id == null ? List.of() : maximallySpecificMethods(id, name, descriptor);
+    }
+
+    private List<MemberInfo> maximallySpecificMethods(int id, String name, String descriptor) {
+        var types = new ArrayList<Integer>();
+        var methods = new ArrayList<MemberInfo>();
+        for (var type: supertypes(id)) {
+            if (access[type] == -1 || (access[type] & ACC_INTERFACE) == 0) {
+                continue;
+            }
+            var method = declaredMethod(type, name, descriptor);
+            if (method != null && (method.access & (ACC_PRIVATE | ACC_STATIC)) == 0) {
+                types.add(type);
+                methods.add(method);
+            }
+        }
+        var result = new ArrayList<MemberInfo>(methods.size());
+        candidates:
+        for (int i = 0; i < types.size(); i++) {
+            for (int j = 0; j < types.size(); j++) {
+                if (i != j && Arrays.binarySearch(supertypes(types.get(j)), types.get(i)) >= 0) {
+                    // overridden in a subinterface that is a candidate too
+                    continue candidates;
+                }
+            }
+            result.add(methods.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * The methods in subtypes of {@code owner} that override its {@code name descriptor}, with their declaring class as
+     * owner. Static, private and constructor methods aren't overridden; package-private ones only within their package.
+     */
+    public List<MemberInfo> getOverriders(String owner, String name, String descriptor) {
+        var key = owner+'.'+name+descriptor;
+        var result = overriders.get(key);
+        if (result == null) {
+            result = findOverriders(owner, name, descriptor);
+            overriders.put(key, result);
+        }
+        return result;
+    }
+
+    private List<MemberInfo> findOverriders(String owner, String name, String descriptor) {
+        var id = ids.get(owner);
+        if (id == null || name.startsWith("<")) {
+            return List.of();
+        }
+        var overridden = declaredMethod(id, name, descriptor);
+        if (overridden != null && ((overridden.access & (ACC_PRIVATE | ACC_STATIC)) != 0)) {
+            return List.of();
+        }
+        var packagePrivate = overridden != null && (overridden.access & (ACC_PUBLIC | ACC_PROTECTED)) == 0;
+        var result = new ArrayList<MemberInfo>();
+        for (var sub: subtypes(id)) {
+            var method = declaredMethod(sub, name, descriptor);
+            if (method == null || (method.access & (ACC_PRIVATE | ACC_STATIC)) != 0) {
+                continue;
+            }
+            if (packagePrivate && !packageOf(names[sub]).equals(packageOf(owner))) {
+                continue;
+            }
+            result.add(method);
+        }
+        return List.copyOf(result);
+    }
+
+    private MemberInfo declaredMethod(int id, String name, String descriptor) {
+        if (described[id] == null) {
+            return null;
+        }
+        for (var method: described[id].methods.getOrDefault(name, List.of())) {
+            if (method.descriptor.equals(descriptor)) {
+                return method.withOwner(names[id]);
+            }
+        }
+        return null;
+    }
+
+    private int[] supertypes(int id) {
+        var closure = supertypeClosure.get(id);
+        if (closure == null) {
+            var seen = new BitSet(names.length);
+            var stack = new int[16];
+            int top = 0;
+            stack[top++] = id;
+            while (top > 0) {
+                var type = stack[--top];
+                if (stack.length < top + 1 + interfaces[type].length) {
+                    stack = Arrays.copyOf(stack, (top + 1 + interfaces[type].length) * 2);
+                }
+                if (superclass[type] >= 0 && !seen.get(superclass[type])) {
+                    seen.set(superclass[type]);
+                    stack[top++] = superclass[type];
+                }
+                for (var iface: interfaces[type]) {
+                    if (!seen.get(iface)) {
+                        seen.set(iface);
+                        stack[top++] = iface;
+                    }
+                }
+            }
+            seen.clear(id);
+            closure = seen.stream().toArray();
+            supertypeClosure.set(id, closure);
+        }
+        return closure;
+    }
+
+    private int[] subtypes(int id) {
+        var closure = subtypeClosure.get(id);
+        if (closure == null) {
+            var seen = new BitSet(names.length);
+            var stack = new int[16];
+            int top = 0;
+            stack[top++] = id;
+            while (top > 0) {
+                var type = stack[--top];
+                var start = subtypeStart[type];
+                var end = subtypeStart[type + 1];
+                if (stack.length < top + end - start) {
+                    stack = Arrays.copyOf(stack, (top + end - start) * 2);
+                }
+                for (int i = start; i < end; i++) {
+                    if (!seen.get(subtypes[i])) {
+                        seen.set(subtypes[i]);
+                        stack[top++] = subtypes[i];
+                    }
+                }
+            }
+            seen.clear(id);
+            closure = seen.stream().toArray();
+            subtypeClosure.set(id, closure);
+        }
+        return closure;
+    }
+
+    /** The most specific class both types extend, as {@link org.objectweb.asm.ClassWriter#getCommonSuperClass} wants it */
+    public String commonSuperClass(String type1, String type2) {
+        if (type1.equals(type2)) {
+            return type1;
+        }
+        // the answer doesn't depend on the order, so both orders share one entry
+        var key = type1.compareTo(type2) < 0 ? type1+';'+type2 : type2+';'+type1;
+        var common = commonSuperClasses.get(key);
+        if (common == null) {
+            common = commonSuperClass(type1, type2, null);
+            commonSuperClasses.put(key, common);
+        }
+        return common;
+    }
+
+    /**
+     * The same, where one of the types may be the class being written, which is described by the given entry rather
+     * than by whatever class file it came from; nothing about it is kept.
+     */
+    String commonSuperClass(String type1, String type2, ClassEntry own) {
+        var header1 = header(type1, own);
+        var header2 = header(type2, own);
+        if (header1 == MISSING || header2 == MISSING) {
+            debugln("frame computation: unknown type in %s / %s, assuming %s", type1, type2, OBJECT);
+            return OBJECT;
+        }
+        if (extendsOrIs(type1, type2, own)) {
+            return type1;
+        }
+        if (extendsOrIs(type2, type1, own)) {
+            return type2;
+        }
+        if ((header1.access & ACC_INTERFACE) != 0 || (header2.access & ACC_INTERFACE) != 0) {
+            return OBJECT;
+        }
+        for (var type = header1.superName; type != null; type = header(type, own).superName) {
+            if (extendsOrIs(type, type2, own)) {
+                return type;
+            }
+        }
+        return OBJECT;
+    }
+
+    /** Whether {@code subType} is {@code type} or extends or implements it, directly or not */
+    private boolean extendsOrIs(String type, String subType, ClassEntry own) {
+        if (type.equals(subType)) {
+            return true;
+        }
+        var header = header(subType, own);
+        if (header.superName != null && extendsOrIs(type, header.superName, own)) {
+            return true;
+        }
+        for (var iface: header.interfaces) {
+            if (extendsOrIs(type, iface, own)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The type as described, or else as its class file has it; MISSING if neither knows it */
+    private ClassEntry header(String intName, ClassEntry own) {
+        if (own != null && intName.equals(own.name)) {
+            return own;
+        }
+        var id = ids.get(intName);
+        if (id != null && described[id] != null) {
+            return described[id];
+        }
+        var header = readHeaders.get(intName);
+        if (header == null) {
+            header = headers == null ? null : headers.apply(intName);
+            if (header == null) {
+                header = MISSING;
+            }
+            readHeaders.put(intName, header);
+        }
+        return header;
+    }
+
+    /** The header of a class file, without its methods */
+    public static ClassEntry readHeader(InputStream in) throws IOException {
+        // a reader of its own, since the transformation asking may be using this thread's TransformContext buffer
+        var reader = new ClassReader(in);
+        return new ClassEntry(reader.getClassName(), reader.getSuperName(), List.of(reader.getInterfaces()), reader.getAccess(), Map.of());
+    }
+
+    private List<String> toNames(int[] typeIds) {
+        var result = new String[typeIds.length];
+        for (int i = 0; i < typeIds.length; i++) {
+            result[i] = names[typeIds[i]];
+        }
+        return List.of(result);
+    }
+
+    private static String packageOf(String intName) {
+        var slash = intName.lastIndexOf('/');
+        return slash < 0 ? "" : intName.substring(0, slash);
+    }
+
+    /** Collects a ClassEntry from a class file; accept it with SKIP_CODE, it doesn't need anything below the methods */
+    public static final class EntryReader extends ClassVisitor {
+        private String name;
+        private String superName;
+        private List<String> interfaces;
+        private int access;
+        private final Map<String, List<MemberInfo>> methods = DefaultingHashMap.using(ArrayList::new);
+
+        public EntryReader() {
+            super(ASM9);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces == null ? List.of() : List.of(interfaces);
+            this.access = access;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            methods.get(name).add(new MemberInfo(name, descriptor, access));
+            return null;
+        }
+
+        public ClassEntry getEntry() {
+            methods.get(DefaultingHashMap.FREEZE);
+            return new ClassEntry(name, superName, interfaces, access, methods);
+        }
+    }
+}
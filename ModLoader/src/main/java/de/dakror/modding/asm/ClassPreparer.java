@@ -0,0 +1,206 @@
+package de.dakror.modding.asm;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dakror.modding.ModAPI;
+import de.dakror.modding.platform.StubFactory;
+
+/**
+ * Transforms hooked classes on worker threads before the game asks for them. {@link #prepareAll} does every hooked
+ * class and waits for the lot; {@link #speculate} walks the class references out from the main class, queues the
+ * hooked classes it reaches in the order the game is likely to load them, and returns straight away so the work
+ * overlaps with the rest of startup. Either way, a prepared class is only handed out if the JVM asks for it with
+ * exactly the bytes it was prepared from.
+ */
+public class ClassPreparer implements ModAPI {
+    /** how many classes the speculative walk reads at most, so it can't end up crawling the whole game */
+    public static final int WALK_LIMIT = Integer.getInteger("de.dakror.modding.speculate.limit", 4096);
+
+    protected final ASMModLoader modLoader;
+    protected final ExecutorService executor;
+    protected final Map<String, Future<PreparedClass>> preparedClasses = new ConcurrentHashMap<>();
+
+    protected final AtomicInteger hits = new AtomicInteger();
+    protected final AtomicInteger waits = new AtomicInteger();
+    protected final AtomicInteger misses = new AtomicInteger();
+    protected final AtomicInteger wasted = new AtomicInteger();
+
+    protected static class PreparedClass {
+        public final byte[] original;
+        public final byte[] transformed;
+
+        public PreparedClass(byte[] original, byte[] transformed) {
+            this.original = original;
+            this.transformed = transformed;
+        }
+    }
+
+    public ClassPreparer(ASMModLoader modLoader, int threads) {
+        this.modLoader = modLoader;
+        this.executor = Executors.newFixedThreadPool(threads, task -> {
+            var thread = new Thread(task, "modloader-prepare");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Prepares every one of the given classes, returning once they're all done */
+    public void prepareAll(Collection<String> names) {
+        var start = Instant.now();
+        var futures = new ArrayList<Future<PreparedClass>>(names.size());
+        for (var name: names) {
+            futures.add(submit(name));
+        }
+        for (var future: futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) { }
+        }
+        executor.shutdown();
+        var elapsed = ChronoUnit.NANOS.between(start, Instant.now());
+        debugln("prepared %d classes, %d ns elapsed (%.3f ms)", names.size(), elapsed, (double)elapsed/1000000.0);
+    }
+
+    /** Queues the hooked classes reachable from mainClass, breadth-first, and returns without waiting for any of them */
+    public void speculate(String mainClass, Set<String> hookedClasses) {
+        executor.execute(() -> {
+            var start = Instant.now();
+            var queued = walkReferences(Util.toIntName(mainClass), hookedClasses);
+            executor.shutdown();
+            var elapsed = ChronoUnit.NANOS.between(start, Instant.now());
+            debugln("queued %d of %d hooked classes for speculative preparation, walk took %d ns (%.3f ms)", queued, hookedClasses.size(), elapsed, (double)elapsed/1000000.0);
+        });
+    }
+
+    private int walkReferences(String mainIntClass, Set<String> hookedClasses) {
+        var scanner = modLoader.getScanner();
+        var seen = new HashSet<String>();
+        var queue = new ArrayDeque<String>();
+        int queued = 0;
+        seen.add(mainIntClass);
+        queue.add(mainIntClass);
+        while (!queue.isEmpty() && seen.size() < WALK_LIMIT) {
+            var intName = queue.poll();
+            var name = Util.fromIntName(intName);
+            if (hookedClasses.contains(name)) {
+                // the transformed class may reference things the original doesn't, but those are the mods' own
+                // classes, which the scanner already covers below
+                submit(name);
+                queued++;
+            }
+            var references = scanner.getIntReferencedClasses(intName);
+            if (references == null) {
+                references = readReferences(intName);
+            }
+            for (var reference: references) {
+                if (!reference.startsWith("[") && seen.add(reference)) {
+                    queue.add(reference);
+                }
+            }
+        }
+        return queued;
+    }
+
+    private List<String> readReferences(String intName) {
+        var references = new ArrayList<String>();
+        try (var inputStream = modLoader.getResourceAsStream(intName+".class")) {
+            if (inputStream != null) {
+                try (var scan = TransformContext.current().scanClass(inputStream)) {
+                    ModScanner.readClassReferences(scan.reader, references);
+                }
+            }
+        } catch (IOException|RuntimeException e) { }
+        return references;
+    }
+
+    // in the map before it runs, so take() can't miss a class that is already being prepared and then have it turn up
+    // unasked-for; a class that's in there already isn't prepared twice
+    private Future<PreparedClass> submit(String name) {
+        var task = new FutureTask<>(() -> prepare(name));
+        var queued = preparedClasses.putIfAbsent(name, task);
+        if (queued != null) {
+            return queued;
+        }
+        executor.execute(task);
+        return task;
+    }
+
+    private PreparedClass prepare(String name) {
+        try {
+            byte[] original;
+            try (var inputStream = modLoader.getResourceAsStream(Util.toIntName(name)+".class")) {
+                // classes that only exist through the mods get a stub from the platform, so expect exactly that
+                original = inputStream != null ? TransformContext.current().readClass(inputStream) : StubFactory.makeStubFor(name);
+            }
+            return new PreparedClass(original, modLoader.transformClass(name, original));
+        } catch (ClassNotFoundException e) {
+            // not everything that's hooked can be defined on its own (e.g. the augmentations themselves)
+        } catch (IOException|RuntimeException e) {
+            debugln("could not prepare %s, leaving it to load time: %s", name, e);
+        }
+        return null;
+    }
+
+    /**
+     * The prepared version of the class, if there is one for exactly these bytes. Classes still waiting in the queue
+     * are dropped so the caller transforms them itself; ones already being worked on are waited for.
+     */
+    public byte[] take(String name, byte[] code) {
+        // each class is only defined once per loader, so the prepared copy isn't needed afterwards
+        var future = preparedClasses.remove(name);
+        if (future == null || future.cancel(false)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (!future.isDone()) {
+            waits.incrementAndGet();
+        }
+        PreparedClass prepared;
+        try {
+            prepared = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            prepared = null;
+        } catch (ExecutionException|CancellationException e) {
+            prepared = null;
+        }
+        if (prepared == null) {
+            misses.incrementAndGet();
+            return null;
+        } else if (!Arrays.equals(prepared.original, code)) {
+            wasted.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return prepared.transformed;
+    }
+
+    public String getStats() {
+        // anything prepared but never asked for was wasted too
+        var unused = preparedClasses.values().stream().filter(Future::isDone).count();
+        return String.format("%d hits (%d waited on), %d misses, %d wasted, %d never requested",
+                             hits.get(), waits.get(), misses.get(), wasted.get(), unused);
+    }
+}
@@ -1,31 +1,89 @@
 package de.dakror.modding.asm;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
 import org.objectweb.asm.commons.SimpleRemapper;
 
 import de.dakror.modding.ClassReplacementBase;
+import de.dakror.modding.MemberInfo;
 import de.dakror.modding.ModLoader;
 
 @ModLoader.Enabled(-1000)
-public class ClassReplacementImpl extends ClassReplacementBase<ClassVisitor, ClassReader> {
-    public ClassVisitor redefineClass(String className, ClassVisitor visitor, ClassReader reader) throws ClassNotFoundException {
-        return new ClassRemapper(
-            visitor,
-            new SimpleRemapper(
-                replacedClasses.get(className).replace('.','/'),
-                className.replace('.', '/')
-            )
+public class ClassReplacementImpl extends ClassReplacementBase<ClassVisitor, ClassReader> implements ClassHierarchy.IHeaderMod {
+    protected Map<String, Remapper> replacementRemappers = Map.of();
+
+    @Override
+    public void freeze() {
+        var remappers = new HashMap<String, Remapper>();
+        for (var className: replacedClasses.keySet()) {
+            remappers.put(className, newRemapper(className));
+        }
+        replacementRemappers = remappers;
+    }
+
+    @Override
+    public Collection<String> sourceChanged(String className) {
+        var names = new ArrayList<String>();
+        for (var entry: replacedClasses.entrySet()) {
+            if (entry.getValue().equals(className)) {
+                names.add(entry.getKey());
+            }
+        }
+        return names;
+    }
+
+    private Remapper newRemapper(String className) {
+        return new SimpleRemapper(
+            replacedClasses.get(className).replace('.','/'),
+            className.replace('.', '/')
         );
     }
 
+    public ClassVisitor redefineClass(String className, ClassVisitor visitor, ClassReader reader) throws ClassNotFoundException {
+        var remapper = replacementRemappers.get(className);
+        var replacedName = replacedClasses.get(className).replace('.','/');
+        return new SelectiveClassRemapper(visitor, remapper != null ? remapper : newRemapper(className), reader, List.of(replacedName));
+    }
+
+    /** A replaced class is its replacement, renamed */
+    @Override
+    public ClassHierarchy.ClassEntry redefineEntry(ClassHierarchy.ClassEntry entry, ModScanner scanner) {
+        var className = Util.fromIntName(entry.name);
+        var replacementIntName = Util.toIntName(replacedClasses.get(className));
+        var access = scanner.getIntClassAccess(replacementIntName);
+        if (access == -1) {
+            return entry;
+        }
+        var knownRemapper = replacementRemappers.get(className);
+        var remapper = knownRemapper != null ? knownRemapper : newRemapper(className);
+        var superName = scanner.getIntDeclaredSuperclass(replacementIntName);
+        var interfaces = scanner.getIntDeclaredInterfaces(replacementIntName).stream().map(remapper::mapType).collect(Collectors.toList());
+        var methods = new HashMap<String, List<MemberInfo>>();
+        for (var entryMethods: scanner.getIntDeclaredMethods(replacementIntName).entrySet()) {
+            methods.put(entryMethods.getKey(), entryMethods.getValue().stream()
+                .map(method -> new MemberInfo(method.name, remapper.mapMethodDesc(method.descriptor), method.access))
+                .collect(Collectors.toList()));
+        }
+        return new ClassHierarchy.ClassEntry(entry.name, superName == null ? null : remapper.mapType(superName), interfaces, access, methods);
+    }
+
     public class ReaderReplacement implements ModLoader.IClassMod.And<ClassReader, ASMModLoader> {
         public ClassReader redefineClass(String className, ClassReader reader, ASMModLoader modLoader) throws ClassNotFoundException {
             try {
-                return modLoader.newClassReader(replacedClasses.get(className));
+                var replacementIntName = Util.toIntName(replacedClasses.get(className));
+                var replacementReader = modLoader.newIntClassReader(replacementIntName);
+                // classes are only defined once, so there's no point keeping the bytes around after this
+                modLoader.getScanner().releaseIntSourceBytes(replacementIntName);
+                return replacementReader;
             } catch (IOException e) {
                 throw new ClassNotFoundException(e.getMessage());
             }
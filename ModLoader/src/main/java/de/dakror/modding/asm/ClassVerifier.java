@@ -0,0 +1,113 @@
+package de.dakror.modding.asm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.util.CheckClassAdapter;
+
+/**
+ * Checks transformed classes offline, so the launch itself doesn't have to. Run with
+ * {@code -Dde.dakror.modding.dump=<dir>}, and every class the mod loader or the agent transforms is written to that
+ * directory; afterwards,
+ * <pre>java -cp ModLoader.jar de.dakror.modding.asm.ClassVerifier [-cp game.jar:mods...] dir...</pre>
+ * runs each of them through ASM's {@link CheckClassAdapter} and a data-flow analysis of every method, on all cores,
+ * and exits with 1 if any fails. The classpath is used to look up the types the analysis runs into; the dumped
+ * classes themselves come first on it.
+ */
+public class ClassVerifier {
+    /** where transformed classes get dumped, by internal name, or null to not dump them */
+    public static final String DUMP_DIR = System.getProperty("de.dakror.modding.dump");
+
+    /** Writes out a transformed class, if dumping is on; never fails the transformation */
+    public static void dump(String name, byte[] code) {
+        if (DUMP_DIR == null) {
+            return;
+        }
+        try {
+            var path = Path.of(DUMP_DIR, name.replace('.', '/') + ".class");
+            Files.createDirectories(path.getParent());
+            Files.write(path, code);
+        } catch (IOException|RuntimeException e) {
+            System.err.println("Could not dump class "+name+": "+e);
+        }
+    }
+
+    /** The problems found in the class, or null if there are none */
+    public static String verify(byte[] code, ClassLoader loader) {
+        var output = new StringWriter();
+        try {
+            CheckClassAdapter.verify(new ClassReader(code), loader, false, new PrintWriter(output));
+        } catch (RuntimeException e) {
+            e.printStackTrace(new PrintWriter(output));
+        }
+        return output.getBuffer().length() == 0 ? null : output.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        var classpath = new ArrayList<URL>();
+        var roots = new ArrayList<Path>();
+        for (int i = 0; i < args.length; i++) {
+            if ((args[i].equals("-cp") || args[i].equals("--classpath")) && i + 1 < args.length) {
+                for (var entry: args[++i].split(File.pathSeparator)) {
+                    classpath.add(Path.of(entry).toUri().toURL());
+                }
+            } else {
+                roots.add(Path.of(args[i]));
+            }
+        }
+        if (roots.isEmpty()) {
+            System.err.println("usage: ClassVerifier [-cp classpath] dumpdir...");
+            System.exit(2);
+        }
+        var urls = new ArrayList<URL>();
+        for (var root: roots) {
+            urls.add(root.toUri().toURL());
+        }
+        urls.addAll(classpath);
+        var loader = new URLClassLoader(urls.toArray(URL[]::new), ClassVerifier.class.getClassLoader());
+
+        var files = new ArrayList<Path>();
+        for (var root: roots) {
+            try (Stream<Path> walk = Files.walk(root)) {
+                files.addAll(walk.filter(p -> p.toString().endsWith(".class")).collect(Collectors.toList()));
+            }
+        }
+        var executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        var results = new ArrayList<Future<String>>();
+        for (var file: files) {
+            results.add(executor.submit(() -> verify(Files.readAllBytes(file), loader)));
+        }
+        int failed = 0;
+        for (int i = 0; i < files.size(); i++) {
+            String problems;
+            try {
+                problems = results.get(i).get();
+            } catch (ExecutionException e) {
+                problems = e.getCause().toString();
+            }
+            if (problems != null) {
+                failed++;
+                System.out.println("FAILED "+files.get(i)+":");
+                System.out.println(problems);
+            }
+        }
+        executor.shutdown();
+        System.out.println(String.format("verified %d classes, %d failed", files.size(), failed));
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private ClassVerifier() { }
+}
@@ -1,16 +1,25 @@
 package de.dakror.modding.asm;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Array;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.jar.JarEntry;
@@ -29,28 +38,110 @@ import de.dakror.modding.DefaultingHashMap;
 import de.dakror.modding.IModScanner;
 import de.dakror.modding.MemberInfo;
 import de.dakror.modding.ModLoader;
+import de.dakror.modding.Patcher;
 
 public class ModScanner implements IModScanner, Opcodes {
     // constant values from org.objectweb.asm.Symbol, which is not public because...?
     /** The tag value of CONSTANT_Class_info JVMS structures. */
     static final int CONSTANT_CLASS_TAG = 7;
+    private static final String AUGMENTATION_CLASS = Type.getInternalName(Patcher.AugmentationClass.class);
+    private static final String REPLACEMENT_CLASS = Type.getInternalName(Patcher.ReplacementClass.class);
+    /** how many bytes of augmentation and replacement class files to keep in memory after the scan */
+    public static final long SOURCE_BYTES_LIMIT = Long.getLong("de.dakror.modding.scanner.sourceBytes", 16L << 20);
+    /**
+     * where the annotation processor leaves its indexes, one per module merged into the jar, see
+     * de.dakror.modding.processor.ModIndexProcessor; every file in it is one (including the "index" of older builds)
+     */
+    public static final String INDEX_DIR = "META-INF/dd-modloader/";
+    private static final String INDEX_HEADER = "# dd-modloader mod index v1";
+    /** set to false to ignore the indexes and scan every class, as for jars built without the processor */
+    public static final boolean USE_INDEX = !"false".equals(System.getProperty("de.dakror.modding.scanner.index"));
+    /** set to true to have the ClassHierarchy take in the game's classes (everything on the classpath but the mods) too */
+    public static final boolean HIERARCHY_INCLUDES_GAME = "true".equals(System.getProperty("de.dakror.modding.scanner.hierarchy.game"));
 
     protected Map<String, List<String>> classesByReference = DefaultingHashMap.using(ArrayList::new);
     protected Map<String, List<String>> classesByAnnotation = DefaultingHashMap.using(ArrayList::new);
-    protected Map<String, ClassInfo> scannedClasses = new HashMap<>() {
-        public ClassInfo get(Object key) { return super.getOrDefault(key, ClassInfo.EMPTY); }
-    };
+    protected Map<String, List<String>> referencesByClass = new HashMap<>();
+    /** raw bytes of the augmentation and replacement classes (and their inner classes), so they needn't be read again */
+    protected ClassBytesStore sourceClasses = new ClassBytesStore(SOURCE_BYTES_LIMIT);
+    protected Set<String> sourceClassNames = new HashSet<>();
+    /** source classes scanned from the current jar or directory, whose nested classes are kept once it's all scanned */
+    private final List<String> newSourceClasses = new ArrayList<>();
+    protected ClassInfoMap scannedClasses = new ClassInfoMap();
+    /** superclass and annotations of the annotated classes in indexed jars, which is all that mod discovery needs */
+    protected Map<String, IndexedClass> indexedClasses = new HashMap<>();
+    /** classes from indexed jars that haven't been read yet; they're scanned the first time anything asks about them */
+    protected Map<String, ClassSource> deferredClasses = new HashMap<>();
+    /** classes from indexed jars whose references haven't been read yet, all of which happens on the first reference query */
+    protected Map<String, ClassSource> deferredReferences = new HashMap<>();
+    protected volatile boolean referencesComplete = true;
+    private final List<JarFile> openJars = new ArrayList<>();
+    private final List<File> scannedFiles = new ArrayList<>();
+    /** built on first use, and dropped again when a class is rescanned */
+    private volatile ClassHierarchy hierarchy = null;
+    private List<ClassHierarchy.ClassEntry> gameClasses = null;
+    /** what the hierarchy reads the classes the scan didn't cover through, and asks how the mods change classes */
+    private ASMModLoader modLoader = null;
+
+    /** The scanned classes, where looking up one from an indexed jar scans it first */
+    protected class ClassInfoMap {
+        private final Map<String, ClassInfo> classes = new ConcurrentHashMap<>();
+
+        public ClassInfo get(String key) {
+            var info = classes.get(key);
+            if (info == null) {
+                info = scanDeferredClass(key);
+            }
+            return info != null ? info : ClassInfo.EMPTY;
+        }
+        ClassInfo getScanned(String key) {
+            return classes.get(key);
+        }
+        public void put(String key, ClassInfo info) {
+            classes.put(key, info);
+        }
+        public Collection<ClassInfo> values() {
+            return classes.values();
+        }
+        public int size() {
+            return classes.size();
+        }
+    }
+
+    @FunctionalInterface
+    protected static interface ClassSource {
+        InputStream open() throws IOException;
+    }
+
+    protected static class IndexedClass {
+        public final String name;
+        public final String superclass;
+        public final Map<String, Annotation<?>> annotations = new HashMap<>();
+
+        public IndexedClass(String name, String superclass) {
+            this.name = name;
+            this.superclass = superclass;
+        }
+    }
 
     @Override
     public void registered(ModLoader modLoader) {
+        if (modLoader instanceof ASMModLoader) {
+            this.modLoader = (ASMModLoader)modLoader;
+        }
         debugln("starting scan");
         var start = Instant.now();
+        // the loader's jar may have mods bundled into it, so it's scanned like any other (and only once, should it also
+        // be among the mod URLs)
         scanUrl(ModLoader.class.getProtectionDomain().getCodeSource().getLocation());
         for (var url : modLoader.getModUrls()) {
             scanUrl(url);
         }
         var elapsed = ChronoUnit.NANOS.between(start, Instant.now());
-        debugln("scan finished, %d ns elapsed (%.3f ms)", elapsed, (double)elapsed/1000000.0);
+        debugln("scan finished, %d classes scanned, %d left to read on demand from indexed jars, %d ns elapsed (%.3f ms)",
+                scannedClasses.size(), deferredClasses.size(), elapsed, (double)elapsed/1000000.0);
+
+        debugln("kept %d mod source classes in memory (%d bytes)", sourceClasses.size(), sourceClasses.storedBytes());
 
         // freeze the DefaultingHashMaps
         classesByAnnotation.get(DefaultingHashMap.FREEZE);
@@ -61,16 +152,206 @@ public class ModScanner implements IModScanner, Opcodes {
         // debugln("mod url: "+url.toString());
         try {
             var file = new File(url.toURI());
+            if (scannedFiles.contains(file.getAbsoluteFile())) {
+                return;
+            }
+            scannedFiles.add(file.getAbsoluteFile());
             if (file.isDirectory()) {
-                scanDirectory(file);
+                var indexes = new ArrayList<ClassSource>();
+                var indexFiles = new File(file, INDEX_DIR).listFiles(File::isFile);
+                for (var index: indexFiles == null ? new File[0] : indexFiles) {
+                    indexes.add(() -> new FileInputStream(index));
+                }
+                if (USE_INDEX && readIndexes(indexes, url)) {
+                    deferDirectory(file);
+                } else {
+                    scanDirectory(file);
+                    keepNestedSourceClasses(name -> {
+                        var classFile = new File(file, name + ".class");
+                        return classFile.isFile() ? () -> new FileInputStream(classFile) : null;
+                    });
+                }
             } else if (file.isFile()) {
-                scanJarFile(new JarFile(file));
+                var jarFile = new JarFile(file);
+                var indexes = new ArrayList<ClassSource>();
+                var entries = jarFile.entries();
+                while (entries.hasMoreElements()) {
+                    var entry = entries.nextElement();
+                    if (!entry.isDirectory() && entry.getName().startsWith(INDEX_DIR) && entry.getName().indexOf('/', INDEX_DIR.length()) < 0) {
+                        indexes.add(() -> jarFile.getInputStream(entry));
+                    }
+                }
+                if (USE_INDEX && readIndexes(indexes, url)) {
+                    deferJarFile(jarFile);
+                } else {
+                    scanJarFile(jarFile);
+                }
             }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Takes in the processor's indexes, if there are any and they're all ones we understand; nothing is recorded
+     * unless every index is
+     */
+    protected boolean readIndexes(List<ClassSource> indexes, URL url) throws IOException {
+        if (indexes.isEmpty()) {
+            return false;
+        }
+        var classes = new ArrayList<IndexedClass>();
+        for (var index: indexes) {
+            if (!readIndex(index.open(), url, classes)) {
+                return false;
+            }
+        }
+        for (var indexed: classes) {
+            indexedClasses.put(indexed.name, indexed);
+            for (var annotationName: indexed.annotations.keySet()) {
+                if (annotationName.equals("!defaults")) {
+                    continue;
+                }
+                classesByAnnotation.get(annotationName).add(indexed.name);
+                if (annotationName.equals(AUGMENTATION_CLASS) || annotationName.equals(REPLACEMENT_CLASS)) {
+                    sourceClassNames.add(indexed.name);
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean readIndex(InputStream inputStream, URL url, List<IndexedClass> classes) throws IOException {
+        try (var reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            if (!INDEX_HEADER.equals(reader.readLine())) {
+                debugln("unknown index format in %s, scanning it instead", url);
+                return false;
+            }
+            IndexedClass indexed = null;
+            for (String line; (line = reader.readLine()) != null; ) {
+                var fields = line.split("\t");
+                if (!line.startsWith("\t")) {
+                    classes.add(indexed = new IndexedClass(fields[0], fields[1]));
+                } else if (indexed != null) {
+                    var annotation = new Annotation<>(fields[1]);
+                    for (int i = 2; i < fields.length; i++) {
+                        var split = fields[i].indexOf('=');
+                        annotation.putStringValue(fields[i].substring(0, split), unescape(fields[i].substring(split + 1)));
+                    }
+                    indexed.annotations.put(fields[1], annotation);
+                }
+            }
+        } catch (RuntimeException e) {
+            debugln("malformed index in %s, scanning it instead: %s", url, e);
+            return false;
+        }
+        return true;
+    }
+
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        var result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            var c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                c = text.charAt(++i);
+                c = c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c;
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+
+    protected void deferDirectory(File dirFile) {
+        deferDirectory(dirFile, "");
+    }
+
+    private void deferDirectory(File dirFile, String prefix) {
+        for (var file: dirFile.listFiles()) {
+            if (file.isDirectory()) {
+                deferDirectory(file, prefix + file.getName() + "/");
+            } else if (file.getName().endsWith(".class")) {
+                var name = prefix + file.getName();
+                deferClass(name.substring(0, name.length() - 6), () -> new FileInputStream(file));
+            }
+        }
+    }
+
+    protected void deferJarFile(JarFile jarFile) {
+        // stays open for as long as classes may still be read from it
+        openJars.add(jarFile);
+        var entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            JarEntry entry = entries.nextElement();
+            var name = entry.getName();
+            if (name.endsWith(".class") && !entry.isDirectory() && !name.startsWith("META-INF/")) {
+                deferClass(name.substring(0, name.length() - 6), () -> jarFile.getInputStream(entry));
+            }
+        }
+    }
+
+    private void deferClass(String intName, ClassSource source) {
+        deferredClasses.put(intName, source);
+        deferredReferences.put(intName, source);
+        referencesComplete = false;
+    }
+
+    /** Scans a class from an indexed jar the first time it's needed */
+    private synchronized ClassInfo scanDeferredClass(String intName) {
+        var source = deferredClasses.remove(intName);
+        if (source == null) {
+            // not ours, or another thread got here first
+            return scannedClasses.getScanned(intName);
+        }
+        try (var inputStream = source.open(); var scan = TransformContext.current().scanClass(inputStream)) {
+            var scanner = new ClassInfoScanner(false);
+            scan.reader.accept(scanner, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            var info = scanner.getClassInfo();
+            scannedClasses.put(intName, info);
+            if (isSourceClass(intName)) {
+                sourceClasses.put(intName, scan.copy());
+            }
+            return info;
+        } catch (IOException|RuntimeException e) {
+            logln(Debug.Level.WARN, "Exception while scanning class %s: %s", intName, e);
+            return null;
+        }
+    }
+
+    /** Reads the references of every indexed class that might refer to a mod class, the first time they're asked for */
+    private void scanDeferredReferences() {
+        if (referencesComplete) {
+            return;
+        }
+        synchronized (this) {
+            if (referencesComplete) {
+                return;
+            }
+            var start = Instant.now();
+            classesByReference.get(DefaultingHashMap.UNFREEZE);
+            for (var entry: deferredReferences.entrySet()) {
+                var myname = entry.getKey();
+                var references = new ArrayList<String>();
+                try (var inputStream = entry.getValue().open(); var scan = TransformContext.current().scanClass(inputStream)) {
+                    readClassReferences(scan.reader, references);
+                } catch (IOException|RuntimeException e) {
+                    logln(Debug.Level.WARN, "Exception while scanning class %s: %s", myname, e);
+                }
+                for (var cname: references) {
+                    classesByReference.get(cname).add(myname);
+                }
+                referencesByClass.put(myname, references);
+            }
+            classesByReference.get(DefaultingHashMap.FREEZE);
+            var elapsed = ChronoUnit.NANOS.between(start, Instant.now());
+            debugln("read references of %d indexed classes, %d ns elapsed (%.3f ms)", deferredReferences.size(), elapsed, (double)elapsed/1000000.0);
+            deferredReferences.clear();
+            referencesComplete = true;
+        }
+    }
+
     // IModScanner external-name access functions
 
     @Override
@@ -116,6 +397,24 @@ public class ModScanner implements IModScanner, Opcodes {
     public Map<String, List<MemberInfo>> getDeclaredMethods(String className) {
         return getIntDeclaredMethods(Util.toIntName(className));
     }
+    @Override
+    public String[] getSupertypes(String className) {
+        return getHierarchy().getSupertypes(Util.toIntName(className))
+            .stream()
+            .map(Util::fromIntName)
+            .toArray(String[]::new);
+    }
+    @Override
+    public String[] getSubtypes(String className) {
+        return getHierarchy().getSubtypes(Util.toIntName(className))
+            .stream()
+            .map(Util::fromIntName)
+            .toArray(String[]::new);
+    }
+    @Override
+    public boolean isAssignable(String type, String subType) {
+        return getHierarchy().isAssignable(Util.toIntName(type), Util.toIntName(subType));
+    }
 
     // Internal-name access functions variants
 
@@ -124,17 +423,93 @@ public class ModScanner implements IModScanner, Opcodes {
     }
 
     public List<String> getIntReferencingClasses(String referencedIntClass) {
+        scanDeferredReferences();
         return classesByReference.getOrDefault(referencedIntClass, List.of());
     }
 
+    /** The classes named in a scanned class's constant pool, or null if the class wasn't part of the scan */
+    public List<String> getIntReferencedClasses(String referencingIntClass) {
+        return referencesByClass.get(referencingIntClass);
+    }
+
+    /** The class file of an augmentation or replacement class (or one of their inner classes), if it's still in memory */
+    public byte[] getIntSourceBytes(String classIntName) {
+        return sourceClasses.get(classIntName);
+    }
+
+    @Override
+    public boolean rescanClass(String className, byte[] code) {
+        return rescanIntClass(Util.toIntName(className), code);
+    }
+
+    /**
+     * Takes in a new version of a class. Everything the scan found in it is updated, except for what the mod
+     * discovery is already based on; false means that changed, and only a restart picks it up.
+     */
+    public synchronized boolean rescanIntClass(String intName, byte[] code) {
+        var oldInfo = scannedClasses.get(intName);
+        var reader = new ClassReader(code);
+        var scanner = new ClassInfoScanner(false);
+        reader.accept(scanner, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        var info = scanner.getClassInfo();
+        scannedClasses.put(intName, info);
+        hierarchy = null;
+        if (sourceClasses.get(intName) != null && !sourceClasses.put(intName, code)) {
+            // the old version mustn't outlive the new one
+            sourceClasses.release(intName);
+        }
+        rescanReferences(intName, reader);
+        if (oldInfo == ClassInfo.EMPTY) {
+            // a new class is fine, unless it's a new patch
+            return info.annotations.isEmpty();
+        }
+        return Objects.equals(oldInfo.superclass, info.superclass) && oldInfo.annotations.keySet().equals(info.annotations.keySet());
+    }
+
+    private void rescanReferences(String intName, ClassReader reader) {
+        scanDeferredReferences();
+        var references = new ArrayList<String>();
+        try {
+            readClassReferences(reader, references);
+        } catch (Exception e) {
+            logln(Debug.Level.WARN, "Exception while scanning class %s: %s", intName, e);
+        }
+        var oldReferences = referencesByClass.put(intName, references);
+        classesByReference.get(DefaultingHashMap.UNFREEZE);
+        if (oldReferences != null) {
+            for (var cname: oldReferences) {
+                classesByReference.get(cname).remove(intName);
+            }
+        }
+        for (var cname: references) {
+            classesByReference.get(cname).add(intName);
+        }
+        classesByReference.get(DefaultingHashMap.FREEZE);
+    }
+
+    /** Called once the class file won't be needed again (or at least not often enough to be worth keeping) */
+    public void releaseIntSourceBytes(String classIntName) {
+        sourceClasses.release(classIntName);
+    }
+
     public List<String> getIntAnnotatedClasses(String annotationIntClass) {
         return classesByAnnotation.getOrDefault(annotationIntClass, List.of());
     }
 
     public String getIntDeclaredSuperclass(String declaringIntClass) {
+        var indexed = indexedClasses.get(declaringIntClass);
+        if (indexed != null) {
+            return indexed.superclass;
+        }
         return scannedClasses.get(declaringIntClass).superclass;
     }
 
+    /** The class's access flags, or -1 if it isn't one of the scanned classes */
+    public int getIntClassAccess(String classIntName) {
+        var info = scannedClasses.get(classIntName);
+        return info == ClassInfo.EMPTY ? -1 : info.access;
+    }
+
     public List<String> getIntDeclaredInterfaces(String declaringIntClass) {
         return scannedClasses.get(declaringIntClass).interfaces;
     }
@@ -143,6 +518,15 @@ public class ModScanner implements IModScanner, Opcodes {
         return scannedClasses.get(classIntName).fields;
     }
 
+    /** All names listed in the class's InnerClasses attribute (which includes its outer classes, not just its own members) */
+    public List<String> getIntInnerClasses(String classIntName) {
+        return scannedClasses.get(classIntName).innerClasses;
+    }
+
+    public List<String> getIntNestMembers(String classIntName) {
+        return scannedClasses.get(classIntName).nestMembers;
+    }
+
     public Map<String, List<MemberInfo>> getIntDeclaredMethods(String classIntName) {
         return scannedClasses.get(classIntName).methods;
     }
@@ -158,7 +542,97 @@ public class ModScanner implements IModScanner, Opcodes {
                                                   .collect(Collectors.toUnmodifiableList());
     }
 
+    /**
+     * The type hierarchy of every scanned class, and of the game's classes as well with
+     * {@code -Dde.dakror.modding.scanner.hierarchy.game=true}. Building it reads the classes the indexes left for later.
+     */
+    public ClassHierarchy getHierarchy() {
+        var result = hierarchy;
+        if (result != null) {
+            return result;
+        }
+        synchronized (this) {
+            if (hierarchy != null) {
+                return hierarchy;
+            }
+            var start = Instant.now();
+            for (var intName: List.copyOf(deferredClasses.keySet())) {
+                scannedClasses.get(intName);
+            }
+            var entries = new ArrayList<ClassHierarchy.ClassEntry>();
+            // mod classes first, so they win over a game class of the same name
+            for (var info: scannedClasses.values()) {
+                entries.add(moddedEntry(new ClassHierarchy.ClassEntry(info.name, info.superclass, info.interfaces, info.access, info.methods)));
+            }
+            if (HIERARCHY_INCLUDES_GAME) {
+                if (gameClasses == null) {
+                    gameClasses = readGameClasses();
+                }
+                for (var entry: gameClasses) {
+                    entries.add(moddedEntry(entry));
+                }
+            }
+            hierarchy = result = new ClassHierarchy(entries, this::readHeader);
+            var elapsed = ChronoUnit.NANOS.between(start, Instant.now());
+            debugln("built class hierarchy of %d types, %d ns elapsed (%.3f ms)", result.size(), elapsed, (double)elapsed/1000000.0);
+            return result;
+        }
+    }
+
+    /** Drops the hierarchy, to be built again on next use, e.g. once the mods have registered everything they change */
+    public void hierarchyChanged() {
+        hierarchy = null;
+    }
+
+    private ClassHierarchy.ClassEntry moddedEntry(ClassHierarchy.ClassEntry entry) {
+        return modLoader == null ? entry : modLoader.moddedEntry(entry);
+    }
+
+    /** The header of a class the scan didn't cover, as the mods leave it */
+    private ClassHierarchy.ClassEntry readHeader(String intName) {
+        if (modLoader == null) {
+            return null;
+        }
+        try (var in = modLoader.getResourceAsStream(intName+".class")) {
+            return in == null ? null : moddedEntry(ClassHierarchy.readHeader(in));
+        } catch (IOException|RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** The classes on the classpath that the scan didn't cover, which is the game (and its libraries) */
+    private List<ClassHierarchy.ClassEntry> readGameClasses() {
+        var entries = new ArrayList<ClassHierarchy.ClassEntry>();
+        for (var path: System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+            var file = new File(path).getAbsoluteFile();
+            if (path.isEmpty() || scannedFiles.contains(file) || !file.isFile()) {
+                continue;
+            }
+            try (var jarFile = new JarFile(file)) {
+                var jarEntries = jarFile.entries();
+                while (jarEntries.hasMoreElements()) {
+                    var entry = jarEntries.nextElement();
+                    if (!entry.getName().endsWith(".class") || entry.isDirectory() || entry.getName().startsWith("META-INF/")) {
+                        continue;
+                    }
+                    try (var inputStream = jarFile.getInputStream(entry); var scan = TransformContext.current().scanClass(inputStream)) {
+                        var reader = new ClassHierarchy.EntryReader();
+                        scan.reader.accept(reader, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+                        entries.add(reader.getEntry());
+                    }
+                }
+            } catch (IOException|RuntimeException e) {
+                logln(Debug.Level.WARN, "Exception while reading the class hierarchy of %s: %s", file, e);
+            }
+        }
+        return entries;
+    }
+
     private Function<String, Annotation<?>> getIntClassAnnotations(String classIntName) {
+        var indexed = indexedClasses.get(classIntName);
+        if (indexed != null) {
+            return indexed.annotations::get;
+        }
         return scannedClasses.get(classIntName).annotations::get;
     }
 
@@ -185,42 +659,113 @@ public class ModScanner implements IModScanner, Opcodes {
                 scanInputStream(jarFile.getInputStream(entry));
             }
         }
+        keepNestedSourceClasses(name -> {
+            var entry = jarFile.getJarEntry(name + ".class");
+            return entry != null ? () -> jarFile.getInputStream(entry) : null;
+        });
         jarFile.close();
     }
 
     protected void scanInputStream(InputStream inputStream) throws Exception {
-        var cr = new ClassReader(inputStream);
+        try (inputStream; var scan = TransformContext.current().scanClass(inputStream)) {
+            scanClass(scan);
+        }
+    }
+
+    private void scanClass(TransformContext.Scan scan) {
+        var cr = scan.reader;
         var myname = cr.getClassName();
-        var count = cr. getItemCount();
-        var cbuf = new char[cr.getMaxStringLength()];
-        for (var i = 2; i < count; i++) {
-            int cpOff;
-            String cname;
-            cpOff = cr.getItem(i);
-            try {
-                if (cpOff > 0) {
-                    switch (cr.readByte(cpOff - 1)) {
-                    case CONSTANT_CLASS_TAG:
-                        cname = cr.readUTF8(cpOff, cbuf);
-                        if (cname.startsWith("java/")) continue;
-                        classesByReference.get(cname).add(myname);
-                        break;
-                    }
-                }
-            } catch (Exception e) {
-                debugln("Exception while scanning class %s: %s", myname, e);
-                break;
-            }
+        var references = new ArrayList<String>();
+        try {
+            readClassReferences(cr, references);
+        } catch (Exception e) {
+            logln(Debug.Level.WARN, "Exception while scanning class %s: %s", myname, e);
         }
+        for (var cname: references) {
+            classesByReference.get(cname).add(myname);
+        }
+        referencesByClass.put(myname, references);
 
-        var scanner = new ClassInfoScanner(this);
+        var scanner = new ClassInfoScanner(true);
         try {
             cr.accept(scanner, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
         } catch (Exception e) {
-            debugln("Exception while scanning class %s: %s", myname, e);
+            logln(Debug.Level.WARN, "Exception while scanning class %s: %s", myname, e);
         }
         scannedClasses.put(myname, scanner.getClassInfo());
-        inputStream.close();
+        if (scanner.isSource) {
+            sourceClassNames.add(myname);
+            newSourceClasses.add(myname);
+            sourceClasses.put(myname, scan.copy());
+        }
+    }
+
+    /**
+     * Keeps the class files of the classes nested in the source classes just scanned, at any depth, read again from
+     * wherever locate finds them. Which classes those are is only known once a source class has been scanned, and its
+     * nested classes may well have come before it, so this waits until the whole jar or directory is done.
+     */
+    private void keepNestedSourceClasses(Function<String, ClassSource> locate) {
+        var pending = new ArrayList<>(newSourceClasses);
+        newSourceClasses.clear();
+        while (!pending.isEmpty()) {
+            var info = scannedClasses.getScanned(pending.remove(pending.size() - 1));
+            if (info == null) {
+                continue;
+            }
+            for (var nested: List.of(info.innerClasses, info.nestMembers)) {
+                for (var intName: nested) {
+                    // the InnerClasses attribute also names outer classes and any other nested class it refers to
+                    if (sourceClasses.get(intName) != null || !isSourceClass(intName) || scannedClasses.getScanned(intName) == null) {
+                        continue;
+                    }
+                    var source = locate.apply(intName);
+                    if (source == null) {
+                        continue;
+                    }
+                    try (var inputStream = source.open()) {
+                        if (sourceClasses.put(intName, inputStream.readAllBytes())) {
+                            pending.add(intName);
+                        }
+                    } catch (IOException e) {
+                        logln(Debug.Level.WARN, "Exception while reading class %s: %s", intName, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the class is a recorded augmentation or replacement class or nested in one, at any depth; a source
+     * class may itself be nested (and have a '$' in its name), so this goes by the recorded names rather than by
+     * where the name splits
+     */
+    private boolean isSourceClass(String intName) {
+        for (var name = intName; ; ) {
+            if (sourceClassNames.contains(name)) {
+                return true;
+            }
+            var dollar = name.lastIndexOf('$');
+            if (dollar <= 0) {
+                return false;
+            }
+            name = name.substring(0, dollar);
+        }
+    }
+
+    /** Adds every non-JDK class named in the reader's constant pool to references */
+    public static void readClassReferences(ClassReader cr, List<String> references) {
+        var count = cr.getItemCount();
+        var cbuf = new char[cr.getMaxStringLength()];
+        for (var i = 2; i < count; i++) {
+            var cpOff = cr.getItem(i);
+            if (cpOff > 0 && cr.readByte(cpOff - 1) == CONSTANT_CLASS_TAG) {
+                var cname = cr.readUTF8(cpOff, cbuf);
+                if (!cname.startsWith("java/")) {
+                    references.add(cname);
+                }
+            }
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -272,30 +817,38 @@ public class ModScanner implements IModScanner, Opcodes {
     }
 
     private static class ClassInfo {
-        public static final ClassInfo EMPTY = new ClassInfo(-1, 0, null, null, List.of(), Map.of(), Map.of(), Map.of());
+        public static final ClassInfo EMPTY = new ClassInfo(-1, 0, null, null, List.of(), List.of(), List.of(), Map.of(), Map.of(), Map.of());
 
         public final int version;
         public final int access;
         public final String name;
         public final String superclass;
         public final List<String> interfaces;
+        public final List<String> innerClasses;
+        public final List<String> nestMembers;
         public final Map<String, Annotation<?>> annotations;
         public final Map<String, MemberInfo> fields;
         public final Map<String, List<MemberInfo>> methods;
 
         public ClassInfo(int version, int access, String name, String superclass, String[] interfaces, Function<String, Annotation<?>> newAnnotation) {
             this(version, access, name, superclass, List.of(interfaces),
+                /* innerClasses = */ new ArrayList<>(),
+                /* nestMembers = */ new ArrayList<>(),
                 /* annotations = */ new DefaultingHashMap<>(newAnnotation),
                 /* fields = */ new HashMap<>(),
                 /* methods = */ DefaultingHashMap.using(ArrayList::new));
         }
         public ClassInfo(ClassInfo info, Function<Annotation<?>, Annotation<?>> copyAnnotation) {
             this(info.version, info.access, info.name, info.superclass, List.copyOf(info.interfaces),
+                List.copyOf(info.innerClasses),
+                List.copyOf(info.nestMembers),
                 deepCopy(info.annotations, copyAnnotation),
                 Map.copyOf(info.fields),
                 deepCopy(info.methods, List::copyOf));
         }
         private ClassInfo(int version, int access, String name, String superclass, List<String> interfaces,
+                List<String> innerClasses,
+                List<String> nestMembers,
                 Map<String, Annotation<?>> annotations,
                 Map<String, MemberInfo> fields,
                 Map<String, List<MemberInfo>> methods) {
@@ -304,6 +857,8 @@ public class ModScanner implements IModScanner, Opcodes {
             this.name = name;
             this.superclass = superclass;
             this.interfaces = interfaces;
+            this.innerClasses = innerClasses;
+            this.nestMembers = nestMembers;
             this.annotations = annotations;
             this.fields = fields;
             this.methods = methods;
@@ -312,8 +867,12 @@ public class ModScanner implements IModScanner, Opcodes {
     private class ClassInfoScanner extends ClassVisitor {
         private ClassInfo classInfo;
         private boolean isAnnotation = false;
-        public ClassInfoScanner(ModScanner modScanner) {
+        private boolean isSource = false;
+        /** false for classes the index already covered, whose annotations are on record */
+        private final boolean recordAnnotations;
+        public ClassInfoScanner(boolean recordAnnotations) {
             super(ASM9);
+            this.recordAnnotations = recordAnnotations;
         }
         public ClassInfo getClassInfo() {
             return new ClassInfo(classInfo, Annotation::new);
@@ -323,12 +882,22 @@ public class ModScanner implements IModScanner, Opcodes {
             classInfo = new ClassInfo(version, access, name, superName, interfaces, Annotation::new);
         }
         public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
-            ModScanner.this.classesByAnnotation.get(Type.getType(descriptor).getInternalName()).add(classInfo.name);
+            var annotationName = Type.getType(descriptor).getInternalName();
+            if (recordAnnotations) {
+                ModScanner.this.classesByAnnotation.get(annotationName).add(classInfo.name);
+            }
+            isSource |= annotationName.equals(AUGMENTATION_CLASS) || annotationName.equals(REPLACEMENT_CLASS);
             if (visible) {
                 return new AnnotationScanner(classInfo.annotations.get(Type.getType(descriptor).getInternalName())::putValue);
             }
             return null;
         };
+        public void visitNestMember(String nestMember) {
+            classInfo.nestMembers.add(nestMember);
+        }
+        public void visitInnerClass(String name, String outerName, String innerName, int access) {
+            classInfo.innerClasses.add(name);
+        }
         public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
             classInfo.fields.put(name, new MemberInfo(name, descriptor, access));
             return null;
@@ -354,8 +923,30 @@ public class ModScanner implements IModScanner, Opcodes {
             this.valueHandler = valueHandler;
         }
         public void visit(String name, Object value) {
+            if (value.getClass().isArray()) {
+                // primitive arrays come in one piece
+                var elements = new ArrayList<String>();
+                for (int i = 0; i < Array.getLength(value); i++) {
+                    elements.add(String.valueOf(Array.get(value, i)));
+                }
+                valueHandler.accept(name, IAnnotation.joinArray(elements));
+            } else {
+                valueHandler.accept(name, value);
+            }
+        }
+        public void visitEnum(String name, String descriptor, String value) {
             valueHandler.accept(name, value);
         }
+        public AnnotationVisitor visitArray(String name) {
+            var elements = new ArrayList<String>();
+            return new AnnotationScanner((n, v) -> elements.add(v instanceof Type ? ((Type)v).getClassName() : String.valueOf(v))) {
+                @Override
+                public void visitEnd() {
+                    valueHandler.accept(name, IAnnotation.joinArray(elements));
+                }
+            };
+        }
+        // nested annotations have no string form, so they're left out, as the index leaves them out
     }
 
 }
@@ -0,0 +1,132 @@
+package de.dakror.modding.asm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+
+/**
+ * A frozen {@link SimpleRemapper}-style mapping table, stored as a flat open-addressing hash of strings. Tables are
+ * compared by content, so {@link Pool} can hand out one shared instance (and one shared {@link Remapper}) for every
+ * class that ends up with the same set of remaps. Instances never change after construction and so can be used
+ * from any thread.
+ */
+public final class RemapTable {
+    public static final RemapTable EMPTY = new RemapTable(Map.of());
+
+    private final String[] keys;
+    private final String[] values;
+    private final int mask;
+    private final int size;
+    private final int contentHash;
+    private final Remapper remapper;
+
+    private RemapTable(Map<String, String> mapping) {
+        // keep the load factor at or below 1/2 so probe sequences stay short
+        int capacity = Integer.highestOneBit(Math.max(1, mapping.size()) * 2 - 1) << 1;
+        keys = new String[capacity];
+        values = new String[capacity];
+        mask = capacity - 1;
+        size = mapping.size();
+        int hash = 0;
+        for (var entry: mapping.entrySet()) {
+            var key = entry.getKey();
+            int slot = slot(key);
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = entry.getValue();
+            hash += key.hashCode() ^ entry.getValue().hashCode();
+        }
+        contentHash = hash;
+        remapper = new SimpleRemapper(Map.of()) {
+            @Override
+            public String map(String key) {
+                return get(key);
+            }
+        };
+    }
+
+    public static RemapTable of(Map<String, String> mapping) {
+        return mapping.isEmpty() ? EMPTY : new RemapTable(mapping);
+    }
+
+    private int slot(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public String get(String key) {
+        for (int slot = slot(key);; slot = (slot + 1) & mask) {
+            var probe = keys[slot];
+            if (probe == null) {
+                return null;
+            } else if (probe.equals(key)) {
+                return values[slot];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Every name this table remaps, in no particular order */
+    public List<String> keys() {
+        var keyList = new ArrayList<String>(size);
+        for (var key: keys) {
+            if (key != null) {
+                keyList.add(key);
+            }
+        }
+        return keyList;
+    }
+
+    /** A remapper over this table, shared by every class that uses it */
+    public Remapper remapper() {
+        return remapper;
+    }
+
+    @Override
+    public int hashCode() {
+        return contentHash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        } else if (!(obj instanceof RemapTable)) {
+            return false;
+        }
+        var other = (RemapTable) obj;
+        if (size != other.size || contentHash != other.contentHash) {
+            return false;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && !values[i].equals(other.get(keys[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Deduplicates tables while they're being frozen, so identical mappings share one instance */
+    public static class Pool {
+        private final Map<RemapTable, RemapTable> tables = new HashMap<>();
+
+        public RemapTable intern(Map<String, String> mapping) {
+            var table = of(mapping);
+            var existing = tables.putIfAbsent(table, table);
+            return existing != null ? existing : table;
+        }
+
+        public int size() {
+            return tables.size();
+        }
+    }
+}
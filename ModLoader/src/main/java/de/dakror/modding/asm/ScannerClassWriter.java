@@ -0,0 +1,53 @@
+package de.dakror.modding.asm;
+
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * A ClassWriter that works out common superclasses from the scanner's {@link ClassHierarchy} rather than by loading the
+ * classes, which the default implementation does through Class.forName. Loading classes while one is being transformed
+ * is slow at best, and at worst loads a hooked class before its patches are in; with this, COMPUTE_FRAMES is safe.
+ */
+public class ScannerClassWriter extends ClassWriter {
+    private final ModScanner scanner;
+    private ClassHierarchy.ClassEntry ownHeader;
+
+    public ScannerClassWriter(ModScanner scanner, ClassReader classReader, int flags) {
+        super(classReader, flags);
+        this.scanner = scanner;
+    }
+
+    public ScannerClassWriter(ModScanner scanner, int flags) {
+        super(flags);
+        this.scanner = scanner;
+    }
+
+    /**
+     * This writer behind a visitor that notes down the class's header as it is written; the writer's own visit is
+     * final. Mods may change the superclass or interfaces, so this is how frame computation gets to see the new ones.
+     */
+    public ClassVisitor recordingHeader() {
+        return new ClassVisitor(Opcodes.ASM9, this) {
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                ownHeader = new ClassHierarchy.ClassEntry(name, superName, interfaces == null ? List.of() : List.of(interfaces), access, Map.of());
+                super.visit(version, access, name, signature, superName, interfaces);
+            }
+        };
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        // only built once frames are actually computed
+        var hierarchy = scanner.getHierarchy();
+        if (ownHeader != null && (type1.equals(ownHeader.name) || type2.equals(ownHeader.name))) {
+            return hierarchy.commonSuperClass(type1, type2, ownHeader);
+        }
+        return hierarchy.commonSuperClass(type1, type2);
+    }
+}
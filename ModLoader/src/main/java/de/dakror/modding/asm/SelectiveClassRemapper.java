@@ -0,0 +1,380 @@
+package de.dakror.modding.asm;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+
+/**
+ * A {@link ClassRemapper} that only remaps the methods that need it. Before the class is visited, its constant pool
+ * and each method's code and attributes are checked for references to any of the remapped class names; methods
+ * without any are handed straight to the next visitor, which lets a {@link ClassWriter} built from the same reader
+ * copy their bytecode verbatim instead of decoding and re-encoding every instruction.
+ *
+ * This only works for remappers that rename classes and nothing else. If any of the remapped names is a member
+ * (owner.name), every method gets remapped as usual.
+ */
+public class SelectiveClassRemapper extends ClassRemapper {
+    private final Set<String> untouchedMethods;
+
+    public SelectiveClassRemapper(ClassVisitor classVisitor, Remapper remapper, ClassReader reader, Collection<String> remappedNames) {
+        super(Opcodes.ASM9, classVisitor, remapper);
+        this.untouchedMethods = new MethodScan(reader, remappedNames).findUntouchedMethods();
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        if (untouchedMethods.contains(name + descriptor)) {
+            // nothing in here to remap, so let the writer have the original method
+            return cv == null ? null : cv.visitMethod(access, name, descriptor, signature, exceptions);
+        }
+        return super.visitMethod(access, name, descriptor, signature, exceptions);
+    }
+
+    // constant pool tags, see JVMS 4.4
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+
+    // opcodes that ASM keeps to itself
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int WIDE = 0xc4;
+
+    /** instruction lengths, 0 for the variable-length ones and anything that isn't a valid opcode */
+    private static final byte[] INSN_LENGTH = new byte[256];
+    static {
+        Arrays.fill(INSN_LENGTH, 0, 0xca, (byte)1);
+        INSN_LENGTH[Opcodes.BIPUSH] = 2;
+        INSN_LENGTH[Opcodes.SIPUSH] = 3;
+        INSN_LENGTH[Opcodes.LDC] = 2;
+        INSN_LENGTH[LDC_W] = 3;
+        INSN_LENGTH[LDC2_W] = 3;
+        Arrays.fill(INSN_LENGTH, Opcodes.ILOAD, Opcodes.ALOAD+1, (byte)2);
+        Arrays.fill(INSN_LENGTH, Opcodes.ISTORE, Opcodes.ASTORE+1, (byte)2);
+        INSN_LENGTH[Opcodes.IINC] = 3;
+        Arrays.fill(INSN_LENGTH, Opcodes.IFEQ, Opcodes.JSR+1, (byte)3);
+        INSN_LENGTH[Opcodes.RET] = 2;
+        INSN_LENGTH[Opcodes.TABLESWITCH] = 0;
+        INSN_LENGTH[Opcodes.LOOKUPSWITCH] = 0;
+        Arrays.fill(INSN_LENGTH, Opcodes.GETSTATIC, Opcodes.INVOKESTATIC+1, (byte)3);
+        INSN_LENGTH[Opcodes.INVOKEINTERFACE] = 5;
+        INSN_LENGTH[Opcodes.INVOKEDYNAMIC] = 5;
+        INSN_LENGTH[Opcodes.NEW] = 3;
+        INSN_LENGTH[Opcodes.NEWARRAY] = 2;
+        INSN_LENGTH[Opcodes.ANEWARRAY] = 3;
+        INSN_LENGTH[Opcodes.CHECKCAST] = 3;
+        INSN_LENGTH[Opcodes.INSTANCEOF] = 3;
+        INSN_LENGTH[WIDE] = 0;
+        INSN_LENGTH[Opcodes.MULTIANEWARRAY] = 4;
+        INSN_LENGTH[Opcodes.IFNULL] = 3;
+        INSN_LENGTH[Opcodes.IFNONNULL] = 3;
+        INSN_LENGTH[0xc8] = 5; // goto_w
+        INSN_LENGTH[0xc9] = 5; // jsr_w
+    }
+
+    /** Walks the raw class file; anything it doesn't fully understand counts as needing a remap */
+    private static class MethodScan {
+        private final ClassReader reader;
+        private final Collection<String> remappedNames;
+        private final char[] charBuffer;
+        private boolean[] relevant;
+
+        MethodScan(ClassReader reader, Collection<String> remappedNames) {
+            this.reader = reader;
+            this.remappedNames = remappedNames;
+            this.charBuffer = new char[reader.getMaxStringLength()];
+        }
+
+        Set<String> findUntouchedMethods() {
+            var untouched = new HashSet<String>();
+            for (var name: remappedNames) {
+                if (name.indexOf('.') >= 0) {
+                    return untouched;
+                }
+            }
+            markRelevantConstants();
+
+            int offset = reader.header + 6; // access, this_class, super_class
+            offset += 2 + reader.readUnsignedShort(offset) * 2;
+            int fieldCount = reader.readUnsignedShort(offset);
+            offset += 2;
+            for (int i = 0; i < fieldCount; i++) {
+                offset = skipAttributes(offset + 6);
+            }
+            int methodCount = reader.readUnsignedShort(offset);
+            offset += 2;
+            for (int i = 0; i < methodCount; i++) {
+                var name = reader.readUTF8(offset + 2, charBuffer);
+                var descriptor = reader.readUTF8(offset + 4, charBuffer);
+                boolean touched = mentions(descriptor);
+                int attributeCount = reader.readUnsignedShort(offset + 6);
+                offset += 8;
+                for (int j = 0; j < attributeCount; j++) {
+                    var attributeName = reader.readUTF8(offset, charBuffer);
+                    int length = reader.readInt(offset + 2);
+                    touched = touched || methodAttributeTouched(attributeName, offset + 6);
+                    offset += 6 + length;
+                }
+                if (!touched) {
+                    untouched.add(name + descriptor);
+                }
+            }
+            return untouched;
+        }
+
+        private int skipAttributes(int offset) {
+            int attributeCount = reader.readUnsignedShort(offset);
+            offset += 2;
+            for (int i = 0; i < attributeCount; i++) {
+                offset += 6 + reader.readInt(offset + 2);
+            }
+            return offset;
+        }
+
+        private boolean mentions(String value) {
+            if (value == null) {
+                return false;
+            }
+            for (var name: remappedNames) {
+                if (value.contains(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean relevant(int constantIndex) {
+            return constantIndex != 0 && relevant[constantIndex];
+        }
+
+        private void markRelevantConstants() {
+            int count = reader.getItemCount();
+            relevant = new boolean[count];
+            // entries can refer forwards, so go by kind: names and descriptors, then member refs, then handles to those
+            for (int i = 1; i < count; i++) {
+                int offset = reader.getItem(i);
+                if (offset == 0) continue;
+                switch (reader.readByte(offset - 1)) {
+                case CONSTANT_CLASS:
+                case CONSTANT_METHOD_TYPE:
+                    relevant[i] = mentions(reader.readUTF8(offset, charBuffer));
+                    break;
+                case CONSTANT_NAME_AND_TYPE:
+                    relevant[i] = mentions(reader.readUTF8(offset + 2, charBuffer));
+                    break;
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    // the bootstrap arguments could be anything, not worth chasing
+                    relevant[i] = true;
+                    break;
+                }
+            }
+            for (int i = 1; i < count; i++) {
+                int offset = reader.getItem(i);
+                if (offset == 0) continue;
+                switch (reader.readByte(offset - 1)) {
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                    relevant[i] = relevant(reader.readUnsignedShort(offset)) || relevant(reader.readUnsignedShort(offset + 2));
+                    break;
+                }
+            }
+            for (int i = 1; i < count; i++) {
+                int offset = reader.getItem(i);
+                if (offset != 0 && reader.readByte(offset - 1) == CONSTANT_METHOD_HANDLE) {
+                    relevant[i] = relevant(reader.readUnsignedShort(offset + 1));
+                }
+            }
+        }
+
+        private boolean methodAttributeTouched(String name, int offset) {
+            switch (name) {
+            case "Code":
+                return codeTouched(offset);
+            case "Signature":
+                return mentions(reader.readUTF8(offset, charBuffer));
+            case "Exceptions":
+                int count = reader.readUnsignedShort(offset);
+                for (int i = 0; i < count; i++) {
+                    if (relevant(reader.readUnsignedShort(offset + 2 + i * 2))) {
+                        return true;
+                    }
+                }
+                return false;
+            case "Deprecated":
+            case "Synthetic":
+            case "MethodParameters":
+                return false;
+            default:
+                // annotations and anything else we don't know the layout of
+                return true;
+            }
+        }
+
+        private boolean codeTouched(int offset) {
+            int codeLength = reader.readInt(offset + 4);
+            int codeStart = offset + 8;
+            if (instructionsTouched(codeStart, codeLength)) {
+                return true;
+            }
+            offset = codeStart + codeLength;
+            int handlerCount = reader.readUnsignedShort(offset);
+            offset += 2;
+            for (int i = 0; i < handlerCount; i++, offset += 8) {
+                if (relevant(reader.readUnsignedShort(offset + 6))) {
+                    return true;
+                }
+            }
+            int attributeCount = reader.readUnsignedShort(offset);
+            offset += 2;
+            for (int i = 0; i < attributeCount; i++) {
+                var name = reader.readUTF8(offset, charBuffer);
+                int length = reader.readInt(offset + 2);
+                int body = offset + 6;
+                switch (name) {
+                case "LineNumberTable":
+                    break;
+                case "LocalVariableTable":
+                case "LocalVariableTypeTable":
+                    int entryCount = reader.readUnsignedShort(body);
+                    for (int j = 0; j < entryCount; j++) {
+                        if (mentions(reader.readUTF8(body + 2 + j * 10 + 6, charBuffer))) {
+                            return true;
+                        }
+                    }
+                    break;
+                case "StackMapTable":
+                    if (stackMapTouched(body)) {
+                        return true;
+                    }
+                    break;
+                default:
+                    return true;
+                }
+                offset = body + length;
+            }
+            return false;
+        }
+
+        private boolean instructionsTouched(int codeStart, int codeLength) {
+            int pc = 0;
+            while (pc < codeLength) {
+                int opcode = reader.readByte(codeStart + pc);
+                switch (opcode) {
+                case Opcodes.LDC:
+                    if (relevant(reader.readByte(codeStart + pc + 1))) {
+                        return true;
+                    }
+                    pc += 2;
+                    break;
+                case LDC_W:
+                case LDC2_W:
+                case Opcodes.GETSTATIC:
+                case Opcodes.PUTSTATIC:
+                case Opcodes.GETFIELD:
+                case Opcodes.PUTFIELD:
+                case Opcodes.INVOKEVIRTUAL:
+                case Opcodes.INVOKESPECIAL:
+                case Opcodes.INVOKESTATIC:
+                case Opcodes.INVOKEINTERFACE:
+                case Opcodes.INVOKEDYNAMIC:
+                case Opcodes.NEW:
+                case Opcodes.ANEWARRAY:
+                case Opcodes.CHECKCAST:
+                case Opcodes.INSTANCEOF:
+                case Opcodes.MULTIANEWARRAY:
+                    if (relevant(reader.readUnsignedShort(codeStart + pc + 1))) {
+                        return true;
+                    }
+                    pc += INSN_LENGTH[opcode];
+                    break;
+                case Opcodes.TABLESWITCH: {
+                    // operands are 4-byte aligned relative to the start of the code
+                    int aligned = (pc + 4) & ~3;
+                    int low = reader.readInt(codeStart + aligned + 4);
+                    int high = reader.readInt(codeStart + aligned + 8);
+                    pc = aligned + 12 + (high - low + 1) * 4;
+                    break;
+                }
+                case Opcodes.LOOKUPSWITCH: {
+                    int aligned = (pc + 4) & ~3;
+                    int pairCount = reader.readInt(codeStart + aligned + 4);
+                    pc = aligned + 8 + pairCount * 8;
+                    break;
+                }
+                case WIDE:
+                    pc += reader.readByte(codeStart + pc + 1) == Opcodes.IINC ? 6 : 4;
+                    break;
+                default:
+                    if (INSN_LENGTH[opcode] == 0) {
+                        return true;
+                    }
+                    pc += INSN_LENGTH[opcode];
+                }
+            }
+            return false;
+        }
+
+        private boolean stackMapTouched(int offset) {
+            int frameCount = reader.readUnsignedShort(offset);
+            offset += 2;
+            for (int i = 0; i < frameCount; i++) {
+                int frameType = reader.readByte(offset++);
+                if (frameType < 64) {
+                    // same_frame
+                } else if (frameType < 128) {
+                    offset = skipVerificationTypes(offset, 1);
+                } else if (frameType < 247) {
+                    return true; // reserved
+                } else if (frameType == 247) {
+                    offset = skipVerificationTypes(offset + 2, 1);
+                } else if (frameType < 252) {
+                    offset += 2;
+                } else if (frameType < 255) {
+                    offset = skipVerificationTypes(offset + 2, frameType - 251);
+                } else {
+                    offset = skipVerificationTypes(offset + 4, reader.readUnsignedShort(offset + 2));
+                    if (offset >= 0) {
+                        offset = skipVerificationTypes(offset + 2, reader.readUnsignedShort(offset));
+                    }
+                }
+                if (offset < 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Returns the offset after the given number of verification_type_info entries, or -1 if one of them is relevant */
+        private int skipVerificationTypes(int offset, int count) {
+            for (int i = 0; i < count; i++) {
+                int tag = reader.readByte(offset++);
+                if (tag == 7) { // Object_variable_info
+                    if (relevant(reader.readUnsignedShort(offset))) {
+                        return -1;
+                    }
+                    offset += 2;
+                } else if (tag == 8) { // Uninitialized_variable_info
+                    offset += 2;
+                }
+            }
+            return offset;
+        }
+    }
+}
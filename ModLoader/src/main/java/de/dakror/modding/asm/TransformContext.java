@@ -0,0 +1,95 @@
+package de.dakror.modding.asm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Per-thread scratch space for reading class files. Everything gets read into one buffer that only ever grows, so a
+ * class costs a single exact-size copy (or none at all, for readers that are only scanned and then dropped) instead
+ * of the chain of growing arrays that {@link ClassReader#ClassReader(InputStream)} goes through.
+ * <p>
+ * A {@link Scan} has the buffer to itself until it's closed. Whatever gets read on the thread meanwhile (a scan that
+ * triggers another one, say) goes into a fresh array of its own, so it can't overwrite the class being scanned.
+ */
+public final class TransformContext {
+    private static final int INITIAL_SIZE = 64 * 1024;
+    private static final ThreadLocal<TransformContext> CONTEXT = ThreadLocal.withInitial(TransformContext::new);
+
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    /** whether an open Scan holds the buffer */
+    private boolean lent = false;
+    private int lastLength = 0;
+
+    private TransformContext() { }
+
+    public static TransformContext current() {
+        return CONTEXT.get();
+    }
+
+    /** A class file read by {@link #scanClass}, and the reader over it; close it when done with the reader */
+    public final class Scan implements AutoCloseable {
+        public final ClassReader reader;
+        private final byte[] bytes;
+        private final int length;
+        private final boolean pooled;
+
+        private Scan(byte[] bytes, int length, boolean pooled) {
+            this.reader = new ClassReader(bytes, 0, length);
+            this.bytes = bytes;
+            this.length = length;
+            this.pooled = pooled;
+        }
+
+        /** A copy of the class file, e.g. to hang on to one that was only scanned */
+        public byte[] copy() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        @Override
+        public void close() {
+            if (pooled) {
+                lent = false;
+            }
+        }
+    }
+
+    /** Reads the whole stream into into, or a bigger copy of it if it doesn't fit, which is returned */
+    private byte[] fill(InputStream inputStream, byte[] into) throws IOException {
+        if (inputStream == null) {
+            throw new IOException("Class not found");
+        }
+        int length = 0;
+        for (int read; (read = inputStream.read(into, length, into.length - length)) != -1; ) {
+            length += read;
+            if (length == into.length) {
+                into = Arrays.copyOf(into, into.length * 2);
+            }
+        }
+        lastLength = length;
+        return into;
+    }
+
+    /** Reads the whole stream into a new array of exactly the class's size */
+    public byte[] readClass(InputStream inputStream) throws IOException {
+        var pooled = !lent;
+        var bytes = fill(inputStream, pooled ? buffer : new byte[INITIAL_SIZE]);
+        if (pooled) {
+            buffer = bytes;
+        }
+        return Arrays.copyOf(bytes, lastLength);
+    }
+
+    /** A reader straight over the scratch buffer (or, while another scan holds it, an array of its own) */
+    public Scan scanClass(InputStream inputStream) throws IOException {
+        var pooled = !lent;
+        var bytes = fill(inputStream, pooled ? buffer : new byte[INITIAL_SIZE]);
+        if (pooled) {
+            buffer = bytes;
+            lent = true;
+        }
+        return new Scan(bytes, lastLength, pooled);
+    }
+}
@@ -39,7 +39,8 @@ class Augment {
     private final ClassAugmentationImpl.AugmentationChain chain;
     private final Remapper remapper;
     private final Collection<MemberInfo> fields;
-    private final Collection<MemberInfo> methods;
+    private final MemberInfo[] methods;
+    private final String[] methodKeys;
     private final Set<String> overlayFields = new HashSet<>();
     private final Map<String, MemberInfo> shadowedMethods = new HashMap<>();
     private final boolean isEnum;
@@ -51,8 +52,13 @@ class Augment {
         this.chain = chain;
         this.superName = scanner.getIntDeclaredSuperclass(augName);
         this.fields = scanner.collectDeclaredFields(augName);
-        this.methods = scanner.collectDeclaredMethods(augName);
+        this.methods = scanner.collectDeclaredMethods(augName).toArray(MemberInfo[]::new);
         this.isEnum = this.superName.equals("java/lang/Enum");
+        // both passes below need the (remapped) key for every declared method, so only work them out once
+        this.methodKeys = new String[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            methodKeys[i] = methodKey(methods[i]);
+        }
     }
 
     public Augment analyze(Map<String, String> augMethods) {
@@ -61,11 +67,12 @@ class Augment {
     }
     // first pass: record all nonprivate augmentation methods (and enum constructors) to figure out which is the top of the chain, and so the base knows what needs renaming
     private void analyzeMethods(Map<String, String> augMethods) {
-        for (var info: methods) {
+        for (int i = 0; i < methods.length; i++) {
+            var info = methods[i];
             if (info.isClassInitializer()) {
                 continue;
             }
-            var key = methodKey(info);
+            var key = methodKeys[i];
             if (!info.isPrivate() || (isEnum && info.isConstructor())) {
                 augMethods.put(key, augName);
             }
@@ -77,11 +84,12 @@ class Augment {
     //    - all nonprivate methods that aren't at the top of the aug chain
     // do NOT rename any constructors or class initializers.
     public void renameMethods(Map<String, String> augMethods, Map<String, String> nameMapping) {
-        for (var info: methods) {
+        for (int i = 0; i < methods.length; i++) {
+            var info = methods[i];
             if (info.isClassInitializer()) {
                 continue;
             }
-            var key = methodKey(info);
+            var key = methodKeys[i];
             if ((info.isPrivate() && !(isEnum && info.isConstructor())) || !augName.equals(augMethods.get(key))) {
                 if (info.isConstructor()) {
                     // give this shadowed initializer a discriminator argument
@@ -2,12 +2,9 @@ package de.dakror.modding.asm.augmentation;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -34,52 +31,41 @@ public class AugmentationVisitor extends ClassVisitor implements Opcodes {
     public static final Method CLINIT = Method.getMethod("void <clinit>()");
 
     protected final ClassAugmentationImpl.AugmentationChain chain;
+    protected final CompiledChain compiled;
     protected final ClassReader reader;
-    protected final String[] interfaces;
     protected final Augment[] augments;
     protected final Map<String, MemberInfo> visitedMembers = new HashMap<>();
-    protected final Map<String, String> augMethods = new HashMap<>();
+    protected final Map<String, String> augMethods;
     protected final List<MethodNode> clinitMethods = new ArrayList<>();
-    protected final Map<String, String> nameMapping;
     protected final Remapper remapper;
     protected final ModScanner scanner;
     protected final ASMModLoader modLoader;
     protected final ClinitCollector clinitCollector;
 
-    public static ClassVisitor create(ClassAugmentationImpl.AugmentationChain chain, ClassVisitor nextClassVisitor, ClassReader reader, Map<String, String> remaps, Remapper remapper) throws ClassNotFoundException {
+    public static ClassVisitor create(ClassAugmentationImpl.AugmentationChain chain, ClassVisitor nextClassVisitor, ClassReader reader, CompiledChain compiled) throws ClassNotFoundException {
         if ((reader.getAccess() & Opcodes.ACC_ENUM) != 0) {
-            return EnumAugmentationVisitor.create(chain, nextClassVisitor, reader, remaps, remapper);
+            return EnumAugmentationVisitor.create(chain, nextClassVisitor, reader, compiled);
         } else {
-            return new AugmentationVisitor(chain, nextClassVisitor, reader, remaps, remapper);
+            return new AugmentationVisitor(chain, nextClassVisitor, reader, compiled);
         }
     }
 
-    protected AugmentationVisitor(ClassAugmentationImpl.AugmentationChain chain, ClassVisitor classVisitor, ClassReader reader, Map<String, String> remaps, Remapper remapper) throws ClassNotFoundException {
+    protected AugmentationVisitor(ClassAugmentationImpl.AugmentationChain chain, ClassVisitor classVisitor, ClassReader reader, CompiledChain compiled) throws ClassNotFoundException {
         super(ASM9);
-        cv = new ClassRemapper(clinitCollector = new ClinitCollector(new AugmentationResultChecker(classVisitor)), remapper);
+        cv = new ClassRemapper(clinitCollector = new ClinitCollector(new AugmentationResultChecker(classVisitor)), compiled.remapper);
         this.chain = chain;
+        this.compiled = compiled;
         this.reader = reader;
-        this.nameMapping = remaps;
-        this.remapper = remapper;
-        Set<String> interfaces = new HashSet<>(Arrays.asList(reader.getInterfaces()));
+        this.remapper = compiled.remapper;
+        this.augments = compiled.augments;
+        this.augMethods = compiled.augMethods;
         modLoader = ASMModLoader.forReader(reader);
         scanner = modLoader.getScanner();
-        augments = new Augment[chain.augmentations.size()];
-        int i = 0;
-        for (var augName: chain.augmentations) {
-            var augIntName = Util.toIntName(augName);
-            interfaces.addAll(scanner.getIntDeclaredInterfaces(augIntName));
-            augments[i++] = new Augment(augIntName, scanner, chain, remapper).analyze(augMethods);
-        }
-        this.interfaces = interfaces.toArray(new String[0]);
     }
 
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-        for (var augName: chain.augmentations) {
-            version = Math.max(version, scanner.getClassVersion(augName));
-        }
-        super.visit(version, access, name, signature, superName, this.interfaces);
+        super.visit(Math.max(version, compiled.version), access, name, signature, superName, compiled.interfaces);
     }
 
     @Override
@@ -119,9 +105,9 @@ public class AugmentationVisitor extends ClassVisitor implements Opcodes {
             cv.visitNestMember(nestMember);
         }
         for (final var augment: augments) {
-            augment.renameFields(visitedMembers, nameMapping);
-            augment.renameMethods(augMethods, nameMapping);
             emitAugmentation(getAugReader(augment), augment);
+            // the chain is compiled and emitted, any later retransform can read the class again
+            scanner.releaseIntSourceBytes(augment.augName);
         }
         emitSynthetics();
         super.visitEnd();
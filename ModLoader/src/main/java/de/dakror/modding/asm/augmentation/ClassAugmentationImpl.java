@@ -1,26 +1,42 @@
 package de.dakror.modding.asm.augmentation;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
-import org.objectweb.asm.commons.ClassRemapper;
 import org.objectweb.asm.commons.SimpleRemapper;
 
 import de.dakror.modding.ClassAugmentationBase;
+import de.dakror.modding.DefaultingHashMap;
 import de.dakror.modding.asm.ASMModLoader;
+import de.dakror.modding.asm.ClassHierarchy;
+import de.dakror.modding.asm.ModScanner;
+import de.dakror.modding.asm.RemapTable;
+import de.dakror.modding.asm.SelectiveClassRemapper;
 import de.dakror.modding.asm.Util;
 import de.dakror.modding.ModLoader;
 
 @ModLoader.Enabled(-100)
-public class ClassAugmentationImpl extends ClassAugmentationBase<ClassVisitor, ClassReader> {
+public class ClassAugmentationImpl extends ClassAugmentationBase<ClassVisitor, ClassReader> implements ClassHierarchy.IHeaderMod {
     protected ASMModLoader modLoader;
+    protected Map<String, RemapTable> affectedTables = null;
+    /** the inner classes of augmentations, under the names they get as inner classes of the base */
+    protected final Set<String> syntheticClasses = new HashSet<>();
 
     public ClassAugmentationImpl(ASMModLoader modLoader) {
         this.modLoader = modLoader;
@@ -30,9 +46,121 @@ public class ClassAugmentationImpl extends ClassAugmentationBase<ClassVisitor, C
         return new AugmentationChain(className);
     }
 
+    /**
+     * Augmentations can only come in until {@link #freeze}, which works out the remaps of every class they affect; one
+     * added later would have its chain set up against the frozen remaps, so it's refused like one added to a compiled
+     * chain
+     */
+    @Override
+    public void augmentClass(String baseClass, String augmentationClass) {
+        if (affectedTables != null) {
+            throw new RuntimeException("Tried to add augmentation "+augmentationClass+" to chain for "+baseClass+", which is already compiled");
+        }
+        super.augmentClass(baseClass, augmentationClass);
+    }
+
+    /** The chain for the enum, creating an empty one if nothing augments it */
+    protected AugmentationChain enumChain(String enumClass) {
+        if (affectedTables != null) {
+            throw new RuntimeException("Tried to add enum constants to "+enumClass+", which is already compiled");
+        }
+        var chain = (AugmentationChain)augmentationChains.get(enumClass);
+        return chain != null ? chain : newAugmentationChain(enumClass);
+    }
+
+    @Override
+    public void extendEnum(String enumClass, String enumType, String constantClass) {
+        enumChain(enumClass).getEnumExtension(enumType).addAnnotatedClass(modLoader, Util.toIntName(constantClass));
+    }
+
+    @Override
+    public void extendEnumFromData(String enumClass, String enumType, String dataFile) {
+        var extension = enumChain(enumClass).getEnumExtension(enumType);
+        var start = Instant.now();
+        int before = extension.size();
+        var inputStream = modLoader.getClassLoader().getResourceAsStream(dataFile);
+        if (inputStream == null) {
+            throw new RuntimeException("Enum data file "+dataFile+" not found");
+        }
+        try (var reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            extension.addRows(reader, dataFile);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        var elapsed = ChronoUnit.NANOS.between(start, Instant.now());
+        debugln("read %d constants for %s from %s, %d ns elapsed (%.3f ms)", extension.size() - before, enumClass, dataFile, elapsed, (double)elapsed/1000000.0);
+    }
+
+    @Override
+    public Collection<String> syntheticClasses() {
+        return syntheticClasses;
+    }
+
+    @Override
+    public Collection<String> sourceChanged(String className) {
+        var chain = (AugmentationChain)augmentationChains.get(className);
+        if (chain == null || !chain.augmentations.contains(className)) {
+            return List.of();
+        }
+        chain.invalidate();
+        var names = new ArrayList<String>();
+        for (var entry: augmentationChains.entrySet()) {
+            if (entry.getValue() == chain) {
+                names.add(entry.getKey());
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public void freeze() {
+        // many affected classes reference the same augmented types and so end up with identical remaps; share those
+        var pool = new RemapTable.Pool();
+        var tables = new HashMap<String, RemapTable>();
+        for (var entry: affectedClasses.entrySet()) {
+            tables.put(entry.getKey(), pool.intern(entry.getValue()));
+        }
+        for (var chain: new HashSet<>(augmentationChains.values())) {
+            ((AugmentationChain)chain).freeze(pool);
+        }
+        affectedClasses.get(DefaultingHashMap.FREEZE);
+        affectedTables = tables;
+        debugln("froze remaps for %d affected classes into %d distinct tables", tables.size(), pool.size());
+    }
+
     @Override
     protected ClassVisitor redefineAffectedClass(String className, ClassVisitor classDef, ClassReader context, Map<String, String> renameMap) {
-        return new ClassRemapper(classDef, new SimpleRemapper(renameMap));
+        var table = affectedTables == null ? null : affectedTables.get(className);
+        if (table == null) {
+            table = RemapTable.of(renameMap);
+        }
+        return new SelectiveClassRemapper(classDef, table.remapper(), context, table.keys());
+    }
+
+    /**
+     * A class that names an augmentation gets the base class instead, an augmented class the interfaces of its
+     * augmentations as well, as {@link CompiledChain} has it
+     */
+    @Override
+    public ClassHierarchy.ClassEntry redefineEntry(ClassHierarchy.ClassEntry entry, ModScanner scanner) {
+        var className = Util.fromIntName(entry.name);
+        var chain = (AugmentationChain)augmentationChains.get(className);
+        Map<String, String> remaps = new HashMap<>(affectedClasses.getOrDefault(className, Map.of()));
+        if (chain != null) {
+            remaps.putAll(chain.innerClassRemaps);
+        }
+        var remapper = new SimpleRemapper(remaps);
+        var interfaces = new LinkedHashSet<String>();
+        for (var iface: entry.interfaces) {
+            interfaces.add(remapper.mapType(iface));
+        }
+        if (chain != null && className.equals(chain.baseName)) {
+            for (var augName: chain.augmentations) {
+                interfaces.addAll(scanner.getIntDeclaredInterfaces(Util.toIntName(augName)));
+            }
+        }
+        var superName = entry.superName == null ? null : remapper.mapType(entry.superName);
+        return new ClassHierarchy.ClassEntry(entry.name, superName, List.copyOf(interfaces), entry.access, entry.methods);
     }
 
     public class AugmentationChain extends ClassAugmentationBase<ClassVisitor, ClassReader>.AugmentationChain {
@@ -40,6 +168,10 @@ public class ClassAugmentationImpl extends ClassAugmentationBase<ClassVisitor, C
         public final Type baseType;
         protected final Map<String, String> innerClassRemaps = new HashMap<>();
         protected final List<String> extraNestMembers = new ArrayList<>();
+        protected CompiledChain compiledChain = null;
+        protected final Map<String, RemapTable> innerTables = new HashMap<>();
+        /** bulk constants for an enum base class, by the @ModEnum annotation type describing them */
+        protected final Map<String, EnumExtension> enumExtensions = new LinkedHashMap<>();
 
         public AugmentationChain(String baseClass) {
             super(baseClass);
@@ -52,26 +184,29 @@ public class ClassAugmentationImpl extends ClassAugmentationBase<ClassVisitor, C
             if (!super.addAugmentation(augmentation, force)) {
                 return false;
             }
-            try {
-                var scanner = modLoader.getScanner();
-                var augIntName = Util.toIntName(augmentation);
-                var declaredSuperclass = scanner.getIntDeclaredSuperclass(augIntName);
-                innerClassRemaps.put(augIntName, baseIntName);
-                if (!declaredSuperclass.equals(baseIntName) && !declaredSuperclass.startsWith("java/")) {
-                    innerClassRemaps.put(declaredSuperclass, baseIntName);
-                }
-                recordInnerClasses(augIntName, baseIntName+"$"+mappedClassName(augIntName)+"+");
-                for (var remappedClass: innerClassRemaps.keySet()) {
-                    for (var affectedClass: scanner.getIntReferencingClasses(remappedClass)) {
-                        affectedClasses.get(Util.fromIntName(affectedClass)).putAll(innerClassRemaps);
-                    }
+            var scanner = modLoader.getScanner();
+            var augIntName = Util.toIntName(augmentation);
+            var declaredSuperclass = scanner.getIntDeclaredSuperclass(augIntName);
+            innerClassRemaps.put(augIntName, baseIntName);
+            if (!declaredSuperclass.equals(baseIntName) && !declaredSuperclass.startsWith("java/")) {
+                innerClassRemaps.put(declaredSuperclass, baseIntName);
+            }
+            recordInnerClasses(augIntName, baseIntName+"$"+mappedClassName(augIntName)+"+");
+            for (var remappedClass: innerClassRemaps.keySet()) {
+                for (var affectedClass: scanner.getIntReferencingClasses(remappedClass)) {
+                    affectedClasses.get(Util.fromIntName(affectedClass)).putAll(innerClassRemaps);
                 }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
             }
             return true;
         }
 
+        protected EnumExtension getEnumExtension(String enumType) {
+            if (compiled) {
+                throw new RuntimeException("Tried to add enum constants to "+baseName+", which is already compiled");
+            }
+            return enumExtensions.computeIfAbsent(enumType, type -> new EnumExtension(modLoader, Util.toIntName(type)));
+        }
+
         /** Creates a valid JVM identifier from an internal class name */
         protected String mappedClassName(String name) {
             return name.replace('/', '-').replace('$', '+');
@@ -82,63 +217,78 @@ public class ClassAugmentationImpl extends ClassAugmentationBase<ClassVisitor, C
             return mappedClassName(className) + "#" + memberName.replace('<', '{').replace('>', '}');
         }
 
-        protected void recordInnerClasses(String outerIntName, String prefix) throws IOException {
-            var reader = modLoader.newIntClassReader(outerIntName);
-            reader.accept(
-                new RecordInnerClassVisitor(outerIntName, prefix),
-                ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        // the scanner already recorded the InnerClasses/NestMembers attributes, no need to read the class again
+        protected void recordInnerClasses(String outerIntName, String prefix) {
+            var scanner = modLoader.getScanner();
+            for (var nestMember: scanner.getIntNestMembers(outerIntName)) {
+                var mappedName = mapInnerName(outerIntName, prefix, nestMember);
+                if (mappedName != null)
+                    extraNestMembers.add(mappedName);
+            }
+            for (var name: scanner.getIntInnerClasses(outerIntName)) {
+                var mappedName = mapInnerName(outerIntName, prefix, name);
+                if (mappedName != null) {
+                    innerClassRemaps.put(name, mappedName);
+                    modLoader.replaceClass(mappedName.replace('/', '.'), name.replace('/','.')); // load the proper source file
+                    augmentationChains.put(mappedName.replace('/', '.'), AugmentationChain.this);
+                    syntheticClasses.add(mappedName.replace('/', '.'));
+                }
+            }
         }
 
-        protected class RecordInnerClassVisitor extends ClassVisitor {
-            private String outerIntName;
-            private String prefix;
-
-            public RecordInnerClassVisitor(String outerIntName, String prefix) {
-                super(Opcodes.ASM9);
-                this.outerIntName = outerIntName;
-                this.prefix = prefix;
+        private String mapInnerName(String outerIntName, String prefix, String origName) {
+            if (outerIntName.equals(origName)) {
+                return baseIntName;
+            } else if (!origName.startsWith(outerIntName+"$")) {
+                return null;
             }
+            return prefix + origName.substring(outerIntName.length()+1);
+        }
 
-            private String mapName(String origName) {
-                if (outerIntName.equals(origName)) {
-                    return baseIntName;
-                } else if (!origName.startsWith(outerIntName+"$")) {
-                    return null;
+        protected void freeze(RemapTable.Pool pool) {
+            for (var innerIntName: innerClassRemaps.values()) {
+                if (innerIntName.equals(baseIntName)) {
+                    continue;
                 }
-                return prefix + origName.substring(outerIntName.length()+1);
+                var className = Util.fromIntName(innerIntName);
+                Map<String, String> remaps = new HashMap<>(affectedClasses.getOrDefault(className, Map.of()));
+                remaps.putAll(innerClassRemaps);
+                innerTables.put(className, pool.intern(remaps));
             }
+        }
 
-            @Override
-            public void visitNestMember(String nestMember) {
-                nestMember = mapName(nestMember);
-                if (nestMember != null)
-                    extraNestMembers.add(nestMember);
-            }
+        /** Drops the analysis of the augmentations, so the next redefinition of the base class reads them again */
+        protected synchronized void invalidate() {
+            compiledChain = null;
+        }
 
-            public void visitInnerClass(String name, String outerName, String innerName, int access) {
-                var mappedName = mapName(name);
-                if (mappedName != null) {
-                    innerClassRemaps.put(name, mappedName);
-                    modLoader.replaceClass(mappedName.replace('/', '.'), name.replace('/','.')); // load the proper source file
-                    augmentationChains.put(mappedName.replace('/', '.'), AugmentationChain.this);
-                }
+        /** Analyzes every augmentation in the chain, the first time the base class gets redefined */
+        protected synchronized CompiledChain compile(ClassReader baseReader) {
+            if (compiledChain == null) {
+                Map<String, String> classRemaps = new HashMap<>(affectedClasses.getOrDefault(baseName, Map.of()));
+                classRemaps.putAll(innerClassRemaps);
+                compiledChain = new CompiledChain(this, modLoader.getScanner(), baseReader, classRemaps);
             }
+            return compiledChain;
         }
 
         public ClassVisitor redefineClass(String className, ClassVisitor nextVisitor, ClassReader reader) throws ClassNotFoundException {
             var origIntClassName = reader.getClassName();
             var intClassName = Util.toIntName(className);
-            Map<String, String> remaps = new HashMap<>(affectedClasses.get(className));
-            remaps.putAll(innerClassRemaps);
-            SimpleRemapper remapper = new SimpleRemapper(remaps);
             if (intClassName.equals(innerClassRemaps.get(origIntClassName))) {
-                return new ClassRemapper(nextVisitor, remapper);
+                var table = innerTables.get(className);
+                if (table == null) {
+                    Map<String, String> remaps = new HashMap<>(affectedClasses.getOrDefault(className, Map.of()));
+                    remaps.putAll(innerClassRemaps);
+                    table = RemapTable.of(remaps);
+                }
+                return new SelectiveClassRemapper(nextVisitor, table.remapper(), reader, table.keys());
             } else if (!className.equals(baseName)) {
                 // the original versions of the classes can't be loaded (this is to guard against unexpected and confusing behavior)
                 throw new ClassNotFoundException(className);
             }
             compiled = true; // don't allow any more augmentations after redefinition
-            return AugmentationVisitor.create(this, nextVisitor, reader, remaps, remapper);
+            return AugmentationVisitor.create(this, nextVisitor, reader, compile(reader));
         }
     }
 }
\ No newline at end of file
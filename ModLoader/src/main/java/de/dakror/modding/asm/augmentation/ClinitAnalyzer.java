@@ -156,6 +156,11 @@ class ClinitAnalyzer extends MethodVisitor implements Opcodes {
         private boolean enterPhase(Phase newPhase) {
             if (!updateLastInsn() && phase != Phase.ORD) {
                 // anything can happen in ORD phase, ignore it
+                if (phase == Phase.START) {
+                    // something other than an enum init after the last one, e.g. newer javac's $VALUES = $values()
+                    abandonCapture();
+                    return false;
+                }
                 throw new RuntimeException("Missed an instruction in phase "+phase);
             }
             if (phase == newPhase.prev) {
@@ -0,0 +1,80 @@
+package de.dakror.modding.asm.augmentation;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+
+import de.dakror.modding.MemberInfo;
+import de.dakror.modding.asm.ModScanner;
+import de.dakror.modding.asm.Util;
+
+/**
+ * The emission plan for an augmentation chain, worked out once when the base class is first redefined. Every
+ * {@link Augment} is analyzed and has its methods and fields renamed here, so that each {@link AugmentationVisitor}
+ * built for the chain afterwards (retransforms, multiple loaders) just replays the result instead of re-deriving it.
+ * Nothing in here changes after construction.
+ */
+public class CompiledChain {
+    public final Augment[] augments;
+    /** method key -> name of the augmentation at the top of the chain for that method */
+    public final Map<String, String> augMethods;
+    /** base interfaces plus those of every augmentation */
+    public final String[] interfaces;
+    /** highest class-file version of any augmentation */
+    public final int version;
+    /** class remaps for the base, plus every mangled member name */
+    public final Map<String, String> remaps;
+    public final Remapper remapper;
+
+    CompiledChain(ClassAugmentationImpl.AugmentationChain chain, ModScanner scanner, ClassReader baseReader, Map<String, String> classRemaps) {
+        // the Augments hold on to the remapper, and the member renames below are added to its table as they're found
+        var remaps = new HashMap<>(classRemaps);
+        var remapper = new SimpleRemapper(remaps);
+        var augMethods = new HashMap<String, String>();
+        Set<String> interfaces = new LinkedHashSet<>(Arrays.asList(baseReader.getInterfaces()));
+        int version = 0;
+
+        augments = new Augment[chain.augmentations.size()];
+        int i = 0;
+        for (var augName: chain.augmentations) {
+            var augIntName = Util.toIntName(augName);
+            interfaces.addAll(scanner.getIntDeclaredInterfaces(augIntName));
+            version = Math.max(version, scanner.getIntClassVersion(augIntName));
+            augments[i++] = new Augment(augIntName, scanner, chain, remapper).analyze(augMethods);
+        }
+
+        var baseFields = collectFields(baseReader, chain.baseIntName);
+        for (var augment: augments) {
+            augment.renameFields(baseFields, remaps);
+            augment.renameMethods(augMethods, remaps);
+        }
+
+        this.augMethods = Map.copyOf(augMethods);
+        this.interfaces = interfaces.toArray(new String[0]);
+        this.version = version;
+        this.remaps = Collections.unmodifiableMap(remaps);
+        this.remapper = remapper;
+    }
+
+    private static Map<String, MemberInfo> collectFields(ClassReader reader, String owner) {
+        var fields = new HashMap<String, MemberInfo>();
+        reader.accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+                fields.put(name, new MemberInfo(name, descriptor, access, owner));
+                return null;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return fields;
+    }
+}
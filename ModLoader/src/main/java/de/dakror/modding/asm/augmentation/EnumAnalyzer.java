@@ -1,5 +1,8 @@
 package de.dakror.modding.asm.augmentation;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
@@ -20,6 +23,9 @@ public class EnumAnalyzer extends ClassVisitor implements Opcodes {
     private Type enumArrayType;
 
     public final EnumMemberMap enumFields = new EnumMemberMap();
+    /** helpers that each create a chunk of the bulk constants, given the values array */
+    public final List<Method> extensionInitializers = new ArrayList<>();
+    public int extensionCount = 0;
     public int clinitMaxLocals = 0;
     public int clinitMaxStack = 0;
 
@@ -74,7 +80,7 @@ public class EnumAnalyzer extends ClassVisitor implements Opcodes {
             field.getInitInsns().accept(gen);
         }
         // collect the values into an array for use in the values() function
-        gen.push(fields.length);
+        gen.push(fields.length + extensionCount);
         gen.newArray(enumType);
         for (var field: fields) {
             gen.dup();
@@ -82,6 +88,11 @@ public class EnumAnalyzer extends ClassVisitor implements Opcodes {
             gen.getStatic(enumType, field.name, enumType);
             gen.arrayStore(enumType);
         }
+        // the bulk constants come after all the declared ones and fill in their part of the array themselves
+        for (var initializer: extensionInitializers) {
+            gen.dup();
+            gen.invokeStatic(enumType, initializer);
+        }
         gen.putStatic(enumType, "ENUM$allvalues", enumArrayType);
     }
 
@@ -1,18 +1,20 @@
 package de.dakror.modding.asm.augmentation;
 
 import java.lang.ref.WeakReference;
-import java.util.Map;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.GeneratorAdapter;
 import org.objectweb.asm.commons.Method;
-import org.objectweb.asm.commons.Remapper;
 
+import de.dakror.modding.asm.Util;
 import de.dakror.modding.asm.augmentation.ClassAugmentationImpl.AugmentationChain;
 
 public class EnumAugmentationVisitor extends AugmentationVisitor {
+    /** roughly how much bytecode each bulk constant initializer gets, well clear of the 64KB method limit */
+    protected static final int INITIALIZER_BYTES = 16 * 1024;
+
     protected final Method VALUES;
     protected final Method VALUEOF;
     protected final Type enumType;
@@ -21,12 +23,12 @@ public class EnumAugmentationVisitor extends AugmentationVisitor {
     protected final EnumMemberMap enumFields = new EnumMemberMap();
     protected final WeakReference<EnumAnalyzer> enumAnalyzer;
 
-    public static ClassVisitor create(AugmentationChain chain, ClassVisitor nextClassVisitor, ClassReader reader, Map<String, String> remaps, Remapper remapper) throws ClassNotFoundException {
-        return new EnumAugmentationVisitor(chain, nextClassVisitor, reader, remaps, remapper).enumAnalyzer.get();
+    public static ClassVisitor create(AugmentationChain chain, ClassVisitor nextClassVisitor, ClassReader reader, CompiledChain compiled) throws ClassNotFoundException {
+        return new EnumAugmentationVisitor(chain, nextClassVisitor, reader, compiled).enumAnalyzer.get();
     }
 
-    private EnumAugmentationVisitor(AugmentationChain chain, ClassVisitor nextClassVisitor, ClassReader reader, Map<String, String> remaps, Remapper remapper) throws ClassNotFoundException {
-        super(chain, nextClassVisitor, reader, remaps, remapper);
+    private EnumAugmentationVisitor(AugmentationChain chain, ClassVisitor nextClassVisitor, ClassReader reader, CompiledChain compiled) throws ClassNotFoundException {
+        super(chain, nextClassVisitor, reader, compiled);
         // the only time we get called will be FROM the EnumAnalyzer, so we don't need a strong ref back to it
         this.enumAnalyzer = new WeakReference<>(new EnumAnalyzer(this));
         VALUES = Method.getMethod(chain.baseName + "[] values()");
@@ -49,8 +51,58 @@ public class EnumAugmentationVisitor extends AugmentationVisitor {
         super.emitClinit(gen, Math.max(maxStack, enumAnalyzer.get().clinitMaxStack), Math.max(maxLocals, enumAnalyzer.get().clinitMaxLocals));
     }
 
+    /**
+     * Declares the bulk constants from the chain's enum extensions and generates their initializers, each creating as
+     * many constants as fit in {@link #INITIALIZER_BYTES}, for the {@code <clinit>} to call.
+     */
+    protected void emitExtensions() {
+        var analyzer = enumAnalyzer.get();
+        var constantDesc = enumType.getDescriptor();
+        int ordinal = analyzer.enumFields.nextEnumOrd;
+        GeneratorAdapter gen = null;
+        int initializerBytes = 0;
+        int maxStack = 0;
+        for (var extension: chain.enumExtensions.values()) {
+            if (extension.size() > 0 && !visitedMembers.containsKey(Util.methodKey("<init>", extension.constructor.getDescriptor()))) {
+                throw new RuntimeException("Enum "+chain.baseName+" has no constructor "+extension.constructor.getDescriptor()+" for the arguments of @"+Util.fromIntName(extension.enumTypeIntName));
+            }
+            for (int i = 0; i < extension.size(); i++) {
+                var name = extension.getName(i);
+                if (analyzer.enumFields.containsKey(name)) {
+                    throw new RuntimeException("Enum "+chain.baseName+" already has a constant "+name);
+                }
+                // not final: those can only be set from <clinit> itself, and there isn't room for thousands of them
+                cv.visitField(ACC_PUBLIC | ACC_STATIC | ACC_ENUM, name, constantDesc, null, null).visitEnd();
+                int size = extension.estimateSize(i);
+                if (gen == null || initializerBytes + size > INITIALIZER_BYTES) {
+                    if (gen != null) {
+                        endInitializer(gen, maxStack);
+                    }
+                    var initializer = new Method("ENUM$init$" + analyzer.extensionInitializers.size(), Type.VOID_TYPE, new Type[] { enumArrayType });
+                    analyzer.extensionInitializers.add(initializer);
+                    gen = genMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, initializer, null);
+                    initializerBytes = 0;
+                    maxStack = 0;
+                }
+                initializerBytes += size;
+                maxStack = Math.max(maxStack, extension.emitConstant(gen, enumType, i, ordinal++));
+            }
+        }
+        if (gen != null) {
+            endInitializer(gen, maxStack);
+        }
+        analyzer.extensionCount = ordinal - analyzer.enumFields.nextEnumOrd;
+    }
+
+    private void endInitializer(GeneratorAdapter gen, int maxStack) {
+        gen.returnValue();
+        gen.visitMaxs(maxStack, 1);
+        gen.visitEnd();
+    }
+
     @Override
     protected void emitSynthetics() {
+        emitExtensions();
         super.emitSynthetics();
         enumAnalyzer.get().emitValueOfMethod(cv);
         enumAnalyzer.get().emitValuesMethod(cv);
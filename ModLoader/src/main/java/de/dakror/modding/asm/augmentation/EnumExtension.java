@@ -0,0 +1,377 @@
+package de.dakror.modding.asm.augmentation;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+
+import de.dakror.modding.asm.ASMModLoader;
+import de.dakror.modding.asm.Util;
+
+/**
+ * Constants added to an enum in bulk, all built with the constructor described by one @ModEnum annotation type. They
+ * are kept as plain argument values and only turned into bytecode when the enum gets emitted, so adding thousands of
+ * them costs little more than their data.
+ */
+class EnumExtension implements Opcodes {
+    private static final int CONSTANT_OVERHEAD = 24;
+
+    public final String enumTypeIntName;
+    public final Method constructor;
+    private final String[] elementNames;
+    private final Type[] elementTypes;
+    private final Object[] defaults;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Object[]> arguments = new ArrayList<>();
+
+    /** An enum constant used as an argument */
+    private static class EnumValue {
+        public final Type type;
+        public final String name;
+
+        public EnumValue(Type type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+    }
+
+    public EnumExtension(ASMModLoader modLoader, String enumTypeIntName) {
+        this.enumTypeIntName = enumTypeIntName;
+        var names = new ArrayList<String>();
+        var types = new ArrayList<Type>();
+        var defaults = new ArrayList<Object>();
+        readClass(modLoader, enumTypeIntName).accept(new ClassVisitor(ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                // the elements are the abstract methods, in declaration order
+                if ((access & ACC_ABSTRACT) == 0) {
+                    return null;
+                }
+                final int index = names.size();
+                names.add(name);
+                types.add(Type.getReturnType(descriptor));
+                defaults.add(null);
+                return new MethodVisitor(ASM9) {
+                    @Override
+                    public AnnotationVisitor visitAnnotationDefault() {
+                        return new ValueReader((k, v) -> defaults.set(index, v), null);
+                    }
+                };
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        elementNames = names.toArray(String[]::new);
+        elementTypes = types.toArray(Type[]::new);
+        this.defaults = defaults.toArray();
+
+        var argumentTypes = new Type[elementTypes.length + 2];
+        argumentTypes[0] = Type.getType(String.class);
+        argumentTypes[1] = Type.INT_TYPE;
+        System.arraycopy(elementTypes, 0, argumentTypes, 2, elementTypes.length);
+        constructor = new Method("<init>", Type.VOID_TYPE, argumentTypes);
+    }
+
+    private static ClassReader readClass(ASMModLoader modLoader, String intName) {
+        try {
+            return modLoader.newIntClassReader(intName);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    private void add(String name, Object[] values, String source) {
+        var args = new Object[elementNames.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = values[i] != null ? values[i] : defaults[i];
+            if (args[i] == null) {
+                throw new RuntimeException(source+": no value for "+elementNames[i]+" of enum constant "+name);
+            }
+        }
+        names.add(name);
+        arguments.add(args);
+    }
+
+    /** Adds the constant described by the class's annotation, named after the class */
+    public void addAnnotatedClass(ASMModLoader modLoader, String classIntName) {
+        var descriptor = Type.getObjectType(enumTypeIntName).getDescriptor();
+        var values = new HashMap<String, Object>();
+        readClass(modLoader, classIntName).accept(new ClassVisitor(ASM9) {
+            @Override
+            public AnnotationVisitor visitAnnotation(String annotationDescriptor, boolean visible) {
+                return annotationDescriptor.equals(descriptor) ? new ValueReader(values::put, null) : null;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        var args = new Object[elementNames.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = values.get(elementNames[i]);
+        }
+        var simpleName = classIntName.substring(Math.max(classIntName.lastIndexOf('/'), classIntName.lastIndexOf('$')) + 1);
+        add(simpleName, args, Util.fromIntName(classIntName));
+    }
+
+    /** Adds a constant for every row of the data file, see {@link de.dakror.modding.Patcher.ModEnumData} */
+    public void addRows(BufferedReader reader, String source) throws IOException {
+        int lineNumber = 0;
+        for (String line; (line = reader.readLine()) != null; ) {
+            lineNumber++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            var location = source+":"+lineNumber;
+            var columns = split(line, ',');
+            if (columns.size() > elementNames.length + 1) {
+                throw new RuntimeException(location+": expected at most "+(elementNames.length + 1)+" columns, got "+columns.size());
+            }
+            var args = new Object[elementNames.length];
+            for (int i = 0; i < args.length && i + 1 < columns.size(); i++) {
+                var column = columns.get(i + 1);
+                if (!column.isEmpty()) {
+                    try {
+                        args[i] = parseValue(elementTypes[i], column);
+                    } catch (IllegalArgumentException e) {
+                        throw new RuntimeException(location+": bad value for "+elementNames[i]+": "+column, e);
+                    }
+                }
+            }
+            add(unquote(columns.get(0)), args, location);
+        }
+    }
+
+    /** Splits on the separator outside of double quotes, leaving the quotes in place for nested splits */
+    private static List<String> split(String text, char separator) {
+        var parts = new ArrayList<String>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            var c = text.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == separator && !quoted) {
+                parts.add(text.substring(start, i).strip());
+                start = i + 1;
+            }
+        }
+        parts.add(text.substring(start).strip());
+        return parts;
+    }
+
+    private static String unquote(String text) {
+        if (text.length() >= 2 && text.startsWith("\"") && text.endsWith("\"")) {
+            return text.substring(1, text.length() - 1).replace("\"\"", "\"");
+        }
+        return text;
+    }
+
+    private static Object parseValue(Type type, String text) {
+        switch (type.getSort()) {
+            case Type.ARRAY:
+                var elementType = Type.getType(type.getDescriptor().substring(1));
+                if (text.isEmpty()) {
+                    return new Object[0];
+                }
+                return split(text, '|').stream().map(element -> parseValue(elementType, element)).toArray();
+            case Type.BOOLEAN:
+                text = unquote(text);
+                if (!text.equals("true") && !text.equals("false")) {
+                    throw new IllegalArgumentException("not a boolean");
+                }
+                return Boolean.valueOf(text);
+            case Type.CHAR:
+                text = unquote(text);
+                if (text.length() != 1) {
+                    throw new IllegalArgumentException("not a single character");
+                }
+                return text.charAt(0);
+            case Type.BYTE:
+                return Byte.decode(text);
+            case Type.SHORT:
+                return Short.decode(text);
+            case Type.INT:
+                return Integer.decode(text);
+            case Type.LONG:
+                return Long.decode(text);
+            case Type.FLOAT:
+                return Float.parseFloat(text);
+            case Type.DOUBLE:
+                return Double.parseDouble(text);
+            default:
+                if (type.getClassName().equals("java.lang.String")) {
+                    return unquote(text);
+                } else if (type.getClassName().equals("java.lang.Class")) {
+                    return Type.getObjectType(Util.toIntName(unquote(text)));
+                }
+                // anything else an annotation can hold is an enum
+                return new EnumValue(type, unquote(text));
+        }
+    }
+
+    /** A rough upper bound on the bytecode needed to create the constant, to know when to start a new method */
+    public int estimateSize(int index) {
+        int size = CONSTANT_OVERHEAD;
+        for (var arg: arguments.get(index)) {
+            size += estimateSize(arg);
+        }
+        return size;
+    }
+
+    private static int estimateSize(Object value) {
+        if (value instanceof Object[]) {
+            int size = 6;
+            for (var element: (Object[])value) {
+                size += 5 + estimateSize(element);
+            }
+            return size;
+        }
+        return 3;
+    }
+
+    /**
+     * Creates the constant, stores it in its field and in the values array (local 0) at its ordinal, and returns the
+     * stack depth that took
+     */
+    public int emitConstant(GeneratorAdapter gen, Type enumType, int index, int ordinal) {
+        var name = names.get(index);
+        var args = arguments.get(index);
+        gen.newInstance(enumType);
+        gen.dup();
+        gen.push(name);
+        gen.push(ordinal);
+        int depth = 4;
+        int maxStack = depth;
+        for (int i = 0; i < args.length; i++) {
+            maxStack = Math.max(maxStack, depth + pushValue(gen, elementTypes[i], args[i]));
+            depth += elementTypes[i].getSize();
+        }
+        gen.invokeConstructor(enumType, constructor);
+        gen.dup();
+        gen.putStatic(enumType, name, enumType);
+        gen.loadArg(0);
+        gen.swap();
+        gen.push(ordinal);
+        gen.swap();
+        gen.arrayStore(enumType);
+        return maxStack;
+    }
+
+    /** Pushes the value and returns the most stack it needed on the way */
+    private static int pushValue(GeneratorAdapter gen, Type type, Object value) {
+        switch (type.getSort()) {
+            case Type.ARRAY:
+                var elementType = Type.getType(type.getDescriptor().substring(1));
+                var elements = value instanceof Object[] ? (Object[])value : boxArray(value);
+                int maxStack = 1;
+                gen.push(elements.length);
+                gen.newArray(elementType);
+                for (int i = 0; i < elements.length; i++) {
+                    gen.dup();
+                    gen.push(i);
+                    maxStack = Math.max(maxStack, 3 + pushValue(gen, elementType, elements[i]));
+                    gen.arrayStore(elementType);
+                }
+                return maxStack;
+            case Type.BOOLEAN:
+                gen.push((Boolean)value);
+                return 1;
+            case Type.CHAR:
+                gen.push((Character)value);
+                return 1;
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+                gen.push(((Number)value).intValue());
+                return 1;
+            case Type.LONG:
+                gen.push(((Number)value).longValue());
+                return 2;
+            case Type.FLOAT:
+                gen.push(((Number)value).floatValue());
+                return 1;
+            case Type.DOUBLE:
+                gen.push(((Number)value).doubleValue());
+                return 2;
+            default:
+                if (value instanceof String) {
+                    gen.push((String)value);
+                } else if (value instanceof Type) {
+                    gen.push((Type)value);
+                } else if (value instanceof EnumValue) {
+                    var enumValue = (EnumValue)value;
+                    gen.getStatic(enumValue.type, enumValue.name, enumValue.type);
+                } else {
+                    throw new RuntimeException("Can't pass "+value+" as "+type.getClassName());
+                }
+                return 1;
+        }
+    }
+
+    private static Object[] boxArray(Object array) {
+        var boxed = new Object[Array.getLength(array)];
+        for (int i = 0; i < boxed.length; i++) {
+            boxed[i] = Array.get(array, i);
+        }
+        return boxed;
+    }
+
+    /** Collects annotation values as the types {@link #pushValue} takes */
+    private static class ValueReader extends AnnotationVisitor {
+        private final BiConsumer<String, Object> valueHandler;
+        private final Runnable endHandler;
+
+        public ValueReader(BiConsumer<String, Object> valueHandler, Runnable endHandler) {
+            super(ASM9);
+            this.valueHandler = valueHandler;
+            this.endHandler = endHandler;
+        }
+
+        @Override
+        public void visit(String name, Object value) {
+            // arrays of primitives come in whole
+            valueHandler.accept(name, value.getClass().isArray() ? boxArray(value) : value);
+        }
+
+        @Override
+        public void visitEnum(String name, String descriptor, String value) {
+            valueHandler.accept(name, new EnumValue(Type.getType(descriptor), value));
+        }
+
+        @Override
+        public AnnotationVisitor visitArray(String name) {
+            var elements = new ArrayList<Object>();
+            return new ValueReader((k, v) -> elements.add(v), () -> valueHandler.accept(name, elements.toArray()));
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String name, String descriptor) {
+            throw new RuntimeException("Annotations can't be passed to an enum constructor ("+name+")");
+        }
+
+        @Override
+        public void visitEnd() {
+            if (endHandler != null) {
+                endHandler.run();
+            }
+        }
+    }
+}
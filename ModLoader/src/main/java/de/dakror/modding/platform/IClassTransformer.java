@@ -0,0 +1,17 @@
+package de.dakror.modding.platform;
+
+import java.util.Collection;
+
+/**
+ * A mod loader that can also run classes through its mods on their own, as {@link JarBaker} needs to bake them ahead
+ * of time; launching the game only needs an {@link IModLoader}.
+ */
+public interface IClassTransformer extends IModLoader {
+    /** The classes the mods hook by name; others (say, subclasses of those) may still be hooked, see classHooked */
+    Collection<String> getHookedClasses();
+    /**
+     * Runs a hooked class through the mods without defining or loading anything; ClassNotFoundException means it
+     * can't be defined on its own (e.g. the augmentations themselves)
+     */
+    byte[] transformClass(String name, byte[] code) throws ClassNotFoundException;
+}
@@ -23,6 +23,10 @@ public interface IModLoader {
         }
         throw new UnsupportedOperationException("Cannot redefine existing classes");
     }
+    /** The already-transformed version of this class, if one was prepared ahead of time from exactly these original bytes */
+    default byte[] getPreparedClass(String name, byte[] code) {
+        return null;
+    }
     InputStream redefineResourceStream(String resourceName, InputStream origStream);
 
     default void reportLoad(String name, Class<?> loadedClass, long nsElapsed) {}
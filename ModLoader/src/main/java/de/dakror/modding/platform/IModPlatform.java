@@ -2,13 +2,17 @@ package de.dakror.modding.platform;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
 import java.net.URL;
+import java.util.Collection;
 
 public interface IModPlatform {
     ClassLoader getClassLoader();
     Class<?> loadClass(String name) throws ClassNotFoundException;
     InputStream getResourceAsStream(String name) throws IOException;
     void resetStats();
+    /** The platform's counters, for the debug log, or null if it keeps none */
+    default String getStats() { return null; }
     default ClassLoader getAppLoader() {
         return ClassLoader.getSystemClassLoader();
     }
@@ -20,4 +24,8 @@ public interface IModPlatform {
         }
     }
     void start(String mainClass, String[] args) throws Throwable;
+    /** The agent's instrumentation, where the platform has one */
+    default Instrumentation getInstrumentation() { return null; }
+    /** Puts a placeholder class file for each of these classes on the classpath, for the mods to redefine */
+    default void addStubClasses(Collection<String> classNames) { }
 }
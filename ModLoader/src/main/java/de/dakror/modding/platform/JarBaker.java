@@ -0,0 +1,278 @@
+package de.dakror.modding.platform;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs the whole modding pipeline once, offline, and writes out the game as it is after it, so the cost is paid at
+ * deploy time rather than on every launch. From the game's directory (so ./mods is found as it would be on launch),
+ * <pre>java -cp ModLoader.jar de.dakror.modding.platform.JarBaker -o TheQuarry-modded.jar TheQuarry-full.jar</pre>
+ * finds and scans the mods, has the {@link de.dakror.modding.Patcher} register every class and resource patch, and
+ * writes every entry of the given jars and then of the mods (ModLoader.jar among them), the first of each name winning
+ * as on the class path, with every hooked class transformed, every synthetic class made from its stub and every
+ * hooked resource edited. The result launches with plain {@code java -jar}: no agent, no interception, no
+ * transformation.
+ * <p>
+ * Signature files are left out, since the patched classes would break them, and so are the agent attributes of the
+ * manifest. The mods are baked in as they are now; after adding or updating one, bake again.
+ */
+public class JarBaker implements ModPlatformBase {
+    private static final List<Attributes.Name> AGENT_ATTRIBUTES = List.of(
+        new Attributes.Name("Premain-Class"), new Attributes.Name("Agent-Class"), new Attributes.Name("Launcher-Agent-Class"));
+
+    // URLClassLoader.addURL is protected
+    private static final class BakeLoader extends URLClassLoader {
+        BakeLoader(URL[] urls, ClassLoader parent) {
+            super(urls, parent);
+        }
+
+        @Override
+        protected void addURL(URL url) {
+            super.addURL(url);
+        }
+    }
+
+    private final BakeLoader loader;
+    /** the game jars, then the mods as they get added, in class path order */
+    private final List<URL> classPath = new ArrayList<>();
+    private final Set<String> stubClasses = new TreeSet<>();
+    private int transformed = 0;
+    private int stubbed = 0;
+    private int edited = 0;
+    private int copied = 0;
+
+    public JarBaker(List<Path> gameJars) throws IOException {
+        for (var jar: gameJars) {
+            classPath.add(jar.toUri().toURL());
+        }
+        loader = new BakeLoader(classPath.toArray(URL[]::new), JarBaker.class.getClassLoader());
+    }
+
+    @Override
+    public ClassLoader getClassLoader() {
+        return loader;
+    }
+
+    @Override
+    public ClassLoader getAppLoader() {
+        return loader;
+    }
+
+    @Override
+    public Class<?> loadClass(String name) throws ClassNotFoundException {
+        return loader.loadClass(name);
+    }
+
+    @Override
+    public InputStream getResourceAsStream(String name) throws IOException {
+        return loader.getResourceAsStream(name);
+    }
+
+    @Override
+    public void resetStats() { }
+
+    @Override
+    public boolean addModURL(URL modUrl) {
+        loader.addURL(modUrl);
+        classPath.add(modUrl);
+        return true;
+    }
+
+    /** Nothing goes on a class path here; the synthetic classes are made from their stubs while baking */
+    @Override
+    public void addStubClasses(Collection<String> classNames) {
+        stubClasses.addAll(classNames);
+    }
+
+    /** Bakes the modded game into the output jar, returning the classes and resources that failed, if any */
+    public List<String> bake(Path output) throws Exception {
+        var args = new String[0];
+        var created = createModLoader(args);
+        if (!(created instanceof IClassTransformer)) {
+            throw new UnsupportedOperationException(created.getClass().getName()+" can't transform classes on their own, so it can't bake");
+        }
+        var modLoader = (IClassTransformer)created;
+        // patches and freezes as for a launch, just without a main class to call
+        modLoader.start(null, args);
+
+        var failures = new ArrayList<String>();
+        var written = new HashSet<String>();
+        var dir = output.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        // write next to the target and move it into place, so nobody launches half a jar
+        var tempPath = Files.createTempFile(dir, "baking-", ".tmp");
+        try {
+            try (var jar = new JarOutputStream(Files.newOutputStream(tempPath), manifestOf(classPath.get(0)))) {
+                written.add(JarFile.MANIFEST_NAME);
+                for (var url: classPath) {
+                    var source = Path.of(url.toURI());
+                    if (Files.isDirectory(source)) {
+                        List<Path> files;
+                        try (Stream<Path> walk = Files.walk(source)) {
+                            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+                        }
+                        for (var file: files) {
+                            var name = source.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                            if (written.add(name)) {
+                                try (var in = Files.newInputStream(file)) {
+                                    writeEntry(jar, name, bakeEntry(modLoader, name, in, failures));
+                                }
+                            }
+                        }
+                        continue;
+                    }
+                    try (var jarFile = new JarFile(source.toFile(), false)) {
+                        for (var entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                            var entry = entries.nextElement();
+                            var name = entry.getName();
+                            if (entry.isDirectory() || isSignature(name) || !written.add(name)) {
+                                continue;
+                            }
+                            try (var in = jarFile.getInputStream(entry)) {
+                                writeEntry(jar, name, bakeEntry(modLoader, name, in, failures));
+                            }
+                        }
+                    }
+                }
+                // hooked classes no jar has come from a stub, as they would on demand
+                var missing = new TreeSet<>(stubClasses);
+                missing.addAll(modLoader.getHookedClasses());
+                for (var className: missing) {
+                    var name = className.replace('.', '/') + ".class";
+                    if (!written.add(name)) {
+                        continue;
+                    }
+                    try {
+                        writeEntry(jar, name, modLoader.transformClass(className, StubFactory.makeStubFor(className)));
+                        stubbed++;
+                    } catch (ClassNotFoundException e) {
+                        // as above; the stub itself is all the agent would have had for it, and nothing loads it
+                    } catch (RuntimeException e) {
+                        failures.add(className + ": " + e);
+                    }
+                }
+            }
+            if (failures.isEmpty()) {
+                try {
+                    Files.move(tempPath, output, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempPath, output, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+        return failures;
+    }
+
+    // undated, so the same game and mods always bake into the same bytes
+    private static void writeEntry(JarOutputStream jar, String name, byte[] content) throws IOException {
+        var entry = new JarEntry(name);
+        entry.setTime(0);
+        jar.putNextEntry(entry);
+        jar.write(content);
+        jar.closeEntry();
+    }
+
+    private byte[] bakeEntry(IClassTransformer modLoader, String name, InputStream in, List<String> failures) throws IOException {
+        if (name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class")) {
+            var className = name.substring(0, name.length() - 6 /* ".class" */).replace('/', '.');
+            if (modLoader.classHooked(className)) {
+                var code = in.readAllBytes();
+                try {
+                    var newCode = modLoader.transformClass(className, code);
+                    transformed++;
+                    return newCode;
+                } catch (ClassNotFoundException e) {
+                    // not everything that's hooked can be defined on its own (e.g. the augmentations themselves), and
+                    // nothing will load those anyway
+                    copied++;
+                    return code;
+                } catch (RuntimeException e) {
+                    failures.add(className + ": " + e);
+                    return code;
+                }
+            }
+        } else if (modLoader.resourceHooked(name)) {
+            try (var edit = modLoader.redefineResourceStream(name, in)) {
+                edited++;
+                return edit.readAllBytes();
+            } catch (IOException|RuntimeException e) {
+                failures.add(name + ": " + e);
+                return new byte[0];
+            }
+        }
+        copied++;
+        return in.readAllBytes();
+    }
+
+    private static Manifest manifestOf(URL url) throws IOException, URISyntaxException {
+        var path = Path.of(url.toURI());
+        Manifest manifest = null;
+        if (Files.isRegularFile(path)) {
+            try (var jarFile = new JarFile(path.toFile(), false)) {
+                manifest = jarFile.getManifest();
+            }
+        }
+        manifest = manifest == null ? new Manifest() : new Manifest(manifest);
+        manifest.getMainAttributes().putIfAbsent(Attributes.Name.MANIFEST_VERSION, "1.0");
+        for (var name: AGENT_ATTRIBUTES) {
+            manifest.getMainAttributes().remove(name);
+        }
+        return manifest;
+    }
+
+    private static boolean isSignature(String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0) {
+            return false;
+        }
+        return name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path output = null;
+        var gameJars = new ArrayList<Path>();
+        for (int i = 0; i < args.length; i++) {
+            if ((args[i].equals("-o") || args[i].equals("--output")) && i + 1 < args.length) {
+                output = Path.of(args[++i]);
+            } else {
+                gameJars.add(Path.of(args[i]));
+            }
+        }
+        if (output == null || gameJars.isEmpty()) {
+            System.err.println("usage: JarBaker -o output.jar game.jar...");
+            System.exit(2);
+        }
+        var start = System.nanoTime();
+        var baker = new JarBaker(gameJars);
+        var failures = baker.bake(output);
+        var elapsed = System.nanoTime() - start;
+        for (var failure: failures) {
+            System.out.println("FAILED " + failure);
+        }
+        System.out.println(String.format("%s %d transformed classes, %d from stubs, %d edited resources and %d other entries%s, %d ns elapsed (%.3f ms)",
+                                         failures.isEmpty() ? "baked" : "did not bake", baker.transformed, baker.stubbed, baker.edited, baker.copied,
+                                         failures.isEmpty() ? " into "+output : " ("+failures.size()+" failed)", elapsed, (double)elapsed/1000000.0));
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+}
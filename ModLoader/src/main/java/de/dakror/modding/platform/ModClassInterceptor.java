@@ -2,6 +2,7 @@ package de.dakror.modding.platform;
 
 import static de.dakror.modding.agent.boot.Interceptor.NO_INTERCEPTION;
 import static de.dakror.modding.agent.boot.Interceptor.interceptClasses;
+import static de.dakror.modding.agent.boot.Interceptor.interceptTarget;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -17,17 +18,21 @@ import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.security.CodeSource;
 import java.security.ProtectionDomain;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarFile;
 
+import de.dakror.modding.HotReloader;
+import de.dakror.modding.ModAPI;
 import de.dakror.modding.ModLoader;
+import de.dakror.modding.agent.CachedFiles;
 import de.dakror.modding.agent.boot.CallAdapter;
-import de.dakror.modding.agent.boot.UcpResource;
 import de.dakror.modding.agent.boot.Interceptor.NoInterceptionException;
 import de.dakror.modding.agent.boot.Interceptor.NullInterceptor;
+import de.dakror.modding.agent.boot.UcpResource;
 
 public class ModClassInterceptor extends NullInterceptor implements ModPlatformBase, ClassFileTransformer {
     private final ClassLoader appLoader;
@@ -58,6 +63,12 @@ public class ModClassInterceptor extends NullInterceptor implements ModPlatformB
         if (!modLoader.classHooked(className.replace('/','.'))) {
             return null;
         }
+        if (classBeingRedefined == null) {
+            var prepared = modLoader.getPreparedClass(className.replace('/','.'), classfileBuffer);
+            if (prepared != null) {
+                return prepared;
+            }
+        }
         try {
             return modLoader.redefineClass(className.replace('/','.'), classfileBuffer, classBeingRedefined);
         } catch (ClassNotFoundException cnfe) {
@@ -103,8 +114,7 @@ public class ModClassInterceptor extends NullInterceptor implements ModPlatformB
 
         CodeSource codeSource = neighborClass.getProtectionDomain().getCodeSource();
         try {
-            byte[] code = StubFactory.makeStubFor(className);
-            return UcpResource.of(name, codeSource, code);
+            return UcpResource.of(name, codeSource, StubFactory.makeStubBufferFor(className));
         } catch (MalformedURLException e) {
             e.printStackTrace();
             return null;
@@ -183,6 +193,11 @@ public class ModClassInterceptor extends NullInterceptor implements ModPlatformB
         }
     }
 
+    @Override
+    public Instrumentation getInstrumentation() {
+        return inst;
+    }
+
     @Override
     public ClassLoader getClassLoader() {
         return appLoader;
@@ -203,6 +218,7 @@ public class ModClassInterceptor extends NullInterceptor implements ModPlatformB
         try {
             var jarfile = new JarFile(new File(modUrl.toURI()));
             inst.appendToSystemClassLoaderSearch(jarfile);
+            classPathChanged();
             return true;
         } catch (IOException|URISyntaxException e) {
             System.err.print("While loading mod from "+modUrl+": ");
@@ -211,12 +227,69 @@ public class ModClassInterceptor extends NullInterceptor implements ModPlatformB
         }
     }
 
+    /**
+     * Writes stubs for all the classes into one jar and appends it to the classpath, so the JVM finds them like any
+     * other class and the mods redefine them from there. Lookups only fall back to making a stub on the spot if this
+     * doesn't work out.
+     */
     @Override
-    public void resetStats() { }
+    public void addStubClasses(Collection<String> classNames) {
+        // the class mods are frozen by now, so some names that were misses may be hooked
+        classPathChanged();
+        if (classNames.isEmpty()) {
+            return;
+        }
+        try {
+            // cached under the content hash like the boot jar, so an unchanged mod set reuses the same file
+            var jarFile = CachedFiles.of("stubs", StubFactory.makeStubJar(classNames), message -> ModAPI.DEBUGLN("stub jar: %s", message));
+            inst.appendToSystemClassLoaderSearch(new JarFile(jarFile, false));
+            classPathChanged();
+            ModAPI.DEBUGLN("added %d stub classes from %s", classNames.size(), jarFile);
+        } catch (IOException e) {
+            System.err.println("Could not add stub classes, making them on demand instead: "+e);
+        }
+    }
+
+    /**
+     * Has the class path's package index take in the jars added to it, so lookups go straight to the right jar, and
+     * forgets the misses, which may be there now
+     */
+    private void classPathChanged() {
+        var adapter = interceptTarget(appLoader);
+        adapter.ucpMisses.clear();
+        adapter.resourceMisses.clear();
+        var index = adapter.ucpIndex;
+        if (index == null) {
+            return;
+        }
+        var start = System.nanoTime();
+        index.refresh();
+        var elapsed = System.nanoTime() - start;
+        ModAPI.DEBUGLN("class path index: %s, %d ns elapsed (%.3f ms)", index, elapsed, (double)elapsed/1000000.0);
+    }
+
+    @Override
+    public void resetStats() {
+        var adapter = interceptTarget(appLoader);
+        adapter.ucpMisses.resetStats();
+        adapter.resourceMisses.resetStats();
+    }
+
+    @Override
+    public String getStats() {
+        var adapter = interceptTarget(appLoader);
+        return String.format("class path misses: %s; resource misses: %s", adapter.ucpMisses, adapter.resourceMisses);
+    }
 
     @Override
     public IModLoader createModLoader(String[] args) throws Exception {
         interceptClasses(appLoader, this);
+        if (HotReloader.ENABLED) {
+            // files come and go in the mod directories, so a miss may not stay one
+            interceptTarget(appLoader).ucpMisses.setEnabled(false);
+            interceptTarget(appLoader).resourceMisses.setEnabled(false);
+        }
+        classPathChanged();
         inst.addTransformer(this, true);
         return modLoader;
     }
@@ -1,6 +1,12 @@
 package de.dakror.modding.platform;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 
 // StubClass isn't actually used. It just provides the template for the
 // code in StubFactory. It's an interface to avoid producing constructors.
@@ -40,14 +46,40 @@ public class StubFactory {
         return this;
     }
 
-    byte[] buildStub(String name) {
-        bb.flip();
-        var code = new byte[bb.limit()];
-        bb.get(code);
-        return code;
+    ByteBuffer buildStub(String name) {
+        return bb.flip();
     }
 
     public static byte[] makeStubFor(String name) {
+        var stub = makeStubBufferFor(name);
+        var code = new byte[stub.remaining()];
+        stub.get(code);
+        return code;
+    }
+
+    /**
+     * Builds a jar holding a stub for each class. Entries are sorted and undated, so the same classes always make the
+     * same bytes and the jar can be cached by its contents.
+     */
+    public static byte[] makeStubJar(Collection<String> names) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var jar = new JarOutputStream(bytes)) {
+            for (var name: new TreeSet<>(names)) {
+                var entry = new JarEntry(name.replace('.', '/') + ".class");
+                entry.setTime(0);
+                jar.putNextEntry(entry);
+                jar.write(makeStubFor(name));
+                jar.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Builds the stub class in place and returns the (flipped) buffer it was written to; being array-backed,
+     * this can be passed straight through a UcpResource to defineClass without copying.
+     */
+    public static ByteBuffer makeStubBufferFor(String name) {
         return new StubFactory()
             .u4(0xCAFEBABE)     // magic
             .u2(0).u2(55)       // minor, major version (55.0 = Java 11)
@@ -0,0 +1,98 @@
+package de.dakror.modding.asm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import de.dakror.modding.MemberInfo;
+
+public class ClassHierarchyTest implements Opcodes {
+    private static final int INTERFACE = ACC_PUBLIC | ACC_INTERFACE | ACC_ABSTRACT;
+
+    private static ClassHierarchy.ClassEntry entry(String name, int access, String superName, List<String> interfaces, int... methodAccess) {
+        var methods = new ArrayList<MemberInfo>();
+        for (var mAccess: methodAccess) {
+            methods.add(new MemberInfo("m", "()V", mAccess));
+        }
+        return new ClassHierarchy.ClassEntry(name, superName, interfaces, access, methods.isEmpty() ? Map.of() : Map.of("m", methods));
+    }
+
+    private static ClassHierarchy.ClassEntry iface(String name, List<String> interfaces, int... methodAccess) {
+        return entry(name, INTERFACE, "java/lang/Object", interfaces, methodAccess);
+    }
+
+    private static ClassHierarchy.ClassEntry cls(String name, String... interfaces) {
+        return entry(name, ACC_PUBLIC, "java/lang/Object", List.of(interfaces));
+    }
+
+    @Test
+    public void resolvesToMaximallySpecificDefault() {
+        var hierarchy = new ClassHierarchy(List.of(
+            iface("I", List.of(), ACC_PUBLIC),
+            iface("J", List.of("I"), ACC_PUBLIC),
+            iface("A", List.of(), ACC_PUBLIC | ACC_ABSTRACT),
+            iface("B", List.of("A"), ACC_PUBLIC),
+            // I's default is overridden by J's, whichever order they're listed in
+            cls("C", "I", "J"),
+            // an abstract method overridden by a default in a subinterface
+            cls("D", "A", "B"),
+            // the one default among the maximally-specific methods wins over an unrelated abstract one
+            cls("E", "A", "I"),
+            cls("F", "A")
+        ), null);
+        assertEquals("J", hierarchy.resolveMethod("C", "m", "()V").owner);
+        assertEquals("B", hierarchy.resolveMethod("D", "m", "()V").owner);
+        assertEquals(1, hierarchy.getMaximallySpecificMethods("D", "m", "()V").size());
+        assertEquals("I", hierarchy.resolveMethod("E", "m", "()V").owner);
+        assertEquals(2, hierarchy.getMaximallySpecificMethods("E", "m", "()V").size());
+        assertEquals("A", hierarchy.resolveMethod("F", "m", "()V").owner);
+        assertNull(hierarchy.resolveMethod("F", "n", "()V"));
+    }
+
+    @Test
+    public void reportsConflictingDefaults() {
+        var hierarchy = new ClassHierarchy(List.of(
+            iface("I", List.of(), ACC_PUBLIC),
+            iface("K", List.of(), ACC_PUBLIC),
+            cls("C", "I", "K")
+        ), null);
+        assertThrows(IncompatibleClassChangeError.class, () -> hierarchy.resolveMethod("C", "m", "()V"));
+    }
+
+    @Test
+    public void readsHeadersOfUndescribedTypes() {
+        var cw = new ClassWriter(0);
+        cw.visit(V11, ACC_PUBLIC, "game/Base", null, "java/lang/Object", null);
+        cw.visitEnd();
+        var base = cw.toByteArray();
+        var hierarchy = new ClassHierarchy(List.of(
+            entry("mod/X", ACC_PUBLIC, "game/Base", List.of()),
+            entry("mod/Y", ACC_PUBLIC, "game/Base", List.of())
+        ), name -> {
+            if (!name.equals("game/Base")) {
+                return null;
+            }
+            try {
+                return ClassHierarchy.readHeader(new ByteArrayInputStream(base));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        assertEquals("game/Base", hierarchy.commonSuperClass("mod/X", "mod/Y"));
+        assertEquals("java/lang/Object", hierarchy.commonSuperClass("mod/X", "unknown/Z"));
+        // the class being written may have a header other than the one described
+        var own = entry("mod/Y", ACC_PUBLIC, "mod/X", List.of());
+        assertEquals("mod/X", hierarchy.commonSuperClass("mod/X", "mod/Y", own));
+    }
+}
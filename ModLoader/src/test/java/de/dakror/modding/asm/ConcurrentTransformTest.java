@@ -0,0 +1,121 @@
+package de.dakror.modding.asm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import de.dakror.modding.ModLoader.IClassMod;
+import de.dakror.modding.platform.JarBaker;
+
+/**
+ * Many threads transforming a few classes at once, as parallel class loading and ahead-of-time preparation do: every
+ * result has to be what a single thread gets, no class may be transformed on two threads at the same time, and no
+ * per-class lock may be left behind.
+ */
+public class ConcurrentTransformTest {
+    private static final int CLASSES = 32;
+    private static final int THREADS = 16;
+    private static final int TRANSFORMS_PER_THREAD = 2000;
+
+    /** Adds a field to every class in the stress package, and notes any class it's asked to transform twice at once */
+    public static class FieldAdder implements IClassMod<ClassVisitor, ClassReader> {
+        final Map<String, Thread> inProgress = new ConcurrentHashMap<>();
+        final AtomicInteger overlaps = new AtomicInteger();
+
+        @Override
+        public boolean hooksClass(String className) {
+            return className.startsWith("stress.");
+        }
+
+        @Override
+        public ClassVisitor redefineClass(String className, ClassVisitor cv, ClassReader context) {
+            if (inProgress.putIfAbsent(className, Thread.currentThread()) != null) {
+                overlaps.incrementAndGet();
+            }
+            return new ClassVisitor(Opcodes.ASM9, cv) {
+                @Override
+                public void visitEnd() {
+                    super.visitField(Opcodes.ACC_PUBLIC, "modded", "I", null, null).visitEnd();
+                    super.visitEnd();
+                    // yield while still holding the class, to give any other thread the chance to barge in
+                    Thread.yield();
+                    inProgress.remove(className);
+                }
+            };
+        }
+    }
+
+    @Test
+    public void transformsConcurrently(@TempDir Path dir) throws Exception {
+        var originals = new byte[CLASSES][];
+        var gameJar = dir.resolve("game.jar");
+        try (var jar = new JarOutputStream(Files.newOutputStream(gameJar))) {
+            for (int i = 0; i < CLASSES; i++) {
+                // a chain of subclasses, so the hierarchy gets read while transforming
+                var cw = new ClassWriter(0);
+                cw.visit(Opcodes.V11, Opcodes.ACC_PUBLIC, "stress/C" + i, null, i == 0 ? "java/lang/Object" : "stress/C" + (i - 1), null);
+                cw.visitEnd();
+                originals[i] = cw.toByteArray();
+                jar.putNextEntry(new JarEntry("stress/C" + i + ".class"));
+                jar.write(originals[i]);
+                jar.closeEntry();
+            }
+        }
+        var loader = (ASMModLoader)new JarBaker(List.of(gameJar)).createModLoader(new String[0]);
+        var mod = loader.registerMod(new FieldAdder());
+
+        var expected = new byte[CLASSES][];
+        for (int i = 0; i < CLASSES; i++) {
+            expected[i] = loader.transformClass("stress.C" + i, originals[i]);
+        }
+
+        var pool = Executors.newFixedThreadPool(THREADS);
+        var start = new CountDownLatch(1);
+        var results = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            results.add(pool.submit(() -> {
+                start.await();
+                var random = ThreadLocalRandom.current();
+                for (int n = 0; n < TRANSFORMS_PER_THREAD; n++) {
+                    // mostly the same few classes, so threads keep meeting on them
+                    var i = random.nextInt(4) == 0 ? random.nextInt(CLASSES) : random.nextInt(4);
+                    var code = (n & 1) == 0 ? loader.transformClass("stress.C" + i, originals[i])
+                                            : loader.redefineClass("stress.C" + i, originals[i]);
+                    assertArrayEquals(expected[i], code, "stress.C" + i);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (var result: results) {
+            result.get();
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(0, mod.overlaps.get(), "transformations of the same class that overlapped");
+        assertEquals(0, loader.transformsInProgress(), "per-class locks left behind");
+    }
+}
@@ -0,0 +1,111 @@
+package de.dakror.modding.asm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+public class RemapTableTest {
+    /** 2^pairs distinct strings with the same hash code, since "Aa" and "BB" hash alike */
+    private static List<String> collidingNames(String prefix, int pairs) {
+        var names = new ArrayList<String>();
+        for (int bits = 0; bits < 1 << pairs; bits++) {
+            var name = new StringBuilder(prefix);
+            for (int i = 0; i < pairs; i++) {
+                name.append((bits & 1 << i) != 0 ? "Aa" : "BB");
+            }
+            names.add(name.toString());
+        }
+        return names;
+    }
+
+    private static void assertMapsLike(Map<String, String> mapping, RemapTable table) {
+        assertEquals(mapping.size(), table.size());
+        for (var entry: mapping.entrySet()) {
+            assertEquals(entry.getValue(), table.get(entry.getKey()), entry.getKey());
+            assertEquals(entry.getValue(), table.remapper().map(entry.getKey()), entry.getKey());
+        }
+        assertEquals(new TreeSet<>(mapping.keySet()), new TreeSet<>(table.keys()));
+    }
+
+    @Test
+    public void collidingKeys() {
+        // the run of colliding keys starts somewhere else for every prefix, so some of them wrap around the table's end
+        for (int prefix = 0; prefix < 32; prefix++) {
+            var names = collidingNames("p" + prefix + "/", 4);
+            var mapping = new HashMap<String, String>();
+            for (var name: names.subList(0, 8)) {
+                mapping.put(name, name + "$Mapped");
+            }
+            var table = RemapTable.of(mapping);
+            assertMapsLike(mapping, table);
+            // same hash, not in the table: the lookup has to walk the whole run and stop at the gap after it
+            for (var name: names.subList(8, 16)) {
+                assertNull(table.get(name));
+            }
+        }
+    }
+
+    @Test
+    public void everySize() {
+        // around each power of two, where the table's capacity steps up
+        var mapping = new LinkedHashMap<String, String>();
+        for (int size = 1; size <= 130; size++) {
+            mapping.put("a/C" + size, "b/D" + size);
+            var table = RemapTable.of(mapping);
+            assertMapsLike(mapping, table);
+            assertNull(table.get("a/C0"));
+            assertNull(table.get("a/C" + (size + 1)));
+        }
+    }
+
+    @Test
+    public void emptyTable() {
+        assertTrue(RemapTable.of(Map.of()) == RemapTable.EMPTY);
+        assertEquals(0, RemapTable.EMPTY.size());
+        assertNull(RemapTable.EMPTY.get("a/C"));
+        assertTrue(RemapTable.EMPTY.keys().isEmpty());
+    }
+
+    @Test
+    public void equalByContent() {
+        var names = collidingNames("q/", 3);
+        var forwards = new LinkedHashMap<String, String>();
+        var backwards = new LinkedHashMap<String, String>();
+        for (int i = 0; i < names.size(); i++) {
+            forwards.put(names.get(i), "r/" + i);
+            backwards.put(names.get(names.size() - 1 - i), "r/" + (names.size() - 1 - i));
+        }
+        // the colliding keys land in different slots depending on the order they were put in
+        var a = RemapTable.of(forwards);
+        var b = RemapTable.of(backwards);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+
+        var different = new HashMap<>(forwards);
+        different.put(names.get(0), "r/other");
+        assertTrue(!a.equals(RemapTable.of(different)));
+        different.remove(names.get(0));
+        assertTrue(!a.equals(RemapTable.of(different)));
+    }
+
+    @Test
+    public void poolSharesEqualTables() {
+        var pool = new RemapTable.Pool();
+        var first = pool.intern(Map.of("a/B", "c/D", "a/B$1", "c/D$1"));
+        var second = pool.intern(new HashMap<>(Map.of("a/B$1", "c/D$1", "a/B", "c/D")));
+        var other = pool.intern(Map.of("a/B", "c/E"));
+        assertTrue(first == second);
+        assertTrue(first.remapper() == second.remapper());
+        assertTrue(first != other);
+        assertEquals(2, pool.size());
+    }
+}
@@ -0,0 +1,286 @@
+package de.dakror.modding.asm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+import org.objectweb.asm.util.TraceClassVisitor;
+
+/**
+ * Whatever SelectiveClassRemapper leaves alone has to come out exactly as a plain ClassRemapper would have made it:
+ * every class here goes through both, and the two results must disassemble the same. The generated classes put the
+ * only reference to the remapped name right after the instructions the raw scan has to get the length of just right.
+ */
+public class SelectiveClassRemapperTest implements Opcodes {
+    private static final String OLD = "test/Old";
+    private static final String RENAMED = "test/New";
+
+    private static String disassemble(byte[] code) {
+        var text = new StringWriter();
+        new ClassReader(code).accept(new TraceClassVisitor(new PrintWriter(text)), 0);
+        return text.toString();
+    }
+
+    private static void assertRemapsLikeClassRemapper(byte[] code, Map<String, String> mapping) {
+        var remapper = new SimpleRemapper(mapping);
+        var plainWriter = new ClassWriter(0);
+        new ClassReader(code).accept(new ClassRemapper(plainWriter, remapper), 0);
+
+        var reader = new ClassReader(code);
+        var selectiveWriter = new ClassWriter(reader, 0);
+        reader.accept(new SelectiveClassRemapper(selectiveWriter, remapper, reader, mapping.keySet()), 0);
+
+        assertEquals(disassemble(plainWriter.toByteArray()), disassemble(selectiveWriter.toByteArray()), reader.getClassName());
+    }
+
+    private static void assertRemapsLikeClassRemapper(byte[] code) {
+        assertRemapsLikeClassRemapper(code, Map.of(OLD, RENAMED));
+        var text = disassemble(code);
+        assertTrue(text.contains(OLD), "test class doesn't mention " + OLD);
+    }
+
+    /** A class with one untouched method and whatever body writes into a second one */
+    private static byte[] makeClass(String name, Consumer<MethodVisitor> body) {
+        var cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        cw.visit(V11, ACC_PUBLIC, name, null, "java/lang/Object", null);
+        var untouched = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "untouched", "()I", null, null);
+        untouched.visitCode();
+        untouched.visitInsn(ICONST_1);
+        untouched.visitInsn(IRETURN);
+        untouched.visitMaxs(0, 0);
+        untouched.visitEnd();
+        var mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "m", "(I)V", null, null);
+        mv.visitCode();
+        body.accept(mv);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void referenceOld(MethodVisitor mv) {
+        mv.visitTypeInsn(NEW, OLD);
+        mv.visitInsn(POP);
+    }
+
+    @Test
+    public void tableSwitchAtEveryPadding() {
+        for (int padding = 0; padding < 4; padding++) {
+            var nops = padding;
+            assertRemapsLikeClassRemapper(makeClass("test/TableSwitch" + padding, mv -> {
+                for (int i = 0; i < nops; i++) {
+                    mv.visitInsn(NOP);
+                }
+                var end = new Label();
+                mv.visitVarInsn(ILOAD, 0);
+                mv.visitTableSwitchInsn(0, 2, end, end, end, end);
+                mv.visitLabel(end);
+                referenceOld(mv);
+            }));
+        }
+    }
+
+    @Test
+    public void lookupSwitchAtEveryPadding() {
+        for (int padding = 0; padding < 4; padding++) {
+            var nops = padding;
+            assertRemapsLikeClassRemapper(makeClass("test/LookupSwitch" + padding, mv -> {
+                for (int i = 0; i < nops; i++) {
+                    mv.visitInsn(NOP);
+                }
+                var end = new Label();
+                mv.visitVarInsn(ILOAD, 0);
+                mv.visitLookupSwitchInsn(end, new int[] { -1, 7, 1000 }, new Label[] { end, end, end });
+                mv.visitLabel(end);
+                referenceOld(mv);
+            }));
+        }
+    }
+
+    @Test
+    public void wideInstructions() {
+        assertRemapsLikeClassRemapper(makeClass("test/WideIinc", mv -> {
+            mv.visitIincInsn(0, 1000);
+            referenceOld(mv);
+        }));
+        // read as a 4-byte wide instruction, the increment would be a sipush swallowing the reference after it
+        assertRemapsLikeClassRemapper(makeClass("test/WideIincSipush", mv -> {
+            mv.visitIincInsn(0, SIPUSH << 8);
+            referenceOld(mv);
+        }));
+        assertRemapsLikeClassRemapper(makeClass("test/WideLoad", mv -> {
+            mv.visitInsn(ICONST_0);
+            mv.visitVarInsn(ISTORE, 300);
+            mv.visitIincInsn(300, 1);
+            mv.visitVarInsn(ILOAD, 300);
+            mv.visitInsn(POP);
+            referenceOld(mv);
+        }));
+    }
+
+    @Test
+    public void invokeDynamic() {
+        var bootstrap = new Handle(H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "metafactory",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
+            false);
+        // the remapped name only shows up in the bootstrap arguments
+        assertRemapsLikeClassRemapper(makeClass("test/IndyArgument", mv -> {
+            mv.visitInvokeDynamicInsn("get", "()Ljava/util/function/Supplier;", bootstrap,
+                Type.getType("()Ljava/lang/Object;"),
+                new Handle(H_INVOKESTATIC, OLD, "make", "()L" + OLD + ";", false),
+                Type.getType("()L" + OLD + ";"));
+            mv.visitInsn(POP);
+        }));
+        // and here after one that doesn't mention it at all
+        assertRemapsLikeClassRemapper(makeClass("test/IndyBefore", mv -> {
+            mv.visitInvokeDynamicInsn("run", "()Ljava/lang/Runnable;", bootstrap,
+                Type.getType("()V"),
+                new Handle(H_INVOKESTATIC, "test/IndyBefore", "untouched", "()I", false),
+                Type.getType("()V"));
+            mv.visitInsn(POP);
+            referenceOld(mv);
+        }));
+    }
+
+    @Test
+    public void referenceOnlyInAnnotations() {
+        var cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V11, ACC_PUBLIC, "test/Annotated", null, "java/lang/Object", null);
+        var classAnnotation = cw.visitAnnotation("Ltest/Marker;", true);
+        classAnnotation.visit("value", Type.getObjectType(OLD));
+        classAnnotation.visitEnd();
+        var field = cw.visitField(ACC_PUBLIC, "f", "I", null, null);
+        field.visitAnnotation("L" + OLD + ";", false).visitEnd();
+        field.visitEnd();
+        var mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "m", "(I)V", null, null);
+        var methodAnnotation = mv.visitAnnotation("Ltest/Marker;", true);
+        methodAnnotation.visitEnum("kind", "L" + OLD + ";", "A");
+        methodAnnotation.visitEnd();
+        mv.visitParameterAnnotation(0, "L" + OLD + ";", true);
+        mv.visitCode();
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        assertRemapsLikeClassRemapper(cw.toByteArray());
+    }
+
+    @Test
+    public void everyOtherPlaceInAMethod() {
+        var cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        cw.visit(V11, ACC_PUBLIC, "test/Places", null, "java/lang/Object", null);
+        // descriptor
+        var mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "descriptor", "(L" + OLD + ";)V", null, null);
+        mv.visitCode();
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        // signature and exceptions
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "signature", "()Ljava/util/List;", "()Ljava/util/List<L" + OLD + ";>;", new String[] { OLD });
+        mv.visitCode();
+        mv.visitInsn(ACONST_NULL);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        // class constant, field and method references, array creation
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "references", "()V", null, null);
+        mv.visitCode();
+        mv.visitLdcInsn(Type.getObjectType(OLD));
+        mv.visitInsn(POP);
+        mv.visitFieldInsn(GETSTATIC, OLD, "count", "I");
+        mv.visitInsn(POP);
+        mv.visitFieldInsn(GETSTATIC, "test/Places", "old", "L" + OLD + ";");
+        mv.visitInsn(POP);
+        mv.visitMethodInsn(INVOKESTATIC, "test/Places", "descriptor", "(L" + OLD + ";)V", false);
+        mv.visitInsn(ICONST_1);
+        mv.visitTypeInsn(ANEWARRAY, OLD);
+        mv.visitInsn(POP);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(ICONST_1);
+        mv.visitMultiANewArrayInsn("[[L" + OLD + ";", 2);
+        mv.visitInsn(POP);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        // exception handler, local variable and stack map frame
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "handler", "(Ljava/lang/Object;)V", null, null);
+        mv.visitCode();
+        var start = new Label();
+        var end = new Label();
+        var handler = new Label();
+        var done = new Label();
+        mv.visitTryCatchBlock(start, end, handler, "java/lang/RuntimeException");
+        mv.visitLabel(start);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitTypeInsn(CHECKCAST, "java/lang/String");
+        mv.visitInsn(POP);
+        mv.visitLabel(end);
+        mv.visitJumpInsn(GOTO, done);
+        mv.visitLabel(handler);
+        mv.visitInsn(POP);
+        mv.visitLabel(done);
+        mv.visitLocalVariable("old", "L" + OLD + ";", null, start, done, 0);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        // nothing at all
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "nothing", "(I)I", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ILOAD, 0);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        assertRemapsLikeClassRemapper(cw.toByteArray());
+    }
+
+    @Test
+    public void memberMappingsRemapEverything() {
+        var code = makeClass("test/Members", mv -> {
+            mv.visitFieldInsn(GETSTATIC, "test/Members", "f", "I");
+            mv.visitInsn(POP);
+        });
+        assertRemapsLikeClassRemapper(code, Map.of(OLD, RENAMED, "test/Members.f", "g"));
+    }
+
+    /** Compiled classes from the tree, each with a few of the classes it refers to remapped */
+    @Test
+    public void realClasses() throws IOException {
+        for (var type: List.of(SelectiveClassRemapper.class, ModScanner.class, ClassHierarchy.class, ClassBytesStore.class, RemapTable.class)) {
+            byte[] code;
+            try (var in = type.getResourceAsStream("/" + type.getName().replace('.', '/') + ".class")) {
+                code = in.readAllBytes();
+            }
+            var references = new ArrayList<String>();
+            ModScanner.readClassReferences(new ClassReader(code), references);
+            references.remove(Type.getInternalName(type));
+            assertFalse(references.isEmpty(), type.getName());
+            // a name only some methods use, one every method uses, and one only the class itself uses
+            for (var remapped: List.of(references.get(references.size() / 2), "java/lang/Object", references.get(0))) {
+                var mapping = new HashMap<String, String>();
+                mapping.put(remapped, "test/Remapped");
+                assertRemapsLikeClassRemapper(code, mapping);
+            }
+        }
+    }
+}
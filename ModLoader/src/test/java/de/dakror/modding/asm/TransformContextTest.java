@@ -0,0 +1,40 @@
+package de.dakror.modding.asm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/** A scan that triggers another read on the same thread must keep the class it's scanning */
+public class TransformContextTest {
+    private static byte[] makeClass(String intName) {
+        var cw = new ClassWriter(0);
+        cw.visit(Opcodes.V11, Opcodes.ACC_PUBLIC, intName, null, "java/lang/Object", null);
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    @Test
+    public void nestedReadsKeepTheOuterScan() throws Exception {
+        var outer = makeClass("test/Outer");
+        var inner = makeClass("test/SomeOtherClassWithALongerName");
+        var context = TransformContext.current();
+        try (var scan = context.scanClass(new ByteArrayInputStream(outer))) {
+            try (var nested = context.scanClass(new ByteArrayInputStream(inner))) {
+                assertEquals("test/SomeOtherClassWithALongerName", nested.reader.getClassName());
+                assertArrayEquals(inner, nested.copy());
+            }
+            assertArrayEquals(inner, context.readClass(new ByteArrayInputStream(inner)));
+            assertEquals("test/Outer", scan.reader.getClassName());
+            assertArrayEquals(outer, scan.copy());
+        }
+        // and the buffer is back for the next scan
+        try (var scan = context.scanClass(new ByteArrayInputStream(inner))) {
+            assertArrayEquals(inner, scan.copy());
+        }
+    }
+}
@@ -1,18 +1,41 @@
 package de.dakror.modding.stub;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.instrument.Instrumentation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
 
 public class StubAgent {
     private static final String AGENT_CLASS = System.getProperty("de.dakror.modding.agent.class", "de.dakror.modding.agent.ModAgent");
     private static final String AGENT_URL = System.getProperty("de.dakror.modding.agent.url"); // effective default of "ModLoader.jar", see findAgents()
     private static final boolean IS_DEV = AGENT_URL != null;
+    private static final boolean IS_DEBUG = "true".equals(System.getProperty("de.dakror.modding.agent.debug"));
+    // where the agent was found last time; a dev setup always probes, since what it points at keeps changing
+    private static final boolean USE_DESCRIPTOR = !IS_DEV && !"false".equals(System.getProperty("de.dakror.modding.stub.descriptor"));
+    private static final File DESCRIPTOR_CACHE_DIR = new File(System.getProperty("user.home"), ".dd-modloader");
+    // manifest attributes naming the agent class and its jar, relative to the stub
+    private static final Attributes.Name MANIFEST_AGENT_CLASS = new Attributes.Name("ModLoader-Agent-Class");
+    private static final Attributes.Name MANIFEST_AGENT_JAR = new Attributes.Name("ModLoader-Agent-Jar");
+    // how the agents were found and how long it took, picked up by the ModLoader's startup timing
+    public static final String TIMING_PROPERTY = "de.dakror.modding.stub.timing";
+    private static final MethodType AGENT_METHOD_TYPE = MethodType.methodType(void.class, String.class, Instrumentation.class);
     private static final ClassLoader platformLoader = getPlatformClassLoader();
 
     static final Map<String, Agent> agents = new HashMap<>();
@@ -34,28 +57,49 @@ public class StubAgent {
     }
 
     private static void findAgents() {
+        final long start = System.nanoTime();
         final URL stubLocation = StubAgent.class.getProtectionDomain().getCodeSource().getLocation();
-        
-        try {
-            if (AGENT_URL != null) {
-                // Try to find a loader in an adjacent file specified manually
-                tryLoading(stubLocation.toURI().resolve(AGENT_URL).toURL(), AGENT_CLASS);
-            }
-    
-            // Try to find a loader just using the current classpath
-            tryLoading(null, AGENT_CLASS);
+        String resolvedBy = "probing";
 
-            if (AGENT_URL == null) {
-                // if no file specified manually, try to find ModLoader.jar
-                tryLoading(stubLocation.toURI().resolve("ModLoader.jar").toURL(), AGENT_CLASS);
+        try {
+            if (USE_DESCRIPTOR && loadCachedDescriptor(stubLocation)) {
+                resolvedBy = "cache";
+            } else if (USE_DESCRIPTOR && loadManifestDescriptor(stubLocation)) {
+                resolvedBy = "manifest";
+            } else {
+                probeAgents(stubLocation);
+                if (USE_DESCRIPTOR) {
+                    saveCachedDescriptor(stubLocation);
+                }
             }
-    
-            // Try to find a loader from the location of the stub, if that's different
-            tryLoading(stubLocation, AGENT_CLASS);
         } catch (Throwable e) {
             System.err.print("While finding modloader agents: ");
             e.printStackTrace();
         }
+
+        long elapsed = System.nanoTime() - start;
+        System.setProperty(TIMING_PROPERTY, resolvedBy+" "+elapsed);
+        if (IS_DEBUG) {
+            System.out.println(String.format("StubAgent: found %d agent(s) by %s, %d ns elapsed (%.3f ms)", agents.size(), resolvedBy, elapsed, (double)elapsed/1000000.0));
+        }
+    }
+
+    private static void probeAgents(URL stubLocation) throws Exception {
+        if (AGENT_URL != null) {
+            // Try to find a loader in an adjacent file specified manually
+            tryLoading(stubLocation.toURI().resolve(AGENT_URL).toURL(), AGENT_CLASS);
+        }
+
+        // Try to find a loader just using the current classpath
+        tryLoading(null, AGENT_CLASS);
+
+        if (AGENT_URL == null) {
+            // if no file specified manually, try to find ModLoader.jar
+            tryLoading(stubLocation.toURI().resolve("ModLoader.jar").toURL(), AGENT_CLASS);
+        }
+
+        // Try to find a loader from the location of the stub, if that's different
+        tryLoading(stubLocation, AGENT_CLASS);
     }
 
     private static ClassLoader getPlatformClassLoader() {
@@ -71,7 +115,7 @@ public class StubAgent {
         ClassLoader loader = url == null ? StubAgent.class.getClassLoader() : new StubLoader(new URL[] {url}, platformLoader);
 
         try {
-            Agent agent = new Agent(loader.loadClass(agentName));
+            Agent agent = new Agent(loader.loadClass(agentName), url);
             agents.putIfAbsent(agent.getName(), agent); // prioritize the first agent loaded of that name
         } catch (ClassNotFoundException cnfe) {
             // This is not surprising, don't be noisy
@@ -84,17 +128,151 @@ public class StubAgent {
         }
     }
 
+    // load exactly the described agent: one jar, one loader, and premain bound directly; false sends us back to probing
+    private static boolean loadDescribed(String agentName, URL url) {
+        if (url != null && !fileOf(url).isFile()) {
+            return false;
+        }
+        ClassLoader loader = url == null ? StubAgent.class.getClassLoader() : new StubLoader(new URL[] {url}, platformLoader);
+        try {
+            Agent agent = new Agent(loader.loadClass(agentName), url);
+            if (agent.premainHandle == null) {
+                return false;
+            }
+            agents.put(agentName, agent);
+            return true;
+        } catch (ClassNotFoundException|LinkageError e) {
+            return false;
+        }
+    }
+
+    private static boolean loadManifestDescriptor(URL stubLocation) {
+        if (!stubLocation.getPath().endsWith(".jar")) {
+            return false;
+        }
+        try {
+            JarURLConnection connection = (JarURLConnection) new URL("jar:"+stubLocation+"!/").openConnection();
+            Manifest manifest = connection.getManifest();
+            if (manifest == null) {
+                return false;
+            }
+            String agentName = manifest.getMainAttributes().getValue(MANIFEST_AGENT_CLASS);
+            String agentJar = manifest.getMainAttributes().getValue(MANIFEST_AGENT_JAR);
+            if (agentName == null || agentJar == null || !agentName.equals(AGENT_CLASS)) {
+                return false;
+            }
+            return loadDescribed(agentName, stubLocation.toURI().resolve(agentJar).toURL());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static File cachedDescriptorFile(URL stubLocation) {
+        return new File(DESCRIPTOR_CACHE_DIR, "stub-"+Integer.toHexString(stubLocation.toString().hashCode())+".properties");
+    }
+
+    // anything that could change which agent probing finds; a descriptor saved under a different key is ignored
+    private static String descriptorKey(URL stubLocation, URL agentUrl) {
+        StringBuilder key = new StringBuilder();
+        key.append(AGENT_CLASS).append('|').append(System.getProperty("java.class.path"));
+        for (URL url: new URL[] {stubLocation, agentUrl}) {
+            if (url != null) {
+                File file = fileOf(url);
+                key.append('|').append(url).append(' ').append(file.length()).append(' ').append(file.lastModified());
+            }
+        }
+        return key.toString();
+    }
+
+    private static boolean loadCachedDescriptor(URL stubLocation) {
+        File cacheFile = cachedDescriptorFile(stubLocation);
+        if (!cacheFile.isFile()) {
+            return false;
+        }
+        Properties descriptor = new Properties();
+        try (InputStream in = new FileInputStream(cacheFile)) {
+            descriptor.load(in);
+            String agentName = descriptor.getProperty("class");
+            String agentJar = descriptor.getProperty("jar", "");
+            URL agentUrl = agentJar.isEmpty() ? null : new URL(agentJar);
+            if (agentName == null || !isProbedLocation(stubLocation, agentUrl) || !descriptorKey(stubLocation, agentUrl).equals(descriptor.getProperty("key"))) {
+                return false;
+            }
+            return loadDescribed(agentName, agentUrl);
+        } catch (IOException|IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // a descriptor can only pick one of the places probeAgents would have looked, never some other jar
+    private static boolean isProbedLocation(URL stubLocation, URL agentUrl) {
+        if (agentUrl == null) {
+            return true;
+        }
+        try {
+            return agentUrl.toURI().equals(stubLocation.toURI())
+                || agentUrl.toURI().equals(stubLocation.toURI().resolve("ModLoader.jar"));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static void saveCachedDescriptor(URL stubLocation) {
+        File cacheFile = cachedDescriptorFile(stubLocation);
+        if (agents.size() != 1) {
+            // nothing to describe, or more than a descriptor can hold
+            cacheFile.delete();
+            return;
+        }
+        Agent agent = agents.values().iterator().next();
+        Properties descriptor = new Properties();
+        descriptor.setProperty("class", agent.agentClass.getName());
+        descriptor.setProperty("jar", agent.url == null ? "" : agent.url.toString());
+        descriptor.setProperty("key", descriptorKey(stubLocation, agent.url));
+        DESCRIPTOR_CACHE_DIR.mkdirs();
+        try (OutputStream out = new FileOutputStream(cacheFile)) {
+            descriptor.store(out, "dd-modloader agent descriptor");
+        } catch (IOException e) {
+            // no cache, so next launch probes again
+        }
+    }
+
+    private static File fileOf(URL url) {
+        try {
+            return new File(url.toURI());
+        } catch (Exception e) {
+            return new File(url.getPath());
+        }
+    }
+
     private static class Agent {
         public final Class<?> agentClass;
+        // where it was loaded from, null for the classpath
+        public final URL url;
+        public final MethodHandle premainHandle;
+        public final MethodHandle agentmainHandle;
 
-        private Agent(Class<?> agentClass) {
+        private Agent(Class<?> agentClass, URL url) {
             this.agentClass = agentClass;
+            this.url = url;
+            this.premainHandle = findHandle(agentClass, "premain");
+            this.agentmainHandle = findHandle(agentClass, "agentmain");
         }
-        public void premain(Object... args) throws Throwable {
-            safeCall("premain", args);
+
+        private static MethodHandle findHandle(Class<?> agentClass, String methodName) {
+            try {
+                return MethodHandles.publicLookup().findStatic(agentClass, methodName, AGENT_METHOD_TYPE);
+            } catch (NoSuchMethodException|IllegalAccessException e) {
+                // not the usual signature, callMethod will look for whatever it has
+                return null;
+            }
         }
-        public void agentmain(Object... args) throws Throwable {
-            safeCall("agentmain", args);
+
+        public void premain(String agentArgs, Instrumentation inst) throws Throwable {
+            safeCall(premainHandle, "premain", agentArgs, inst);
+        }
+        public void agentmain(String agentArgs, Instrumentation inst) throws Throwable {
+            safeCall(agentmainHandle, "agentmain", agentArgs, inst);
         }
 
         // just a name for this agent to make sure we don't load two of the same agent
@@ -107,9 +285,13 @@ public class StubAgent {
         }
 
         // call a method, don't bail if we're not in a dev environment
-        protected void safeCall(String methodName, Object... args) throws Throwable {
+        protected void safeCall(MethodHandle handle, String methodName, String agentArgs, Instrumentation inst) throws Throwable {
             try {
-                callMethod(methodName, args);
+                if (handle != null) {
+                    handle.invokeExact(agentArgs, inst);
+                } else {
+                    callMethod(methodName, agentArgs, inst);
+                }
             } catch (Throwable e) {
                 if (IS_DEV) throw e;
                 // otherwise print the stack trace and continue